@@ -0,0 +1,100 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Times the tree-walking Interpreter, which switches on the kind tag of each
+// statement and expression, against the same Interpreter dispatching through
+// accept() and the Visitor interface instead. A third version switches on
+// statements but sends expressions through accept(), to time the two kinds
+// of node apart.
+//
+// Each run measures one of the three, chosen by the --visitor or
+// --statement-switch option. Run them in separate JVMs, as
+// "make dispatch-benchmark" does, so HotSpot never sees more than one
+// version of execute and evaluate at the same call sites.
+class DispatchBenchmark {
+  // Calls, arithmetic, comparisons, variables and loops: the nodes most
+  // programs spend their time in.
+  private static final String PROGRAM = String.join("\n",
+      "fun fib(n) {",
+      "  if (n < 2) return n;",
+      "  return fib(n - 1) + fib(n - 2);",
+      "}",
+      "var sum = 0;",
+      "for (var i = 0; i < 200000; i = i + 1) {",
+      "  if (i / 2 > sum or !(i == 3)) sum = sum + i * 2 - i / 4;",
+      "}",
+      "var result = fib(22) + sum;");
+
+  private static final int WARMUP_RUNS = 50;
+  private static final int RUNS = 50;
+
+  // Dispatches statements and expressions through accept() and the Visitor
+  // interface, instead of switching on their kind.
+  private static final class VisitorInterpreter extends Interpreter {
+    @Override
+    Completion execute(Stmt stmt) {
+      return stmt.accept(this);
+    }
+
+    @Override
+    Object evaluate(Expr expr) {
+      return expr.accept(this);
+    }
+  }
+
+  // Switches on statements, but dispatches expressions through accept().
+  private static final class StatementSwitchInterpreter extends Interpreter {
+    @Override
+    Object evaluate(Expr expr) {
+      return expr.accept(this);
+    }
+  }
+
+  public static void main(String[] args) {
+    String version = args.length == 1 ? args[0] : "";
+    Interpreter interpreter;
+    String name;
+    // One Interpreter for every run. The program's globals are defined again
+    // each time, which overwrites them in place.
+    if (args.length == 0) {
+      interpreter = new Interpreter();
+      name = "switch";
+    } else if (version.equals("--visitor")) {
+      interpreter = new VisitorInterpreter();
+      name = "visitor";
+    } else if (version.equals("--statement-switch")) {
+      interpreter = new StatementSwitchInterpreter();
+      name = "statement switch";
+    } else {
+      System.out.println("Usage: DispatchBenchmark [--visitor | --statement-switch]");
+      System.exit(64);
+      return;
+    }
+
+    // The same passes Lox.run gives a script on the tree-walker.
+    Scanner scanner = new Scanner(PROGRAM);
+    Parser parser = new Parser(scanner.scanTokens());
+    List<Stmt> statements = parser.parse();
+    new Resolver().resolve(statements);
+    statements = new Optimizer().optimize(statements);
+    new TypeInference().infer(statements);
+    Lox.prepareForInterpreter(statements, interpreter, true);
+
+    for (int i = 0; i < WARMUP_RUNS; i++) {
+      interpreter.interpret(statements);
+    }
+
+    long[] times = new long[RUNS];
+    for (int i = 0; i < RUNS; i++) {
+      long start = System.nanoTime();
+      interpreter.interpret(statements);
+      times[i] = System.nanoTime() - start;
+    }
+
+    Arrays.sort(times);
+    System.out.printf("%s dispatch: best %.2f ms, median %.2f ms%n",
+        name, times[0] / 1e6, times[RUNS / 2] / 1e6);
+  }
+}
@@ -1,10 +1,120 @@
 package com.craftinginterpreters.lox;
 
-class AstPrinter implements Expr.Visitor<String> {
+import java.util.List;
+
+class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
   String print(Expr expr) {
     return expr.accept(this);
   }
 
+  String print(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // Print a whole program, one top-level statement per line.
+  String print(List<Stmt> statements) {
+    StringBuilder builder = new StringBuilder();
+    for (Stmt statement : statements) {
+      builder.append(print(statement)).append("\n");
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public String visitBlockStmt(Stmt.Block stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(block");
+
+    for (Stmt statement : stmt.statements) {
+      builder.append(" ").append(statement.accept(this));
+    }
+
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitClassStmt(Stmt.Class stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(class ").append(stmt.name.lexeme);
+
+    if (stmt.superclass != null) {
+      builder.append(" < ").append(print(stmt.superclass));
+    }
+
+    for (Stmt.Function method : stmt.methods) {
+      builder.append(" ").append(print(method));
+    }
+
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitExpressionStmt(Stmt.Expression stmt) {
+    return parenthesize(";", stmt.expression);
+  }
+
+  @Override
+  public String visitFunctionStmt(Stmt.Function stmt) {
+    StringBuilder builder = new StringBuilder();
+    builder.append("(fun ").append(stmt.name.lexeme).append("(");
+
+    for (Token param : stmt.params) {
+      if (param != stmt.params.get(0)) {
+        builder.append(" ");
+      }
+      builder.append(param.lexeme);
+    }
+
+    builder.append(")");
+
+    for (Stmt body : stmt.body) {
+      builder.append(" ").append(body.accept(this));
+    }
+
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public String visitIfStmt(Stmt.If stmt) {
+    if (stmt.elseBranch == null) {
+      return "(if " + print(stmt.condition) + " " + print(stmt.thenBranch) + ")";
+    }
+
+    return "(if-else " + print(stmt.condition) + " " + print(stmt.thenBranch) + " "
+        + print(stmt.elseBranch) + ")";
+  }
+
+  @Override
+  public String visitPrintStmt(Stmt.Print stmt) {
+    return parenthesize("print", stmt.expression);
+  }
+
+  @Override
+  public String visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return "(return)";
+    }
+
+    return parenthesize("return", stmt.value);
+  }
+
+  @Override
+  public String visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      return "(var " + stmt.name.lexeme + ")";
+    }
+
+    return parenthesize("var " + stmt.name.lexeme + " =", stmt.initializer);
+  }
+
+  @Override
+  public String visitWhileStmt(Stmt.While stmt) {
+    return "(while " + print(stmt.condition) + " " + print(stmt.body) + ")";
+  }
+
   @Override
   public String visitAssignExpr(Expr.Assign expr) {
     return parenthesize("=", new Expr.Variable(expr.name), expr.value);
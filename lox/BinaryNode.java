@@ -0,0 +1,513 @@
+package com.craftinginterpreters.lox;
+
+// The executable form of an Expr.Binary. Every binary expression starts out
+// with an Uninitialized node, which looks at the operands it sees on its first
+// execution and replaces itself with a node specialized for those types and
+// that operator. Specialized nodes only check that the operands still have the
+// expected types. If they ever don't, the node deoptimizes by replacing itself
+// with the Generic node, which handles every combination just like the
+// original switch in the Interpreter did.
+//
+// Besides execute, which returns a boxed value, nodes can be asked for a
+// primitive result with executeDouble, executeBoolean or executeCondition.
+// Numeric nodes implement those directly and ask their operands for
+// primitives as well, so a nested arithmetic expression like "a * b + c" only
+// boxes its final result, and a comparison used as a condition boxes nothing.
+abstract class BinaryNode {
+  final Expr.Binary expr;
+
+  BinaryNode(Expr.Binary expr) {
+    this.expr = expr;
+  }
+
+  abstract Object execute(Interpreter interpreter);
+
+  double executeDouble(Interpreter interpreter) throws UnexpectedResult {
+    return UnexpectedResult.expectDouble(execute(interpreter));
+  }
+
+  boolean executeBoolean(Interpreter interpreter) throws UnexpectedResult {
+    Object value = execute(interpreter);
+    if (value instanceof Boolean) {
+      return (boolean) value;
+    }
+
+    throw new UnexpectedResult(value);
+  }
+
+  // Evaluate the expression for its truthiness, as an if or while does.
+  boolean executeCondition(Interpreter interpreter) {
+    return Interpreter.isTruthy(execute(interpreter));
+  }
+
+  // Swap a different node in for this one. The next evaluation of the
+  // expression will run the replacement.
+  protected void replace(BinaryNode node) {
+    expr.node = node;
+  }
+
+  // Called by a specialized node whose operands didn't have the types it
+  // expected. The operands have already been evaluated, so finish this
+  // evaluation generically and stay generic from now on.
+  protected Object deoptimize(Object left, Object right) {
+    replace(new Generic(expr));
+    return generic(expr.operator, left, right);
+  }
+
+  static class Uninitialized extends BinaryNode {
+    Uninitialized(Expr.Binary expr) {
+      super(expr);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      Object left = interpreter.evaluate(expr.left);
+      Object right = interpreter.evaluate(expr.right);
+      replace(specialize(left, right));
+      return generic(expr.operator, left, right);
+    }
+
+    private BinaryNode specialize(Object left, Object right) {
+      if (TypeInference.isProven(expr) && expr.operator.type != TokenType.BANG_EQUAL
+          && expr.operator.type != TokenType.EQUAL_EQUAL) {
+        return new ProvenNumbers(expr);
+      }
+
+      boolean numbers = left instanceof Double && right instanceof Double;
+
+      switch (expr.operator.type) {
+        case BANG_EQUAL:
+          return new NotEqual(expr);
+        case EQUAL_EQUAL:
+          return new Equal(expr);
+        case GREATER:
+        case GREATER_EQUAL:
+        case LESS:
+        case LESS_EQUAL:
+          return numbers ? new NumberComparison(expr) : new Generic(expr);
+        case MINUS:
+        case SLASH:
+        case STAR:
+          return numbers ? new NumberArithmetic(expr) : new Generic(expr);
+        case PLUS:
+          if (numbers) {
+            return new NumberArithmetic(expr);
+          }
+
+          if (left instanceof String && right instanceof String) {
+            return new StringAdd(expr);
+          }
+
+          return new Generic(expr);
+      }
+
+      return new Generic(expr);
+    }
+  }
+
+  static class Generic extends BinaryNode {
+    Generic(Expr.Binary expr) {
+      super(expr);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      Object left = interpreter.evaluate(expr.left);
+      Object right = interpreter.evaluate(expr.right);
+      return generic(expr.operator, left, right);
+    }
+  }
+
+  // Arithmetic on two operands that have been numbers so far: +, -, * or /.
+  static final class NumberArithmetic extends BinaryNode {
+    private final Arithmetic operation;
+
+    NumberArithmetic(Expr.Binary expr) {
+      super(expr);
+      this.operation = Arithmetic.of(expr.operator.type);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      try {
+        return executeDouble(interpreter);
+      } catch (UnexpectedResult unexpected) {
+        return unexpected.result;
+      }
+    }
+
+    @Override
+    double executeDouble(Interpreter interpreter) throws UnexpectedResult {
+      double left;
+      try {
+        left = interpreter.evaluateDouble(expr.left);
+      } catch (UnexpectedResult unexpected) {
+        Object right = interpreter.evaluate(expr.right);
+        return UnexpectedResult.expectDouble(deoptimize(unexpected.result, right));
+      }
+
+      double right;
+      try {
+        right = interpreter.evaluateDouble(expr.right);
+      } catch (UnexpectedResult unexpected) {
+        return UnexpectedResult.expectDouble(deoptimize(left, unexpected.result));
+      }
+
+      return operation.apply(left, right);
+    }
+  }
+
+  // A comparison of two operands that have been numbers so far: >, >=, < or
+  // <=.
+  static final class NumberComparison extends BinaryNode {
+    private final Comparison operation;
+
+    NumberComparison(Expr.Binary expr) {
+      super(expr);
+      this.operation = Comparison.of(expr.operator.type);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeBoolean(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeCondition(Interpreter interpreter) {
+      double left;
+      try {
+        left = interpreter.evaluateDouble(expr.left);
+      } catch (UnexpectedResult unexpected) {
+        Object right = interpreter.evaluate(expr.right);
+        // Comparing anything but numbers is an error, so this throws.
+        return (boolean) deoptimize(unexpected.result, right);
+      }
+
+      double right;
+      try {
+        right = interpreter.evaluateDouble(expr.right);
+      } catch (UnexpectedResult unexpected) {
+        return (boolean) deoptimize(left, unexpected.result);
+      }
+
+      return operation.apply(left, right);
+    }
+  }
+
+  static final class StringAdd extends BinaryNode {
+    StringAdd(Expr.Binary expr) {
+      super(expr);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      Object left = interpreter.evaluate(expr.left);
+      Object right = interpreter.evaluate(expr.right);
+      if (left instanceof String && right instanceof String) {
+        return (String) left + (String) right;
+      }
+
+      return deoptimize(left, right);
+    }
+  }
+
+  // Arithmetic or a comparison on operands that TypeInference proved are
+  // always numbers. Nothing is checked, and there's nothing to deoptimize to.
+  static final class ProvenNumbers extends BinaryNode {
+    // Exactly one of these is set, depending on the operator.
+    private final Arithmetic arithmetic;
+    private final Comparison comparison;
+    private final boolean isComparison;
+
+    ProvenNumbers(Expr.Binary expr) {
+      super(expr);
+      this.comparison = Comparison.of(expr.operator.type);
+      this.arithmetic = comparison == null ? Arithmetic.of(expr.operator.type) : null;
+      this.isComparison = comparison != null;
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      return isComparison ? compare(interpreter) : compute(interpreter);
+    }
+
+    @Override
+    double executeDouble(Interpreter interpreter) throws UnexpectedResult {
+      if (isComparison) {
+        throw new UnexpectedResult(compare(interpreter));
+      }
+      return compute(interpreter);
+    }
+
+    @Override
+    boolean executeBoolean(Interpreter interpreter) throws UnexpectedResult {
+      if (!isComparison) {
+        throw new UnexpectedResult(compute(interpreter));
+      }
+      return compare(interpreter);
+    }
+
+    @Override
+    boolean executeCondition(Interpreter interpreter) {
+      if (!isComparison) {
+        // Every number is truthy.
+        compute(interpreter);
+        return true;
+      }
+      return compare(interpreter);
+    }
+
+    private double compute(Interpreter interpreter) {
+      double left = interpreter.evaluateNumber(expr.left);
+      double right = interpreter.evaluateNumber(expr.right);
+      return arithmetic.apply(left, right);
+    }
+
+    private boolean compare(Interpreter interpreter) {
+      double left = interpreter.evaluateNumber(expr.left);
+      double right = interpreter.evaluateNumber(expr.right);
+      return comparison.apply(left, right);
+    }
+  }
+
+  // A superinstruction for a comparison of a local variable with a number
+  // literal, like "i < 10" in a loop condition. The Peephole pass installs
+  // it in place of the Uninitialized node. It reads the slot directly
+  // instead of visiting two operands.
+  static final class LocalCompareConstant extends BinaryNode {
+    private final int depth;
+    private final int slot;
+    private final double constant;
+    private final Comparison operation;
+
+    LocalCompareConstant(Expr.Binary expr, Expr.Variable local, double constant) {
+      super(expr);
+      this.operation = Comparison.of(expr.operator.type);
+      this.depth = local.depth;
+      this.slot = local.slot;
+      this.constant = constant;
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeBoolean(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeCondition(Interpreter interpreter) {
+      FusedNode.executed(FusedNode.Kind.COMPARE_LOCAL);
+      Object value = interpreter.getLocal(depth, slot);
+      if (!(value instanceof Double)) {
+        // Comparing anything but numbers is an error, so this throws.
+        return (boolean) deoptimize(value, constant);
+      }
+
+      return operation.apply((double) value, constant);
+    }
+  }
+
+  // Equality works on any pair of values, so there's nothing to specialize
+  // on, but a dedicated node still skips the operator switch.
+  static final class Equal extends BinaryNode {
+    Equal(Expr.Binary expr) {
+      super(expr);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeBoolean(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeCondition(Interpreter interpreter) {
+      Object left = interpreter.evaluate(expr.left);
+      Object right = interpreter.evaluate(expr.right);
+      return Interpreter.isEqual(left, right);
+    }
+  }
+
+  static final class NotEqual extends BinaryNode {
+    NotEqual(Expr.Binary expr) {
+      super(expr);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeBoolean(Interpreter interpreter) {
+      return executeCondition(interpreter);
+    }
+
+    @Override
+    boolean executeCondition(Interpreter interpreter) {
+      Object left = interpreter.evaluate(expr.left);
+      Object right = interpreter.evaluate(expr.right);
+      return !Interpreter.isEqual(left, right);
+    }
+  }
+
+  // The arithmetic operators on numbers. Nodes look theirs up once, when
+  // they're created, so evaluating one doesn't switch on the operator.
+  enum Arithmetic {
+    ADD {
+      @Override
+      double apply(double left, double right) {
+        return left + right;
+      }
+    },
+    SUBTRACT {
+      @Override
+      double apply(double left, double right) {
+        return left - right;
+      }
+    },
+    MULTIPLY {
+      @Override
+      double apply(double left, double right) {
+        return left * right;
+      }
+    },
+    DIVIDE {
+      @Override
+      double apply(double left, double right) {
+        return left / right;
+      }
+    };
+
+    abstract double apply(double left, double right);
+
+    // The operation for an operator, or null if it isn't arithmetic.
+    static Arithmetic of(TokenType operator) {
+      switch (operator) {
+        case PLUS:
+          return ADD;
+        case MINUS:
+          return SUBTRACT;
+        case STAR:
+          return MULTIPLY;
+        case SLASH:
+          return DIVIDE;
+        default:
+          return null;
+      }
+    }
+  }
+
+  // The comparison operators on numbers, looked up the same way.
+  enum Comparison {
+    GREATER {
+      @Override
+      boolean apply(double left, double right) {
+        return left > right;
+      }
+    },
+    GREATER_EQUAL {
+      @Override
+      boolean apply(double left, double right) {
+        return left >= right;
+      }
+    },
+    LESS {
+      @Override
+      boolean apply(double left, double right) {
+        return left < right;
+      }
+    },
+    LESS_EQUAL {
+      @Override
+      boolean apply(double left, double right) {
+        return left <= right;
+      }
+    };
+
+    abstract boolean apply(double left, double right);
+
+    // The operation for an operator, or null if it isn't a comparison.
+    static Comparison of(TokenType operator) {
+      switch (operator) {
+        case GREATER:
+          return GREATER;
+        case GREATER_EQUAL:
+          return GREATER_EQUAL;
+        case LESS:
+          return LESS;
+        case LESS_EQUAL:
+          return LESS_EQUAL;
+        default:
+          return null;
+      }
+    }
+  }
+
+  // Apply a binary operator to operands of any type, reporting a runtime
+  // error if the types don't fit the operator.
+  static Object generic(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case BANG_EQUAL:
+        return !Interpreter.isEqual(left, right);
+      case EQUAL_EQUAL:
+        return Interpreter.isEqual(left, right);
+      case GREATER:
+        checkNumberOperands(operator, left, right);
+        return (double) left > (double) right;
+      case GREATER_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double) left >= (double) right;
+      case LESS:
+        checkNumberOperands(operator, left, right);
+        return (double) left < (double) right;
+      case LESS_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double) left <= (double) right;
+      case MINUS:
+        checkNumberOperands(operator, left, right);
+        return (double) left - (double) right;
+      case PLUS:
+        // Overload the PLUS operator to handle both addition and String concatenation.
+        if (left instanceof Double && right instanceof Double) {
+          return (double) left + (double) right;
+        }
+
+        if (left instanceof String && right instanceof String) {
+          return (String) left + (String) right;
+        }
+
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+      case SLASH:
+        checkNumberOperands(operator, left, right);
+        return (double) left / (double) right;
+      case STAR:
+        checkNumberOperands(operator, left, right);
+        return (double) left * (double) right;
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  private static void checkNumberOperands(Token operator, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double) {
+      return;
+    }
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+}
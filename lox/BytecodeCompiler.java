@@ -0,0 +1,945 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Compiles resolved syntax trees into bytecode for the VM. The Resolver has
+// already reported scoping errors, so here we only lay out where each variable
+// lives at runtime: locals in stack slots, captured variables through
+// upvalues and everything else in a global slot the VM numbers by name.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int MAX_LOCALS = 256;
+  private static final int MAX_UPVALUES = 256;
+
+  private enum FunctionType {
+    FUNCTION,
+    INITIALIZER,
+    METHOD,
+    SCRIPT
+  }
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  // Everything we track while compiling a single function. Functions nest,
+  // so each one points at the state for the function enclosing it.
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final VM.ObjFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    // How many stack slots are in use at the current point in the code. The
+    // VM sizes each call's stack window from the largest value this reaches.
+    int stackDepth = 0;
+
+    FunctionState(FunctionState enclosing, FunctionType type, String name) {
+      this.enclosing = enclosing;
+      this.type = type;
+      this.function = new VM.ObjFunction(name);
+
+      // Slot 0 holds the function being called or, in methods, the receiver.
+      // Naming it "this" lets methods resolve "this" like any other local.
+      locals.add(new Local(type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "", 0));
+      adjustStack(1);
+    }
+
+    void adjustStack(int delta) {
+      stackDepth += delta;
+      if (stackDepth > function.maxStack) {
+        function.maxStack = stackDepth;
+      }
+    }
+  }
+
+  private final VM vm;
+  private FunctionState current = null;
+  private boolean currentClassHasSuperclass = false;
+  // The source line stamped on each byte we emit. We update it from whichever
+  // token is nearest to the code being compiled, so runtime errors report the
+  // same line the tree-walking Interpreter would.
+  private int line = 1;
+
+  BytecodeCompiler(VM vm) {
+    this.vm = vm;
+  }
+
+  VM.ObjFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, FunctionType.SCRIPT, null);
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+
+    return endFunction();
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    line = stmt.name.line;
+    int nameConstant = makeConstant(stmt.name.lexeme);
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name);
+    }
+
+    emitOp(CLASS, 1);
+    emitShort(nameConstant);
+    if (current.scopeDepth == 0) {
+      emitOp(DEFINE_GLOBAL, -1);
+      emitShort(globalSlot(stmt.name.lexeme));
+    }
+
+    boolean enclosingClassHasSuperclass = currentClassHasSuperclass;
+    currentClassHasSuperclass = stmt.superclass != null;
+
+    if (stmt.superclass != null) {
+      // Store the superclass in a local named "super" in a scope wrapping the
+      // methods, so that they can capture it as an upvalue.
+      beginScope();
+      compile(stmt.superclass);
+      addLocal(new Token(TokenType.SUPER, "super", null, stmt.superclass.name.line));
+
+      namedVariable(stmt.name, false);
+      line = stmt.superclass.name.line;
+      emitOp(INHERIT, -1);
+    }
+
+    // Keep the class on the stack while we attach its methods.
+    namedVariable(stmt.name, false);
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = FunctionType.METHOD;
+      if (method.name.lexeme.equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+
+      function(method, type);
+      line = method.name.line;
+      emitOp(METHOD, -1);
+      emitShort(makeConstant(method.name.lexeme));
+    }
+    emitOp(POP, -1);
+
+    if (stmt.superclass != null) {
+      endScope();
+    }
+
+    currentClassHasSuperclass = enclosingClassHasSuperclass;
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    // An assignment on its own doesn't need to leave its value behind just
+    // to have it popped.
+    if (stmt.expression instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign) stmt.expression;
+      int slot = resolveLocal(current, assign.name.lexeme);
+      if (slot != -1 && assign.value instanceof Expr.Binary) {
+        Expr.Binary binary = (Expr.Binary) assign.value;
+        if (binary.operator.type == TokenType.PLUS
+            && binary.left instanceof Expr.Variable
+            && ((Expr.Variable) binary.left).name.lexeme.equals(assign.name.lexeme)
+            && isNumber(binary.right)) {
+          line = binary.operator.line;
+          emitOp(INCREMENT_LOCAL, 0);
+          emitByte((byte) slot);
+          emitShort(makeConstant(((Expr.Literal) binary.right).value));
+          return null;
+        }
+      }
+
+      compile(assign.value);
+      namedVariable(assign.name, assign.name.lexeme,
+          STORE_LOCAL, STORE_UPVALUE, STORE_GLOBAL, -1);
+      return null;
+    }
+
+    if (stmt.expression instanceof Expr.Set) {
+      Expr.Set set = (Expr.Set) stmt.expression;
+      // Reading the object after the value is only the same as reading it
+      // first if the value can't assign it. Nothing can assign "this".
+      int slot = localSlot(set.object);
+      if (slot != -1 && (set.object instanceof Expr.This
+          || canReorder(Collections.singletonList(set.value)))) {
+        compile(set.value);
+        line = set.name.line;
+        emitOp(STORE_LOCAL_PROPERTY, -1);
+        emitByte((byte) slot);
+        emitShort(makeConstant(set));
+        return null;
+      }
+
+      compile(set.object);
+      compile(set.value);
+      line = set.name.line;
+      emitOp(STORE_PROPERTY, -2);
+      emitShort(makeConstant(set));
+      return null;
+    }
+
+    compile(stmt.expression);
+    emitOp(POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    line = stmt.name.line;
+    if (current.scopeDepth > 0) {
+      // Declare the local before compiling the body so the function can
+      // refer to itself recursively through an upvalue.
+      addLocal(stmt.name);
+      function(stmt, FunctionType.FUNCTION);
+    } else {
+      function(stmt, FunctionType.FUNCTION);
+      emitOp(DEFINE_GLOBAL, -1);
+      emitShort(globalSlot(stmt.name.lexeme));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    int thenJump = emitConditionJump(stmt.condition);
+    compile(stmt.thenBranch);
+    int elseJump = emitJump(JUMP, 0);
+
+    patchJump(thenJump);
+    if (stmt.elseBranch != null) {
+      compile(stmt.elseBranch);
+    }
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitOp(PRINT, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value == null) {
+      emitReturn();
+    } else if (localSlot(stmt.value) != -1) {
+      emitOp(RETURN_LOCAL, 0);
+      emitByte((byte) localSlot(stmt.value));
+    } else {
+      compile(stmt.value);
+      emitOp(RETURN, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emitOp(NIL, 1);
+    }
+
+    if (current.scopeDepth > 0) {
+      // The initializer's value is already sitting in the new local's slot.
+      addLocal(stmt.name);
+    } else {
+      line = stmt.name.line;
+      emitOp(DEFINE_GLOBAL, -1);
+      emitShort(globalSlot(stmt.name.lexeme));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    if (countedLoop(stmt)) {
+      return null;
+    }
+
+    int loopStart = current.function.chunk.count;
+    int exitJump = emitConditionJump(stmt.condition);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    namedVariable(expr.name, true);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    boolean isAdd = expr.operator.type == TokenType.PLUS;
+    if ((isAdd || expr.operator.type == TokenType.MINUS) && isNumber(expr.right)) {
+      int slot = localSlot(expr.left);
+      if (slot != -1) {
+        line = expr.operator.line;
+        emitOp(isAdd ? ADD_LOCAL_CONSTANT : SUBTRACT_LOCAL_CONSTANT, 1);
+        emitByte((byte) slot);
+      } else {
+        compile(expr.left);
+        line = expr.operator.line;
+        emitOp(isAdd ? ADD_CONSTANT : SUBTRACT_CONSTANT, 0);
+      }
+      emitShort(makeConstant(((Expr.Literal) expr.right).value));
+      return null;
+    }
+
+    if (isAdd && localSlot(expr.right) != -1) {
+      compile(expr.left);
+      line = expr.operator.line;
+      emitOp(ADD_LOCAL, 0);
+      emitByte((byte) localSlot(expr.right));
+      return null;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        emitOp(NOT_EQUAL, -1);
+        break;
+      case EQUAL_EQUAL:
+        emitOp(EQUAL, -1);
+        break;
+      case GREATER:
+        emitOp(GREATER, -1);
+        break;
+      case GREATER_EQUAL:
+        emitOp(GREATER_EQUAL, -1);
+        break;
+      case LESS:
+        emitOp(LESS, -1);
+        break;
+      case LESS_EQUAL:
+        emitOp(LESS_EQUAL, -1);
+        break;
+      case MINUS:
+        emitOp(SUBTRACT, -1);
+        break;
+      case PLUS:
+        emitOp(ADD, -1);
+        break;
+      case SLASH:
+        emitOp(DIVIDE, -1);
+        break;
+      case STAR:
+        emitOp(MULTIPLY, -1);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    // Calling a method directly, as in "object.method()", skips creating a
+    // bound method. GET_METHOD still runs before the arguments are evaluated,
+    // so errors happen in the same order as they would for a plain call.
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      if (!expr.isTailCall && canReorder(expr.arguments)) {
+        for (Expr argument : expr.arguments) {
+          compile(argument);
+        }
+
+        // INVOKE reports a failed lookup on the line of the cache's bytes
+        // and a wrong argument count on the line of the count's byte.
+        line = get.name.line;
+        emitOp(INVOKE, -expr.arguments.size());
+        emitShort(makeConstant(get));
+        line = expr.paren.line;
+        emitByte((byte) expr.arguments.size());
+        return null;
+      }
+
+      line = get.name.line;
+      emitOp(GET_METHOD, 1);
+      emitShort(makeConstant(get));
+      compileArguments(expr);
+      emitOp(expr.isTailCall ? TAIL_CALL_METHOD : CALL_METHOD, -expr.arguments.size() - 1);
+      emitByte((byte) expr.arguments.size());
+      return null;
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+      namedVariable(superExpr.keyword, "this", false);
+      namedVariable(superExpr.keyword, "super", false);
+      line = superExpr.method.line;
+      emitOp(GET_SUPER_METHOD, 0);
+      emitShort(makeConstant(superExpr.method.lexeme));
+      compileArguments(expr);
+      emitOp(expr.isTailCall ? TAIL_CALL_METHOD : CALL_METHOD, -expr.arguments.size() - 1);
+      emitByte((byte) expr.arguments.size());
+      return null;
+    }
+
+    compile(expr.callee);
+    compileArguments(expr);
+    // A tail call replaces the current frame, so the RETURN the return
+    // statement emits after it never runs.
+    emitOp(expr.isTailCall ? TAIL_CALL : CALL, -expr.arguments.size());
+    emitByte((byte) expr.arguments.size());
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    int slot = localSlot(expr.object);
+    if (slot != -1) {
+      line = expr.name.line;
+      emitOp(GET_LOCAL_PROPERTY, 1);
+      emitByte((byte) slot);
+      emitShort(makeConstant(expr));
+      return null;
+    }
+
+    compile(expr.object);
+    line = expr.name.line;
+    emitOp(GET_PROPERTY, 0);
+    emitShort(makeConstant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitOp(NIL, 1);
+    } else if (expr.value.equals(true)) {
+      emitOp(TRUE, 1);
+    } else if (expr.value.equals(false)) {
+      emitOp(FALSE, 1);
+    } else {
+      emitOp(CONSTANT, 1);
+      emitShort(makeConstant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      // If the left operand is truthy, skip over the right operand and keep
+      // the left operand as the result.
+      int elseJump = emitJump(JUMP_IF_FALSE, 0);
+      int endJump = emitJump(JUMP, 0);
+      patchJump(elseJump);
+      emitOp(POP, -1);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(JUMP_IF_FALSE, 0);
+      emitOp(POP, -1);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    line = expr.name.line;
+    emitOp(SET_PROPERTY, -1);
+    emitShort(makeConstant(expr));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable(expr.keyword, "this", false);
+    namedVariable(expr.keyword, "super", false);
+    line = expr.method.line;
+    emitOp(GET_SUPER, -1);
+    emitShort(makeConstant(expr.method.lexeme));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable(expr.keyword, false);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    line = expr.operator.line;
+    switch (expr.operator.type) {
+      case BANG:
+        emitOp(NOT, 0);
+        break;
+      case MINUS:
+        emitOp(NEGATE, 0);
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, false);
+    return null;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private void compileArguments(Expr.Call expr) {
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    line = expr.paren.line;
+  }
+
+  // Compile a for loop like "for (...; i < 10; i = i + 1)" so that each
+  // iteration ends in one FOR_LOOP instead of an increment, a jump back and
+  // a test. The condition is tested once on the way in, and after that by
+  // FOR_LOOP. Returns false, having emitted nothing, for any other loop.
+  private boolean countedLoop(Stmt.While stmt) {
+    byte comparison = comparisonOp(stmt.condition);
+    if (comparison == -1 || !(stmt.body instanceof Stmt.Block)) {
+      return false;
+    }
+
+    Expr.Binary condition = (Expr.Binary) stmt.condition;
+    int slot = localSlot(condition.left);
+    List<Stmt> statements = ((Stmt.Block) stmt.body).statements;
+    Stmt last = statements.get(statements.size() - 1);
+    if (slot == -1 || !isNumber(condition.right)
+        || !(last instanceof Stmt.Expression)
+        || !(((Stmt.Expression) last).expression instanceof Expr.Assign)) {
+      return false;
+    }
+
+    Expr.Assign increment = (Expr.Assign) ((Stmt.Expression) last).expression;
+    if (!increment.name.lexeme.equals(((Expr.Variable) condition.left).name.lexeme)
+        || !(increment.value instanceof Expr.Binary)) {
+      return false;
+    }
+
+    Expr.Binary step = (Expr.Binary) increment.value;
+    if (step.operator.type != TokenType.PLUS
+        || !(step.left instanceof Expr.Variable)
+        || !((Expr.Variable) step.left).name.lexeme.equals(increment.name.lexeme)
+        || !isNumber(step.right)) {
+      return false;
+    }
+
+    // The jump back skips the end of the block's scope, so the block can't
+    // declare anything. The parser only puts a declaration there inside a
+    // nested block, but check anyway.
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+          || statement instanceof Stmt.Class) {
+        return false;
+      }
+    }
+
+    int exitJump = emitConditionJump(condition);
+    int bodyStart = current.function.chunk.count;
+    for (int i = 0; i < statements.size() - 1; i++) {
+      compile(statements.get(i));
+    }
+
+    // Only the addition can fail: after it, the local is a number.
+    line = step.operator.line;
+    emitOp(FOR_LOOP, 0);
+    emitByte((byte) slot);
+    emitShort(makeConstant(((Expr.Literal) step.right).value));
+    emitByte(comparison);
+    emitShort(makeConstant(((Expr.Literal) condition.right).value));
+    int offset = current.function.chunk.count - bodyStart + 2;
+    if (offset > 0xffff) {
+      Lox.error(line, "Loop body too large.");
+    }
+    emitShort(offset);
+
+    patchJump(exitJump);
+    return true;
+  }
+
+  // Compile a condition and a jump over the code that follows when it's
+  // false, returning the jump's offset for patchJump. A comparison, the
+  // usual condition, jumps on its result without making a Boolean.
+  private int emitConditionJump(Expr condition) {
+    byte comparison = comparisonOp(condition);
+    if (comparison == -1) {
+      compile(condition);
+      return emitJump(POP_JUMP_IF_FALSE, -1);
+    }
+
+    Expr.Binary binary = (Expr.Binary) condition;
+    int slot = localSlot(binary.left);
+    if (slot != -1 && isNumber(binary.right)) {
+      line = binary.operator.line;
+      emitOp(JUMP_UNLESS_LOCAL, 0);
+      emitByte(comparison);
+      emitByte((byte) slot);
+      emitShort(makeConstant(((Expr.Literal) binary.right).value));
+    } else {
+      compile(binary.left);
+      compile(binary.right);
+      line = binary.operator.line;
+      emitOp(JUMP_UNLESS, -2);
+      emitByte(comparison);
+    }
+
+    emitByte((byte) 0xff);
+    emitByte((byte) 0xff);
+    return current.function.chunk.count - 2;
+  }
+
+  private static byte comparisonOp(Expr expr) {
+    if (!(expr instanceof Expr.Binary)) {
+      return -1;
+    }
+
+    switch (((Expr.Binary) expr).operator.type) {
+      case GREATER:
+        return GREATER;
+      case GREATER_EQUAL:
+        return GREATER_EQUAL;
+      case LESS:
+        return LESS;
+      case LESS_EQUAL:
+        return LESS_EQUAL;
+      default:
+        return -1;
+    }
+  }
+
+  // The stack slot of a variable or "this" that's a local of the function
+  // being compiled, or -1.
+  private int localSlot(Expr expr) {
+    if (expr instanceof Expr.Variable) {
+      return resolveLocal(current, ((Expr.Variable) expr).name.lexeme);
+    }
+
+    if (expr instanceof Expr.This) {
+      return resolveLocal(current, "this");
+    }
+
+    return -1;
+  }
+
+  private static boolean isNumber(Expr expr) {
+    return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+  }
+
+  // Whether evaluating the arguments can neither fail nor run any code, so
+  // moving a method lookup after them can't be noticed. Reading a local or
+  // an upvalue always succeeds, unlike reading a global.
+  private boolean canReorder(List<Expr> arguments) {
+    for (Expr argument : arguments) {
+      if (argument instanceof Expr.Literal || argument instanceof Expr.This) {
+        continue;
+      }
+
+      if (!(argument instanceof Expr.Variable)) {
+        return false;
+      }
+
+      String name = ((Expr.Variable) argument).name.lexeme;
+      if (resolveLocal(current, name) == -1 && !isUpvalue(current, name)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  // Whether a name refers to a local of some enclosing function.
+  private static boolean isUpvalue(FunctionState state, String name) {
+    for (FunctionState enclosing = state.enclosing; enclosing != null; enclosing = enclosing.enclosing) {
+      for (Local local : enclosing.locals) {
+        if (local.name.equals(name)) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  // Compile a function body into its own ObjFunction, then emit code in the
+  // enclosing function that wraps it in a closure.
+  private void function(Stmt.Function stmt, FunctionType type) {
+    current = new FunctionState(current, type, stmt.name.lexeme);
+    current.function.arity = stmt.params.size();
+
+    beginScope();
+    for (Token param : stmt.params) {
+      addLocal(param);
+      current.adjustStack(1);
+    }
+
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+
+    List<Upvalue> upvalues = current.upvalues;
+    VM.ObjFunction function = endFunction();
+
+    line = stmt.name.line;
+    emitOp(CLOSURE, 1);
+    emitShort(makeConstant(function));
+    for (Upvalue upvalue : upvalues) {
+      emitByte((byte) (upvalue.isLocal ? 1 : 0));
+      emitByte((byte) upvalue.index);
+    }
+  }
+
+  private VM.ObjFunction endFunction() {
+    emitReturn();
+    VM.ObjFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    // Discard the scope's locals, hoisting any that were captured by a
+    // closure off the stack and into their upvalues.
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      if (locals.get(locals.size() - 1).isCaptured) {
+        emitOp(CLOSE_UPVALUE, -1);
+      } else {
+        emitOp(POP, -1);
+      }
+      locals.remove(locals.size() - 1);
+    }
+  }
+
+  private void addLocal(Token name) {
+    if (current.locals.size() == MAX_LOCALS) {
+      Lox.error(name, "Too many local variables in function.");
+      return;
+    }
+
+    current.locals.add(new Local(name.lexeme, current.scopeDepth));
+  }
+
+  private void namedVariable(Token name, boolean assign) {
+    namedVariable(name, name.lexeme, assign);
+  }
+
+  private void namedVariable(Token token, String name, boolean assign) {
+    if (assign) {
+      namedVariable(token, name, SET_LOCAL, SET_UPVALUE, SET_GLOBAL, 0);
+    } else {
+      namedVariable(token, name, GET_LOCAL, GET_UPVALUE, GET_GLOBAL, 1);
+    }
+  }
+
+  // Emit whichever of the three instructions fits where the variable lives.
+  private void namedVariable(Token token, String name,
+      byte localOp, byte upvalueOp, byte globalOp, int stackEffect) {
+    line = token.line;
+
+    int arg = resolveLocal(current, name);
+    if (arg != -1) {
+      emitOp(localOp, stackEffect);
+      emitByte((byte) arg);
+      return;
+    }
+
+    arg = resolveUpvalue(current, token, name);
+    if (arg != -1) {
+      emitOp(upvalueOp, stackEffect);
+      emitByte((byte) arg);
+      return;
+    }
+
+    emitOp(globalOp, stackEffect);
+    emitShort(globalSlot(name));
+  }
+
+  private int resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name.equals(name)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  // Find a variable declared in an enclosing function, threading an upvalue
+  // through every function in between.
+  private int resolveUpvalue(FunctionState state, Token token, String name) {
+    if (state.enclosing == null) {
+      return -1;
+    }
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, token, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, token, name);
+    if (upvalue != -1) {
+      return addUpvalue(state, token, upvalue, false);
+    }
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, Token token, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) {
+        return i;
+      }
+    }
+
+    if (state.upvalues.size() == MAX_UPVALUES) {
+      Lox.error(token, "Too many closure variables in function.");
+      return 0;
+    }
+
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  private int makeConstant(Object value) {
+    int constant = current.function.chunk.addConstant(value);
+    if (constant > 0xffff) {
+      Lox.error(line, "Too many constants in one chunk.");
+      return 0;
+    }
+
+    return constant;
+  }
+
+  private int globalSlot(String name) {
+    int slot = vm.globalSlot(name);
+    if (slot > 0xffff) {
+      Lox.error(line, "Too many global variables.");
+      return 0;
+    }
+
+    return slot;
+  }
+
+  private void emitReturn() {
+    // Initializers always return the instance, even from a bare "return;".
+    if (current.type == FunctionType.INITIALIZER) {
+      emitOp(RETURN_LOCAL, 0);
+      emitByte((byte) 0);
+    } else {
+      emitOp(NIL, 1);
+      emitOp(RETURN, -1);
+    }
+  }
+
+  private int emitJump(byte instruction, int stackEffect) {
+    emitOp(instruction, stackEffect);
+    emitByte((byte) 0xff);
+    emitByte((byte) 0xff);
+    return current.function.chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    // -2 to adjust for the bytecode for the jump offset itself.
+    int jump = current.function.chunk.count - offset - 2;
+    if (jump > 0xffff) {
+      Lox.error(line, "Too much code to jump over.");
+    }
+
+    current.function.chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+    current.function.chunk.code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(LOOP, 0);
+
+    int offset = current.function.chunk.count - loopStart + 2;
+    if (offset > 0xffff) {
+      Lox.error(line, "Loop body too large.");
+    }
+
+    emitShort(offset);
+  }
+
+  // Emit an instruction along with how it changes the number of values on
+  // the stack.
+  private void emitOp(byte op, int stackEffect) {
+    emitByte(op);
+    current.adjustStack(stackEffect);
+  }
+
+  private void emitShort(int value) {
+    emitByte((byte) ((value >> 8) & 0xff));
+    emitByte((byte) (value & 0xff));
+  }
+
+  private void emitByte(byte b) {
+    current.function.chunk.write(b, line);
+  }
+}
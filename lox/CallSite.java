@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// An inline cache for one call expression. It remembers the callees the call
+// has already checked: that they can be called at all, and that they take as
+// many arguments as the call passes. A callee's arity never changes, so when
+// the same function, class or native comes around again, an identity check
+// is all it takes to go straight into the call.
+//
+// Functions are remembered by their declaration, which fixes their arity.
+// Every closure and bound method made from one declaration hits the same
+// entry, and the site doesn't keep any of them, or the Cells and receivers
+// they hold, alive.
+//
+// Like a PropertyCache, a site that sees more than MAX_ENTRIES callees goes
+// megamorphic and checks every callee in full from then on.
+final class CallSite {
+  static final int MAX_ENTRIES = 4;
+
+  // Set by the --stats option.
+  static boolean collectStats = false;
+  // Every site that has run, in the order they first ran, for the report.
+  private static final List<CallSite> sites = new ArrayList<>();
+
+  // The declarations of functions, and the classes and natives themselves.
+  private final Object[] callees = new Object[MAX_ENTRIES];
+  private int size = 0;
+  private boolean megamorphic = false;
+
+  private Token paren;
+  private long hits = 0;
+  private long misses = 0;
+
+  // Check that the callee can be called with the given number of arguments,
+  // and return it as a LoxCallable.
+  LoxCallable check(Object callee, int argumentCount, Token paren) {
+    Object key = callee instanceof LoxFunction ? ((LoxFunction) callee).declaration() : callee;
+    for (int i = 0; i < size; i++) {
+      if (callees[i] == key) {
+        if (collectStats) {
+          hits++;
+        }
+
+        return (LoxCallable) callee;
+      }
+    }
+
+    miss(paren);
+
+    // Ensure the callee implements LoxCallable so that we don't invoke
+    // non-callable expressions like strings.
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+    if (argumentCount != function.arity()) {
+      throw new RuntimeError(paren,
+          "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
+    }
+
+    if (!megamorphic) {
+      add(key);
+    }
+    return function;
+  }
+
+  private void miss(Token paren) {
+    if (!collectStats) {
+      return;
+    }
+
+    if (this.paren == null) {
+      this.paren = paren;
+      sites.add(this);
+    }
+
+    misses++;
+  }
+
+  private void add(Object key) {
+    if (size == MAX_ENTRIES) {
+      megamorphic = true;
+      size = 0;
+      return;
+    }
+
+    callees[size++] = key;
+  }
+
+  private String state() {
+    if (megamorphic) {
+      return "megamorphic";
+    }
+
+    if (size == 0) {
+      return "uncached";
+    }
+
+    StringBuilder targets = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      Object callee = callees[i];
+      targets.append(i == 0 ? " " : ", ").append(callee instanceof Stmt.Function
+          ? "<fn " + ((Stmt.Function) callee).name.lexeme + ">"
+          : Interpreter.stringify(callee));
+    }
+
+    return (size == 1 ? "monomorphic" : "polymorphic (" + size + ")") + targets;
+  }
+
+  // Print the hit rate of every call site that ran.
+  static void report(PrintStream out) {
+    out.println("Call sites:");
+    for (CallSite site : sites) {
+      long total = site.hits + site.misses;
+      out.printf("  [line %d] call: %d/%d hits (%.1f%%), %s%n",
+          site.paren.line, site.hits, total, 100.0 * site.hits / total, site.state());
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+// A box for a local variable that closures capture and that's assigned after
+// it's declared. Its slot holds the Cell instead of the value, and closures
+// copy the Cell, so every function that uses the variable sees every
+// assignment to it. Variables that are never reassigned are captured by
+// copying their value and don't need one.
+//
+// Each global lives in a Cell too, which stays the same for as long as the
+// name is in the global scope. Uses of the global look the Cell up once and
+// keep it, instead of hashing the name every time.
+final class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
@@ -0,0 +1,48 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A sequence of bytecode instructions along with the constants they refer to
+// and the source line each byte came from, for runtime error reporting.
+class Chunk {
+  byte[] code = new byte[8];
+  int[] lines = new int[8];
+  int count = 0;
+  Object[] constants = new Object[8];
+  int constantCount = 0;
+  private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+  void write(byte b, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = b;
+    lines[count] = line;
+    count++;
+  }
+
+  // Add a value to the constant pool and return its index. Identical numbers
+  // and strings share an entry so that, for example, every reference to the
+  // same global name uses one constant.
+  int addConstant(Object value) {
+    boolean shareable = value instanceof Double || value instanceof String;
+    if (shareable && constantIndices.containsKey(value)) {
+      return constantIndices.get(value);
+    }
+
+    if (constantCount == constants.length) {
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    }
+
+    constants[constantCount] = value;
+    if (shareable) {
+      constantIndices.put(value, constantCount);
+    }
+
+    return constantCount++;
+  }
+}
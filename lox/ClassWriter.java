@@ -0,0 +1,279 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the Jit. It writes version 49
+// class files, the last version verified by type inference, so we don't need
+// to compute stack map frames.
+class ClassWriter {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  // Pool entries are deduplicated by a key describing their contents.
+  private final Map<String, Integer> poolIndexes = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int thisClass;
+  private final int superClass;
+  private final List<Integer> interfaces = new ArrayList<>();
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  ClassWriter(String name, String superName) {
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+  }
+
+  void addInterface(String name) {
+    interfaces.add(classRef(name));
+  }
+
+  void addField(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+
+    fields.add(bytes.toByteArray());
+  }
+
+  MethodWriter addMethod(int access, String name, String descriptor) {
+    MethodWriter method = new MethodWriter(access, utf8(name), utf8(descriptor));
+    methods.add(method);
+    return method;
+  }
+
+  int utf8(String value) {
+    return entry("U" + value, out -> {
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF(value);
+    });
+  }
+
+  int integer(int value) {
+    return entry("I" + value, out -> {
+      out.writeByte(CONSTANT_INTEGER);
+      out.writeInt(value);
+    });
+  }
+
+  int string(String value) {
+    int utf8 = utf8(value);
+    return entry("S" + value, out -> {
+      out.writeByte(CONSTANT_STRING);
+      out.writeShort(utf8);
+    });
+  }
+
+  int classRef(String name) {
+    int utf8 = utf8(name);
+    return entry("C" + name, out -> {
+      out.writeByte(CONSTANT_CLASS);
+      out.writeShort(utf8);
+    });
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int classIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = entry("N" + name + " " + descriptor, out -> {
+      out.writeByte(CONSTANT_NAME_AND_TYPE);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+
+    return entry(tag + owner + "." + name + " " + descriptor, out -> {
+      out.writeByte(tag);
+      out.writeShort(classIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private interface PoolEntry {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private int entry(String key, PoolEntry entry) {
+    Integer index = poolIndexes.get(key);
+    if (index != null) {
+      return index;
+    }
+
+    try {
+      entry.write(poolOut);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+
+    poolIndexes.put(key, poolCount);
+    return poolCount++;
+  }
+
+  byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      // Intern this before the pool is written out.
+      int codeAttribute = utf8("Code");
+
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      poolOut.flush();
+      pool.writeTo(out);
+
+      out.writeShort(ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.size());
+      for (int index : interfaces) {
+        out.writeShort(index);
+      }
+
+      out.writeShort(fields.size());
+      for (byte[] field : fields) {
+        out.write(field);
+      }
+
+      out.writeShort(methods.size());
+      for (MethodWriter method : methods) {
+        method.writeTo(out, codeAttribute);
+      }
+
+      // No class attributes.
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  // Assembles the Code attribute for a single method, keeping track of the
+  // operand stack depth as instructions are emitted.
+  static class MethodWriter {
+    private final int access;
+    private final int name;
+    private final int descriptor;
+
+    private byte[] code = new byte[64];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+    int maxLocals = 0;
+
+    MethodWriter(int access, int name, int descriptor) {
+      this.access = access;
+      this.name = name;
+      this.descriptor = descriptor;
+    }
+
+    int length() {
+      return length;
+    }
+
+    // Emit an opcode that changes the stack depth by stackEffect.
+    void op(int opcode, int stackEffect) {
+      u1(opcode);
+      adjustStack(stackEffect);
+    }
+
+    void adjustStack(int stackEffect) {
+      stack += stackEffect;
+      if (stack > maxStack) {
+        maxStack = stack;
+      }
+    }
+
+    void u1(int value) {
+      if (length == code.length) {
+        code = Arrays.copyOf(code, length * 2);
+      }
+
+      code[length++] = (byte) value;
+    }
+
+    void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    // Emit a forward jump and return its position so it can be patched once
+    // the target is known.
+    int jump(int opcode, int stackEffect) {
+      int position = length;
+      op(opcode, stackEffect);
+      u2(0);
+      return position;
+    }
+
+    void patch(int position) {
+      int offset = length - position;
+      code[position + 1] = (byte) (offset >> 8);
+      code[position + 2] = (byte) offset;
+    }
+
+    void jumpTo(int opcode, int stackEffect, int target) {
+      int position = length;
+      op(opcode, stackEffect);
+      u2(target - position);
+    }
+
+    void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+      out.writeShort(access);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+
+      out.writeShort(codeAttribute);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      // No exception table and no attributes.
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+  }
+}
@@ -0,0 +1,717 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Compiles a resolved AST into a tree of Java closures, once, before running
+// it. Every decision the Interpreter makes on each visit — which operator,
+// local or global, which scope and slot, what literal value — is made here a
+// single time and captured in the closure's final fields. Running the program
+// is then just calling closures, with no visitor dispatch in between.
+//
+// Expressions compile to a Function from the current Environment to their
+// value, and statements compile to a Function from the current Environment to
+// how they completed, the same Completion the Interpreter uses.
+class ClosureCompiler implements Expr.Visitor<Function<Environment, Object>>,
+    Stmt.Visitor<Function<Environment, Completion>> {
+  private final Interpreter interpreter;
+  private final Environment globals;
+  // How many local scopes enclose the code being compiled. At zero we're at
+  // the top level, and declarations go into the globals.
+  private int scopeDepth = 0;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+    this.globals = interpreter.globals;
+  }
+
+  List<Function<Environment, Completion>> compile(List<Stmt> statements) {
+    List<Function<Environment, Completion>> code = new ArrayList<>();
+    for (Stmt statement : statements) {
+      code.add(compile(statement));
+    }
+
+    return code;
+  }
+
+  private Function<Environment, Completion> compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private Function<Environment, Object> compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private Function<Environment, Completion> compileBlock(List<Stmt> statements) {
+    Function<Environment, Completion>[] code = compileAll(statements);
+    if (code.length == 1) {
+      return code[0];
+    }
+
+    return environment -> {
+      for (Function<Environment, Completion> statement : code) {
+        if (statement.apply(environment) == Completion.RETURN) {
+          return Completion.RETURN;
+        }
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Function<Environment, Completion>[] compileAll(List<Stmt> statements) {
+    Function<Environment, Completion>[] code = new Function[statements.size()];
+    for (int i = 0; i < code.length; i++) {
+      code[i] = compile(statements.get(i));
+    }
+
+    return code;
+  }
+
+  // Bind a newly declared variable in the current scope, mirroring
+  // Interpreter.define but deciding between global and local up front.
+  private Function<Environment, Completion> define(Token name, int slot,
+      Function<Environment, Object> value) {
+    if (scopeDepth == 0) {
+      String key = name.lexeme;
+      return environment -> {
+        globals.define(key, value.apply(environment));
+        return Completion.NORMAL;
+      };
+    }
+
+    return environment -> {
+      environment.define(slot, value.apply(environment));
+      return Completion.NORMAL;
+    };
+  }
+
+  // Define a local that closures share through a Cell, once its initializer
+  // has run, as Interpreter.visitVarStmt does.
+  private Function<Environment, Completion> defineInCell(int slot,
+      Function<Environment, Object> value) {
+    return environment -> {
+      environment.define(slot, new Cell(value.apply(environment)));
+      return Completion.NORMAL;
+    };
+  }
+
+  // A function or class that captures its own name needs its Cell in place
+  // before it's created, so this one defines the Cell first.
+  private Function<Environment, Completion> defineSelfInCell(int slot,
+      Function<Environment, Object> value) {
+    return environment -> {
+      Cell cell = new Cell(null);
+      environment.define(slot, cell);
+      cell.value = value.apply(environment);
+      return Completion.NORMAL;
+    };
+  }
+
+  private Function<Environment, Completion> define(Token name, int slot, boolean inCell,
+      Function<Environment, Object> value) {
+    return inCell ? defineInCell(slot, value) : define(name, slot, value);
+  }
+
+  private Function<Environment, Completion> defineSelf(Token name, int slot, boolean inCell,
+      Function<Environment, Object> value) {
+    return inCell ? defineSelfInCell(slot, value) : define(name, slot, value);
+  }
+
+  private Function<Environment, Completion> compileFunction(Stmt.Function function) {
+    scopeDepth++;
+    Function<Environment, Completion> body = compileBlock(function.body);
+    scopeDepth--;
+    return body;
+  }
+
+  @Override
+  public Function<Environment, Completion> visitBlockStmt(Stmt.Block stmt) {
+    // A block the Resolver didn't give an Environment runs in the enclosing
+    // one. At the top level, such a block declares nothing.
+    if (!stmt.hasEnvironment) {
+      return compileBlock(stmt.statements);
+    }
+
+    scopeDepth++;
+    Function<Environment, Completion> body = compileBlock(stmt.statements);
+    scopeDepth--;
+
+    int size = stmt.frameSize;
+    return environment -> body.apply(new Environment(environment, size));
+  }
+
+  @Override
+  public Function<Environment, Completion> visitClassStmt(Stmt.Class stmt) {
+    Function<Environment, Object> superclassCode =
+        stmt.superclass == null ? null : compile(stmt.superclass);
+    Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+
+    if (superclassCode != null) {
+      scopeDepth++;
+    }
+
+    List<Stmt.Function> declarations = stmt.methods;
+    List<Function<Environment, Completion>> bodies = new ArrayList<>();
+    for (Stmt.Function method : declarations) {
+      bodies.add(compileFunction(method));
+    }
+
+    if (superclassCode != null) {
+      scopeDepth--;
+    }
+
+    String className = stmt.name.lexeme;
+    Function<Environment, Object> klass = environment -> {
+      Object superclass = null;
+      Environment methodEnvironment = environment;
+      if (superclassCode != null) {
+        superclass = superclassCode.apply(environment);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(superclassName, "Superclass must be a class.");
+        }
+
+        methodEnvironment = new Environment(environment, 1);
+        methodEnvironment.define(0, superclass);
+      }
+
+      Map<String, LoxFunction> methods = superclass == null
+          ? new HashMap<>()
+          : new HashMap<>(((LoxClass) superclass).methods);
+      for (int i = 0; i < declarations.size(); i++) {
+        Stmt.Function method = declarations.get(i);
+        methods.put(method.name.lexeme, new LoxFunction(method,
+            methodEnvironment.capture(method.captureDepths, method.captureSlots),
+            method.name.lexeme.equals("init"), bodies.get(i)));
+      }
+
+      return new LoxClass(className, methods);
+    };
+
+    return defineSelf(stmt.name, stmt.slot, stmt.inCell, klass);
+  }
+
+  @Override
+  public Function<Environment, Completion> visitExpressionStmt(Stmt.Expression stmt) {
+    Function<Environment, Object> expression = compile(stmt.expression);
+    return environment -> {
+      expression.apply(environment);
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Function<Environment, Completion> visitFunctionStmt(Stmt.Function stmt) {
+    Function<Environment, Completion> body = compileFunction(stmt);
+    int[] depths = stmt.captureDepths;
+    int[] slots = stmt.captureSlots;
+    return defineSelf(stmt.name, stmt.slot, stmt.inCell,
+        environment -> new LoxFunction(stmt, environment.capture(depths, slots), false, body));
+  }
+
+  @Override
+  public Function<Environment, Completion> visitIfStmt(Stmt.If stmt) {
+    Function<Environment, Object> condition = compile(stmt.condition);
+    Function<Environment, Completion> thenBranch = compile(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      return environment -> {
+        if (Interpreter.isTruthy(condition.apply(environment))) {
+          return thenBranch.apply(environment);
+        }
+        return Completion.NORMAL;
+      };
+    }
+
+    Function<Environment, Completion> elseBranch = compile(stmt.elseBranch);
+    return environment -> {
+      if (Interpreter.isTruthy(condition.apply(environment))) {
+        return thenBranch.apply(environment);
+      }
+      return elseBranch.apply(environment);
+    };
+  }
+
+  @Override
+  public Function<Environment, Completion> visitPrintStmt(Stmt.Print stmt) {
+    Function<Environment, Object> expression = compile(stmt.expression);
+    return environment -> {
+      System.out.println(Interpreter.stringify(expression.apply(environment)));
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Function<Environment, Completion> visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return environment -> {
+        interpreter.returnValue = null;
+        return Completion.RETURN;
+      };
+    }
+
+    Function<Environment, Object> value = compile(stmt.value);
+    return environment -> {
+      interpreter.returnValue = value.apply(environment);
+      return Completion.RETURN;
+    };
+  }
+
+  @Override
+  public Function<Environment, Completion> visitVarStmt(Stmt.Var stmt) {
+    Function<Environment, Object> value =
+        stmt.initializer == null ? environment -> null : compile(stmt.initializer);
+    return define(stmt.name, stmt.slot, stmt.inCell, value);
+  }
+
+  @Override
+  public Function<Environment, Completion> visitWhileStmt(Stmt.While stmt) {
+    Function<Environment, Object> condition = compile(stmt.condition);
+    Function<Environment, Completion> body = compile(stmt.body);
+    return environment -> {
+      while (Interpreter.isTruthy(condition.apply(environment))) {
+        if (body.apply(environment) == Completion.RETURN) {
+          return Completion.RETURN;
+        }
+      }
+      return Completion.NORMAL;
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitAssignExpr(Expr.Assign expr) {
+    Function<Environment, Object> value = compile(expr.value);
+
+    int depth = expr.depth;
+    int slot = expr.slot;
+    if (expr.inCell) {
+      return environment -> {
+        Object result = value.apply(environment);
+        ((Cell) environment.getAt(depth, slot)).value = result;
+        return result;
+      };
+    }
+
+    if (depth != -1) {
+      return environment -> {
+        Object result = value.apply(environment);
+        environment.assignAt(depth, slot, result);
+        return result;
+      };
+    }
+
+    Token name = expr.name;
+    Cell global = globals.cell(name.lexeme);
+    return environment -> {
+      Object result = value.apply(environment);
+      Environment.assign(global, name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitBinaryExpr(Expr.Binary expr) {
+    Function<Environment, Object> left = compile(expr.left);
+    Function<Environment, Object> right = compile(expr.right);
+    Token operator = expr.operator;
+
+    if (TypeInference.isProven(expr)) {
+      Function<Environment, Object> proven = provenNumbers(operator, left, right);
+      if (proven != null) {
+        return proven;
+      }
+    }
+
+    // Each operator gets its own closure with the common, well-typed case
+    // inlined. Anything else falls back to BinaryNode.generic, which also
+    // reports the type errors.
+    switch (operator.type) {
+      case BANG_EQUAL:
+        return environment -> !Interpreter.isEqual(left.apply(environment), right.apply(environment));
+      case EQUAL_EQUAL:
+        return environment -> Interpreter.isEqual(left.apply(environment), right.apply(environment));
+      case GREATER:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a > (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case GREATER_EQUAL:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a >= (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case LESS:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a < (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case LESS_EQUAL:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a <= (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case MINUS:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a - (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case PLUS:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a + (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case SLASH:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a / (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+      case STAR:
+        return environment -> {
+          Object a = left.apply(environment);
+          Object b = right.apply(environment);
+          if (a instanceof Double && b instanceof Double) {
+            return (double) a * (double) b;
+          }
+          return BinaryNode.generic(operator, a, b);
+        };
+    }
+
+    // Unreachable.
+    return environment -> null;
+  }
+
+  // The closure for an operator whose operands TypeInference proved are
+  // numbers, which doesn't check them. Returns null for equality, which
+  // never checks anything.
+  private static Function<Environment, Object> provenNumbers(Token operator,
+      Function<Environment, Object> left, Function<Environment, Object> right) {
+    switch (operator.type) {
+      case GREATER:
+        return environment ->
+            (double) left.apply(environment) > (double) right.apply(environment);
+      case GREATER_EQUAL:
+        return environment ->
+            (double) left.apply(environment) >= (double) right.apply(environment);
+      case LESS:
+        return environment ->
+            (double) left.apply(environment) < (double) right.apply(environment);
+      case LESS_EQUAL:
+        return environment ->
+            (double) left.apply(environment) <= (double) right.apply(environment);
+      case MINUS:
+        return environment ->
+            (double) left.apply(environment) - (double) right.apply(environment);
+      case PLUS:
+        return environment ->
+            (double) left.apply(environment) + (double) right.apply(environment);
+      case SLASH:
+        return environment ->
+            (double) left.apply(environment) / (double) right.apply(environment);
+      case STAR:
+        return environment ->
+            (double) left.apply(environment) * (double) right.apply(environment);
+      default:
+        return null;
+    }
+  }
+
+  // Evaluates a call's arguments, checks the callee, and calls it. The callee
+  // and, for method calls, the unbound method and receiver are worked out
+  // first by the code for the kind of callee.
+  private interface Invoker {
+    Object invoke(Object callee, LoxFunction method, LoxInstance receiver,
+        Environment environment);
+  }
+
+  @Override
+  public Function<Environment, Object> visitCallExpr(Expr.Call expr) {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Function<Environment, Object>[] arguments = new Function[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    Invoker call = invoker(arguments, expr.paren, expr.site, expr.isTailCall);
+
+    // Method calls pass the receiver along instead of binding the method,
+    // as in Interpreter.visitCallExpr.
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Function<Environment, Object> object = compile(get.object);
+      Token name = get.name;
+      PropertyCache cache = get.cache;
+      return environment -> {
+        Object instance = object.apply(environment);
+        if (!(instance instanceof LoxInstance)) {
+          throw new RuntimeError(name, "Only instances have properties.");
+        }
+
+        LoxInstance receiver = (LoxInstance) instance;
+        LoxFunction method = (LoxFunction) cache.method(receiver, name);
+        Object callee = method != null ? method : cache.get(receiver, name);
+        return call.invoke(callee, method, receiver, environment);
+      };
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+      int depth = superExpr.depth;
+      int slot = superExpr.slot;
+      Token name = superExpr.method;
+      Function<Environment, Object> receiverCode = compile(superExpr.receiver);
+      return environment -> {
+        LoxInstance receiver = (LoxInstance) receiverCode.apply(environment);
+        LoxFunction method = superMethod(environment, depth, slot, name);
+        return call.invoke(method, method, receiver, environment);
+      };
+    }
+
+    Function<Environment, Object> callee = compile(expr.callee);
+    return environment -> call.invoke(callee.apply(environment), null, null, environment);
+  }
+
+  // Pick how a call passes its arguments. Calls with up to three use the
+  // callee's fixed-arity entry point, so they don't allocate an argument
+  // array. Tail calls go through Interpreter.tailCall, which leaves calls to
+  // Lox functions for the caller to make.
+  private Invoker invoker(Function<Environment, Object>[] arguments, Token paren,
+      CallSite site, boolean tail) {
+    if (tail) {
+      return (callee, method, receiver, environment) -> {
+        Object[] values = evaluateArguments(arguments, environment);
+        LoxCallable function = site.check(callee, values.length, paren);
+        return interpreter.tailCall(function, method != null ? receiver : null, values);
+      };
+    }
+
+    switch (arguments.length) {
+      case 0:
+        return (callee, method, receiver, environment) -> {
+          LoxCallable function = site.check(callee, 0, paren);
+          return method != null
+              ? method.callMethod0(interpreter, receiver)
+              : function.call0(interpreter);
+        };
+      case 1: {
+        Function<Environment, Object> first = arguments[0];
+        return (callee, method, receiver, environment) -> {
+          Object a = first.apply(environment);
+          LoxCallable function = site.check(callee, 1, paren);
+          return method != null
+              ? method.callMethod1(interpreter, receiver, a)
+              : function.call1(interpreter, a);
+        };
+      }
+      case 2: {
+        Function<Environment, Object> first = arguments[0];
+        Function<Environment, Object> second = arguments[1];
+        return (callee, method, receiver, environment) -> {
+          Object a = first.apply(environment);
+          Object b = second.apply(environment);
+          LoxCallable function = site.check(callee, 2, paren);
+          return method != null
+              ? method.callMethod2(interpreter, receiver, a, b)
+              : function.call2(interpreter, a, b);
+        };
+      }
+      case 3: {
+        Function<Environment, Object> first = arguments[0];
+        Function<Environment, Object> second = arguments[1];
+        Function<Environment, Object> third = arguments[2];
+        return (callee, method, receiver, environment) -> {
+          Object a = first.apply(environment);
+          Object b = second.apply(environment);
+          Object c = third.apply(environment);
+          LoxCallable function = site.check(callee, 3, paren);
+          return method != null
+              ? method.callMethod3(interpreter, receiver, a, b, c)
+              : function.call3(interpreter, a, b, c);
+        };
+      }
+      default:
+        return (callee, method, receiver, environment) -> {
+          Object[] values = evaluateArguments(arguments, environment);
+          LoxCallable function = site.check(callee, values.length, paren);
+          return method != null
+              ? method.callMethod(interpreter, receiver, values)
+              : function.call(interpreter, values);
+        };
+    }
+  }
+
+  private static Object[] evaluateArguments(Function<Environment, Object>[] arguments,
+      Environment environment) {
+    Object[] values = new Object[arguments.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = arguments[i].apply(environment);
+    }
+
+    return values;
+  }
+
+  @Override
+  public Function<Environment, Object> visitGetExpr(Expr.Get expr) {
+    Function<Environment, Object> object = compile(expr.object);
+    Token name = expr.name;
+    PropertyCache cache = expr.cache;
+    return environment -> {
+      Object instance = object.apply(environment);
+      if (instance instanceof LoxInstance) {
+        return cache.get((LoxInstance) instance, name);
+      }
+
+      throw new RuntimeError(name, "Only instances have properties.");
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public Function<Environment, Object> visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return environment -> value;
+  }
+
+  @Override
+  public Function<Environment, Object> visitLogicalExpr(Expr.Logical expr) {
+    Function<Environment, Object> left = compile(expr.left);
+    Function<Environment, Object> right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) {
+      return environment -> {
+        Object value = left.apply(environment);
+        return Interpreter.isTruthy(value) ? value : right.apply(environment);
+      };
+    }
+
+    return environment -> {
+      Object value = left.apply(environment);
+      return !Interpreter.isTruthy(value) ? value : right.apply(environment);
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitSetExpr(Expr.Set expr) {
+    Function<Environment, Object> object = compile(expr.object);
+    Function<Environment, Object> value = compile(expr.value);
+    Token name = expr.name;
+    PropertyCache cache = expr.cache;
+    return environment -> {
+      Object instance = object.apply(environment);
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields");
+      }
+
+      Object result = value.apply(environment);
+      cache.set((LoxInstance) instance, name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitSuperExpr(Expr.Super expr) {
+    int depth = expr.depth;
+    int slot = expr.slot;
+    Token method = expr.method;
+    Function<Environment, Object> receiver = compile(expr.receiver);
+    return environment -> {
+      LoxInstance object = (LoxInstance) receiver.apply(environment);
+      return superMethod(environment, depth, slot, method).bind(object);
+    };
+  }
+
+  private static LoxFunction superMethod(Environment environment, int depth, int slot,
+      Token name) {
+    LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+    LoxFunction method = superclass.findMethod(name.lexeme);
+
+    if (method == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    return method;
+  }
+
+  @Override
+  public Function<Environment, Object> visitThisExpr(Expr.This expr) {
+    return lookUpVariable(expr.keyword, expr.depth, expr.slot, false);
+  }
+
+  @Override
+  public Function<Environment, Object> visitUnaryExpr(Expr.Unary expr) {
+    Function<Environment, Object> right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.BANG) {
+      return environment -> !Interpreter.isTruthy(right.apply(environment));
+    }
+
+    if (expr.right.type == TypeInference.NUMBER) {
+      return environment -> -(double) right.apply(environment);
+    }
+
+    Token operator = expr.operator;
+    return environment -> {
+      Object value = right.apply(environment);
+      if (value instanceof Double) {
+        return -(double) value;
+      }
+
+      throw new RuntimeError(operator, "Operand must be a number.");
+    };
+  }
+
+  @Override
+  public Function<Environment, Object> visitVariableExpr(Expr.Variable expr) {
+    return lookUpVariable(expr.name, expr.depth, expr.slot, expr.inCell);
+  }
+
+  private Function<Environment, Object> lookUpVariable(Token name, int depth, int slot,
+      boolean inCell) {
+    if (inCell) {
+      return environment -> ((Cell) environment.getAt(depth, slot)).value;
+    }
+
+    if (depth != -1) {
+      return environment -> environment.getAt(depth, slot);
+    }
+
+    // A global's Cell is found once, here, and stays the same however many
+    // times the global is redefined.
+    Cell global = globals.cell(name.lexeme);
+    return environment -> Environment.get(global, name);
+  }
+}
@@ -0,0 +1,10 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished running. A return statement doesn't unwind the
+// Java stack with an exception: it stores its value in the Interpreter and
+// completes with RETURN, and every enclosing block and loop stops and passes
+// that along until it reaches the function call.
+enum Completion {
+  NORMAL,
+  RETURN
+}
@@ -0,0 +1,205 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// A while loop that counts a local variable up or down to a bound, which is
+// what the Parser makes of a numeric for loop:
+//
+//   for (var i = 0; i < n; i = i + 1) body
+//
+// becomes a block declaring i around "while (i < n) { body i = i + 1; }".
+// Run as written, every iteration evaluates the comparison, reads i back out
+// of its slot, unboxes it and visits the increment. When the loop has the
+// right shape, the Peephole pass attaches one of these to it, and the
+// Interpreter keeps i in a primitive double instead. If the body reads i,
+// each new value is boxed and stored in i's slot before the body runs. If
+// not, i is only stored once, when the loop ends, so the code after the
+// loop sees it in its slot as usual.
+//
+// The shape is:
+//
+// - The condition compares a local, the induction variable, with a number
+//   literal or a local, the bound, using <, <=, > or >=.
+// - The body is a block without an Environment of its own, whose last
+//   statement adds a number literal to the induction variable or subtracts
+//   one from it.
+// - Nothing else in the body assigns to either variable, and neither lives
+//   in a Cell. Closures can only change a variable they captured if it's in
+//   a Cell, so that also rules out the body changing them through a call.
+//
+// Whether the variables actually hold numbers is only known when the loop
+// starts. If either doesn't, the loop runs as a plain while loop, which
+// reports the error just as it always has. Once the loop is running, the
+// body can't change either of them, so there's nothing to check again.
+final class CountedLoop {
+  private final Stmt.While loop;
+  // The induction variable.
+  private final int depth;
+  private final int slot;
+  private final BinaryNode.Comparison comparison;
+  // The bound is either a local, or a constant when that's null.
+  private final Expr.Variable bound;
+  private final double constant;
+  private final double step;
+  // The body, without the increment at the end.
+  private final Stmt[] body;
+  // Whether the body reads the induction variable, so it needs to be stored
+  // on every iteration.
+  private final boolean bodyReads;
+
+  private CountedLoop(Stmt.While loop, Expr.Variable variable, TokenType comparison,
+      Expr bound, double step, List<Stmt> body, boolean bodyReads) {
+    this.loop = loop;
+    this.depth = variable.depth;
+    this.slot = variable.slot;
+    this.comparison = BinaryNode.Comparison.of(comparison);
+    if (bound instanceof Expr.Variable) {
+      this.bound = (Expr.Variable) bound;
+      this.constant = 0;
+    } else {
+      this.bound = null;
+      this.constant = (double) ((Expr.Literal) bound).value;
+    }
+    this.step = step;
+    this.body = body.toArray(new Stmt[0]);
+    this.bodyReads = bodyReads;
+  }
+
+  // Make a counted loop for the given while loop, or return null if it
+  // doesn't have the right shape. assignments are all the assignments in the
+  // loop's condition and body, and reads all the variables the body reads.
+  static CountedLoop match(Stmt.While loop, List<Expr.Assign> assignments,
+      List<Expr.Variable> reads) {
+    if (!(loop.condition instanceof Expr.Binary) || !(loop.body instanceof Stmt.Block)) {
+      return null;
+    }
+
+    Expr.Binary condition = (Expr.Binary) loop.condition;
+    TokenType comparison = condition.operator.type;
+    if (comparison != TokenType.GREATER && comparison != TokenType.GREATER_EQUAL
+        && comparison != TokenType.LESS && comparison != TokenType.LESS_EQUAL) {
+      return null;
+    }
+
+    if (!isLocal(condition.left) || ((Expr.Variable) condition.left).depth < 0) {
+      return null;
+    }
+    Expr.Variable variable = (Expr.Variable) condition.left;
+
+    Expr bound = condition.right;
+    boolean constantBound = bound instanceof Expr.Literal
+        && ((Expr.Literal) bound).value instanceof Double;
+    if (!constantBound && !isLocal(bound)) {
+      return null;
+    }
+
+    // The increment has to be the last thing the body does.
+    Stmt.Block block = (Stmt.Block) loop.body;
+    if (block.hasEnvironment || block.statements.isEmpty()) {
+      return null;
+    }
+
+    Stmt last = block.statements.get(block.statements.size() - 1);
+    if (!(last instanceof Stmt.Expression)
+        || !(((Stmt.Expression) last).expression instanceof Expr.Assign)) {
+      return null;
+    }
+
+    Expr.Assign increment = (Expr.Assign) ((Stmt.Expression) last).expression;
+    if (!isSame(increment, variable) || !(increment.value instanceof Expr.Binary)) {
+      return null;
+    }
+
+    Expr.Binary sum = (Expr.Binary) increment.value;
+    TokenType operator = sum.operator.type;
+    if ((operator != TokenType.PLUS && operator != TokenType.MINUS)
+        || !(sum.left instanceof Expr.Variable)
+        || !isSame((Expr.Variable) sum.left, variable)
+        || !(sum.right instanceof Expr.Literal)
+        || !(((Expr.Literal) sum.right).value instanceof Double)) {
+      return null;
+    }
+
+    double step = (double) ((Expr.Literal) sum.right).value;
+    if (operator == TokenType.MINUS) {
+      step = -step;
+    }
+
+    // Go by name: a variable in a nested scope or function that shadows
+    // one of them only makes this give up when it didn't have to.
+    for (Expr.Assign assignment : assignments) {
+      if (assignment == increment) {
+        continue;
+      }
+
+      String name = assignment.name.lexeme;
+      if (name.equals(variable.name.lexeme)
+          || (!constantBound && name.equals(((Expr.Variable) bound).name.lexeme))) {
+        return null;
+      }
+    }
+
+    // Reading i in the increment doesn't count, since the loop runs that
+    // itself.
+    boolean bodyReads = false;
+    for (Expr.Variable read : reads) {
+      if (read != sum.left && read.name.lexeme.equals(variable.name.lexeme)) {
+        bodyReads = true;
+        break;
+      }
+    }
+
+    return new CountedLoop(loop, variable, comparison, bound, step,
+        block.statements.subList(0, block.statements.size() - 1), bodyReads);
+  }
+
+  Completion execute(Interpreter interpreter) {
+    Object start = interpreter.getLocal(depth, slot);
+    Object limit = bound == null ? constant : interpreter.getLocal(bound.depth, bound.slot);
+    if (!(start instanceof Double) || !(limit instanceof Double)) {
+      return interpreter.executeWhile(loop);
+    }
+
+    FusedNode.executed(FusedNode.Kind.COUNTED_LOOP);
+    double i = (double) start;
+    double n = (double) limit;
+    while (comparison.apply(i, n)) {
+      for (Stmt statement : body) {
+        if (interpreter.execute(statement) == Completion.RETURN) {
+          return Completion.RETURN;
+        }
+      }
+
+      i += step;
+      if (bodyReads) {
+        interpreter.setLocal(depth, slot, i);
+      }
+    }
+
+    if (!bodyReads) {
+      interpreter.setLocal(depth, slot, i);
+    }
+    return Completion.NORMAL;
+  }
+
+  // A local variable in a slot of its own, or one captured from an
+  // enclosing function that nothing ever assigns.
+  private static boolean isLocal(Expr expr) {
+    if (!(expr instanceof Expr.Variable)) {
+      return false;
+    }
+
+    Expr.Variable variable = (Expr.Variable) expr;
+    return variable.depth != -1 && !variable.inCell;
+  }
+
+  private static boolean isSame(Expr.Variable variable, Expr.Variable other) {
+    return variable.depth == other.depth && variable.slot == other.slot
+        && variable.name.lexeme.equals(other.name.lexeme);
+  }
+
+  private static boolean isSame(Expr.Assign assign, Expr.Variable variable) {
+    return assign.depth == variable.depth && assign.slot == variable.slot
+        && assign.name.lexeme.equals(variable.name.lexeme);
+  }
+}
@@ -4,17 +4,53 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
+  private static final Object[] EMPTY = new Object[0];
+
+  // The value of a global's Cell before the global is defined.
+  private static final Object UNDEFINED = new Object();
+
+  // The depth the Resolver gives a variable that the running function
+  // captured from an enclosing one. Its slot is an index into captures.
+  static final int CAPTURED = -2;
+
+  // The scope this one is nested in, within the same function. A function's
+  // own scope has none: it reaches variables from enclosing functions only
+  // through its captures, so calling it doesn't keep their scopes alive.
   final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  // What the running function captured when it was declared, shared by
+  // every scope in its body.
+  final Object[] captures;
+  // Only the global scope is keyed by name. Globals are late bound, so the
+  // Resolver can't know ahead of time which ones will exist. Each name maps
+  // to a Cell that never changes, so uses can keep it.
+  private final Map<String, Cell> values;
+  // Local scopes store their variables in slots assigned by the Resolver.
+  // The Resolver also works out how many slots the scope needs, so the array
+  // never has to grow.
+  private final Object[] slots;
 
   // no-argument constructor for the global scope.
   Environment() {
     enclosing = null;
+    captures = EMPTY;
+    values = new HashMap<>();
+    slots = EMPTY;
   }
 
-  // argument constructor for the local scope.
-  Environment(Environment enclosing) {
+  // argument constructor for a block scope with the given number of slots.
+  Environment(Environment enclosing, int size) {
     this.enclosing = enclosing;
+    this.captures = enclosing.captures;
+    values = null;
+    slots = size == 0 ? EMPTY : new Object[size];
+  }
+
+  // Constructor for the scope of a function call.
+  Environment(Object[] captures, int size) {
+    this.enclosing = null;
+    this.captures = captures;
+    values = null;
+    slots = size == 0 ? EMPTY : new Object[size];
   }
 
   // Variable definition — bind a variable name to a particular value.
@@ -22,18 +58,39 @@ public class Environment {
   // of the current name already exists. This is a semantic choice allowing
   // for variables to be arbitarily overriden.
   void define(String name, Object value) {
-    values.put(name, value);
+    cell(name).value = value;
   }
 
-  // Variable lookup — find the value associated with a variable.
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+  // Find the Cell for a global, adding an undefined one if the global hasn't
+  // been declared yet, so a use can hold on to it before the declaration
+  // runs.
+  Cell cell(String name) {
+    Cell cell = values.get(name);
+    if (cell == null) {
+      cell = new Cell(UNDEFINED);
+      values.put(name, cell);
     }
 
-    // Lookup the variable name in enclosing scopes.
-    if (enclosing != null) {
-      return enclosing.get(name);
+    return cell;
+  }
+
+  // Local variable definition — the variable goes in the slot the Resolver
+  // handed out when it saw the declaration. A declaration in a loop body
+  // that shares its enclosing scope's Environment runs again on every
+  // iteration, and simply overwrites the slot.
+  void define(int slot, Object value) {
+    slots[slot] = value;
+  }
+
+  // Variable lookup — find the value associated with a global variable.
+  Object get(Token name) {
+    return get(cell(name.lexeme), name);
+  }
+
+  static Object get(Cell global, Token name) {
+    Object value = global.value;
+    if (value != UNDEFINED) {
+      return value;
     }
 
     // Throw a RuntimeError on undefined variables. We want to allow programs
@@ -42,8 +99,12 @@ public class Environment {
     throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
   }
 
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  Object getAt(int distance, int slot) {
+    if (distance == CAPTURED) {
+      return captures[slot];
+    }
+
+    return ancestor(distance).slots[slot];
   }
 
   Environment ancestor(int distance) {
@@ -57,25 +118,37 @@ public class Environment {
   }
 
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
-    }
+    assign(cell(name.lexeme), name, value);
+  }
 
-    // If the variable being assigned to isn't in this environment,
-    // check enclosing environments.
-    if (enclosing != null) {
-      enclosing.assign(name, value);
+  static void assign(Cell global, Token name, Object value) {
+    if (global.value != UNDEFINED) {
+      global.value = value;
       return;
     }
 
-    System.out.println("About to throw in assign.");
-
     // Throw an error if we attempt to assign to an undefined variable.
     throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
   }
 
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  void assignAt(int distance, int slot, Object value) {
+    ancestor(distance).slots[slot] = value;
+  }
+
+  // Collect what a function declared in this scope captures: for each
+  // variable, either a slot of a scope in this function, or one of this
+  // function's own captures. Variables that live in a Cell are collected as
+  // the Cell itself.
+  Object[] capture(int[] depths, int[] slots) {
+    if (depths.length == 0) {
+      return EMPTY;
+    }
+
+    Object[] captured = new Object[depths.length];
+    for (int i = 0; i < depths.length; i++) {
+      captured[i] = getAt(depths[i], slots[i]);
+    }
+
+    return captured;
   }
 }
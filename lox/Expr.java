@@ -2,7 +2,20 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Expr {
+abstract sealed class Expr {
+  static final int ASSIGN = 0;
+  static final int BINARY = 1;
+  static final int CALL = 2;
+  static final int GET = 3;
+  static final int GROUPING = 4;
+  static final int LITERAL = 5;
+  static final int LOGICAL = 6;
+  static final int SET = 7;
+  static final int SUPER = 8;
+  static final int THIS = 9;
+  static final int UNARY = 10;
+  static final int VARIABLE = 11;
+
   interface Visitor<R> {
     R visitAssignExpr(Assign expr);
     R visitBinaryExpr(Binary expr);
@@ -18,8 +31,9 @@ abstract class Expr {
     R visitVariableExpr(Variable expr);
   }
 
-  static class Assign extends Expr {
+  static final class Assign extends Expr {
     Assign(Token name, Expr value) {
+      super(ASSIGN);
       this.name = name;
       this.value = value;
     }
@@ -31,10 +45,17 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot;
+    boolean inCell;
+    Cell global;
+    FusedNode fused;
   }
 
-  static class Binary extends Expr {
+  static final class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -48,10 +69,13 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    BinaryNode node = new BinaryNode.Uninitialized(this);
   }
 
-  static class Call extends Expr {
+  static final class Call extends Expr {
     Call(Expr callee, Token paren, List<Expr> arguments) {
+      super(CALL);
       this.callee = callee;
       this.paren = paren;
       this.arguments = arguments;
@@ -65,10 +89,15 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    boolean isTailCall;
+    CallSite site = new CallSite();
+    InlinedCall inlined;
   }
 
-  static class Get extends Expr {
+  static final class Get extends Expr {
     Get(Expr object, Token name) {
+      super(GET);
       this.object = object;
       this.name = name;
     }
@@ -80,10 +109,15 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    PropertyCache cache = new PropertyCache("get");
+    FusedNode fused;
+    SharedGet shared;
   }
 
-  static class Grouping extends Expr {
+  static final class Grouping extends Expr {
     Grouping(Expr expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -95,8 +129,9 @@ abstract class Expr {
     final Expr expression;
   }
 
-  static class Literal extends Expr {
+  static final class Literal extends Expr {
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -108,8 +143,9 @@ abstract class Expr {
     final Object value;
   }
 
-  static class Logical extends Expr {
+  static final class Logical extends Expr {
     Logical(Expr left, Token operator, Expr right) {
+      super(LOGICAL);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -125,8 +161,9 @@ abstract class Expr {
     final Expr right;
   }
 
-  static class Set extends Expr {
+  static final class Set extends Expr {
     Set(Expr object, Token name, Expr value) {
+      super(SET);
       this.object = object;
       this.name = name;
       this.value = value;
@@ -140,10 +177,13 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    PropertyCache cache = new PropertyCache("set");
   }
 
-  static class Super extends Expr {
+  static final class Super extends Expr {
     Super(Token keyword, Token method) {
+      super(SUPER);
       this.keyword = keyword;
       this.method = method;
     }
@@ -155,10 +195,15 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int depth = -1;
+    int slot;
+    Expr.This receiver;
   }
 
-  static class This extends Expr {
+  static final class This extends Expr {
     This(Token keyword) {
+      super(THIS);
       this.keyword = keyword;
     }
 
@@ -168,10 +213,14 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int depth = -1;
+    int slot;
   }
 
-  static class Unary extends Expr {
+  static final class Unary extends Expr {
     Unary(Token operator, Expr right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -185,8 +234,9 @@ abstract class Expr {
     final Expr right;
   }
 
-  static class Variable extends Expr {
+  static final class Variable extends Expr {
     Variable(Token name) {
+      super(VARIABLE);
       this.name = name;
     }
 
@@ -196,6 +246,19 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot;
+    boolean inCell;
+    Cell global;
+  }
+
+  int type = TypeInference.ANY;
+
+  final int kind;
+
+  private Expr(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
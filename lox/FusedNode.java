@@ -0,0 +1,149 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// A superinstruction: a few AST nodes that often appear together, run by the
+// Interpreter as a single step. The Peephole pass finds the patterns and
+// installs a fused node on the expression at the top of each one. The
+// Interpreter runs that node instead of visiting the expression and its
+// operands one at a time.
+//
+// Fused comparisons are a kind of BinaryNode, since binary expressions
+// already run through one, and counted loops are a CountedLoop. Every other
+// fused node is one of the classes here.
+abstract class FusedNode {
+  enum Kind {
+    INCREMENT_LOCAL("increment local by constant"),
+    COMPARE_LOCAL("compare local to constant"),
+    GET_FIELD_OF_THIS("get field of this"),
+    GET_CHAIN("get property chain"),
+    COUNTED_LOOP("counted loop");
+
+    final String description;
+
+    Kind(String description) {
+      this.description = description;
+    }
+  }
+
+  // Set by the --stats option.
+  static boolean collectStats = false;
+  // For each kind, how many were installed and how many times they ran, and
+  // how many of those installed a counted loop took over.
+  private static final long[] installed = new long[Kind.values().length];
+  private static final long[] executed = new long[Kind.values().length];
+  private static final long[] absorbed = new long[Kind.values().length];
+
+  abstract Object execute(Interpreter interpreter);
+
+  static void installed(Kind kind) {
+    installed[kind.ordinal()]++;
+  }
+
+  // Count a node that's part of a counted loop. It only runs if the loop
+  // falls back to running as written.
+  static void absorbed(Kind kind) {
+    installed[kind.ordinal()]--;
+    absorbed[kind.ordinal()]++;
+  }
+
+  static void executed(Kind kind) {
+    if (collectStats) {
+      executed[kind.ordinal()]++;
+    }
+  }
+
+  // Print how many of each superinstruction the Peephole pass installed,
+  // and how often they ran.
+  static void report(PrintStream out) {
+    out.println("Superinstructions:");
+    for (Kind kind : Kind.values()) {
+      out.printf("  %s: %d sites, %d runs", kind.description,
+          installed[kind.ordinal()], executed[kind.ordinal()]);
+      if (absorbed[kind.ordinal()] > 0) {
+        out.printf(", plus %d absorbed into counted loops", absorbed[kind.ordinal()]);
+      }
+      out.println();
+    }
+  }
+
+  // An assignment that adds a number literal to the local it assigns, or
+  // subtracts one from it, like "i = i + 1".
+  static final class IncrementLocal extends FusedNode {
+    private final int depth;
+    private final int slot;
+    private final Token operator;
+    private final Object constant;
+    private final double delta;
+
+    IncrementLocal(Expr.Assign expr, Token operator, double constant) {
+      this.depth = expr.depth;
+      this.slot = expr.slot;
+      this.operator = operator;
+      this.constant = constant;
+      this.delta = operator.type == TokenType.MINUS ? -constant : constant;
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      executed(Kind.INCREMENT_LOCAL);
+      Object value = interpreter.getLocal(depth, slot);
+      Object result = value instanceof Double
+          ? (double) value + delta
+          : BinaryNode.generic(operator, value, constant);
+      interpreter.setLocal(depth, slot, result);
+      return result;
+    }
+  }
+
+  // A property of "this", like "this.x" in a method.
+  static final class GetFieldOfThis extends FusedNode {
+    private final Expr.Get expr;
+    private final int depth;
+    private final int slot;
+
+    GetFieldOfThis(Expr.Get expr, Expr.This object) {
+      this.expr = expr;
+      this.depth = object.depth;
+      this.slot = object.slot;
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      executed(Kind.GET_FIELD_OF_THIS);
+      // "this" is always an instance.
+      LoxInstance instance = (LoxInstance) interpreter.getLocal(depth, slot);
+      return expr.cache.get(instance, expr.name);
+    }
+  }
+
+  // A chain of property gets on a variable or "this", like "a.b.c". Each
+  // get still goes through its own cache.
+  static final class GetChain extends FusedNode {
+    private final Expr base;
+    // From the innermost get, the one on the base, outwards.
+    private final Expr.Get[] gets;
+
+    GetChain(Expr base, Expr.Get[] gets) {
+      this.base = base;
+      this.gets = gets;
+    }
+
+    @Override
+    Object execute(Interpreter interpreter) {
+      executed(Kind.GET_CHAIN);
+      Object object = interpreter.evaluate(base);
+      for (Expr.Get get : gets) {
+        // If object is not a LoxInstance, throw a RuntimeError — we can only
+        // access properties on instances.
+        if (!(object instanceof LoxInstance)) {
+          throw new RuntimeError(get.name, "Only instances have properties.");
+        }
+
+        object = get.cache.get((LoxInstance) object, get.name);
+      }
+
+      return object;
+    }
+  }
+}
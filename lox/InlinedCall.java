@@ -0,0 +1,94 @@
+package com.craftinginterpreters.lox;
+
+// A call site with the body of the function it calls copied into it by the
+// Inliner. The copy is evaluated right in the caller's frame, so the call
+// needs no arguments array, no Environment, no executeBlock and no return
+// value passed back through the Interpreter.
+//
+// The Inliner only knows which declaration the call should reach, so every
+// run checks the guess first: that the global still holds a function from
+// that declaration, or that the method found on the receiver is one. If the
+// guard fails, the call is made as written.
+final class InlinedCall {
+  private final Expr.Call call;
+  private final Stmt.Function declaration;
+  // For a function, the Cell of the global it's called through.
+  private final Cell global;
+  // For a method, the callee, and the caller's slot to keep the receiver in
+  // while the body runs, or -1 if the body reads it from where it already is.
+  private final Expr.Get method;
+  private final int receiverSlot;
+  // The arguments the body can't read directly, with the caller's slots
+  // they're evaluated into, in the order the call evaluates them.
+  private final Expr[] arguments;
+  private final int[] slots;
+  // The callee's return expression, with its parameters, and "this" for a
+  // method, replaced by what the call passes.
+  final Expr body;
+
+  // The last function or method the guard accepted.
+  private LoxFunction function = null;
+  private boolean reportedFallback = false;
+
+  InlinedCall(Expr.Call call, Stmt.Function declaration, Cell global, Expr.Get method,
+      int receiverSlot, Expr[] arguments, int[] slots, Expr body) {
+    this.call = call;
+    this.declaration = declaration;
+    this.global = global;
+    this.method = method;
+    this.receiverSlot = receiverSlot;
+    this.arguments = arguments;
+    this.slots = slots;
+    this.body = body;
+  }
+
+  Object execute(Interpreter interpreter) {
+    if (method == null) {
+      if (!accepts(global.value)) {
+        return fallBack(interpreter);
+      }
+    } else {
+      // The receiver is a variable, so evaluating it again when falling
+      // back does no harm. Looking up the method fails for an undefined
+      // property exactly as the call itself would.
+      Object object = interpreter.evaluate(method.object);
+      if (!(object instanceof LoxInstance)
+          || !accepts(method.cache.method((LoxInstance) object, method.name))) {
+        return fallBack(interpreter);
+      }
+
+      if (receiverSlot >= 0) {
+        interpreter.setLocal(0, receiverSlot, object);
+      }
+    }
+
+    for (int i = 0; i < arguments.length; i++) {
+      interpreter.setLocal(0, slots[i], interpreter.evaluate(arguments[i]));
+    }
+
+    return interpreter.evaluate(body);
+  }
+
+  private boolean accepts(Object callee) {
+    if (callee == function) {
+      return callee != null;
+    }
+
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isDeclaredBy(declaration)) {
+      function = (LoxFunction) callee;
+      return true;
+    }
+
+    return false;
+  }
+
+  private Object fallBack(Interpreter interpreter) {
+    if (Inliner.trace && !reportedFallback) {
+      reportedFallback = true;
+      System.err.printf("[line %d] %s is no longer the inlined one; calling it instead.%n",
+          call.paren.line, declaration.name.lexeme);
+    }
+
+    return interpreter.executeCall(call);
+  }
+}
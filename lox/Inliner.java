@@ -0,0 +1,645 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Copies the bodies of small functions and methods into the calls to them,
+// for the tree-walking Interpreter. A function can be inlined if its body is
+// a single return statement whose expression has at most MAX_SIZE nodes, it
+// doesn't call itself, and it uses nothing but its parameters, "this" and
+// globals. That covers getters and helpers like "square(x)".
+//
+// Calls are matched to declarations by name, so the name has to be a safe
+// guess:
+//
+// - A function has to be declared at the top level, and its name never
+//   declared again or assigned there.
+// - A method's name has to belong to a single class, other than "init",
+//   and never be set as a field, which would shadow it. The receiver has to
+//   be a variable or "this", so the guard can evaluate it without side
+//   effects.
+//
+// At runtime InlinedCall checks the guess anyway, and makes the call as
+// written if it's wrong.
+//
+// Each parameter in the copy is replaced by its argument where reading the
+// argument again can't give a different value: a literal, or a local that
+// isn't in a Cell and that no later argument assigns. The body only runs
+// after every argument, so it would see the assignment the call doesn't.
+// Any other argument is evaluated once, before the body, into a new slot in
+// the caller's frame, and the copy reads the slot. The same goes for the
+// receiver of a method, which the call evaluates before any argument. At the
+// top level outside any block there is no frame, so calls there are only
+// inlined if they need no slots.
+//
+// Like the Peephole pass, this only annotates the tree. The copy hangs off
+// the call, so the JIT and every other engine still see the call itself.
+class Inliner implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // The most nodes the return expression of an inlined function can have.
+  static final int MAX_SIZE = 12;
+
+  // Set by the --trace-inlining option.
+  static boolean trace = false;
+
+  private final Environment globals;
+
+  // Functions declared at the top level, by name, and how many times each
+  // top-level name is declared or assigned.
+  private final Map<String, Stmt.Function> functions = new HashMap<>();
+  private final Map<String, Integer> bindings = new HashMap<>();
+  // Methods other than initializers, by name. A name that more than one class
+  // declares maps to null.
+  private final Map<String, Stmt.Function> methods = new HashMap<>();
+  // Every property name that is ever set.
+  private final Set<String> fields = new HashSet<>();
+
+  // Every call in the program, and the function or block with the
+  // Environment it runs in, or null for the global scope.
+  private final List<Expr.Call> calls = new ArrayList<>();
+  private final List<Stmt> frames = new ArrayList<>();
+  private Stmt frame = null;
+
+  // Why the function being checked can't be inlined, or null.
+  private String problem;
+
+  Inliner(Environment globals) {
+    this.globals = globals;
+  }
+
+  void inline(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Function) {
+        Stmt.Function function = (Stmt.Function) statement;
+        functions.put(function.name.lexeme, function);
+        bind(function.name);
+      } else if (statement instanceof Stmt.Var) {
+        bind(((Stmt.Var) statement).name);
+      } else if (statement instanceof Stmt.Class) {
+        bind(((Stmt.Class) statement).name);
+      }
+    }
+
+    // Find every call first, since a call can come before the declaration
+    // of what it calls, or a field set that rules it out.
+    walk(statements);
+
+    for (int i = 0; i < calls.size(); i++) {
+      inline(calls.get(i), frames.get(i));
+    }
+  }
+
+  private void bind(Token name) {
+    bindings.merge(name.lexeme, 1, Integer::sum);
+  }
+
+  private void inline(Expr.Call call, Stmt frame) {
+    Stmt.Function function;
+    Expr.Get method = null;
+    if (call.callee instanceof Expr.Variable && ((Expr.Variable) call.callee).depth == -1) {
+      String name = ((Expr.Variable) call.callee).name.lexeme;
+      function = functions.get(name);
+      if (function == null) {
+        return;
+      }
+
+      if (bindings.get(name) > 1) {
+        reject(call, name, "it is declared or assigned again");
+        return;
+      }
+    } else if (call.callee instanceof Expr.Get) {
+      method = (Expr.Get) call.callee;
+      String name = method.name.lexeme;
+      if (!methods.containsKey(name)) {
+        return;
+      }
+
+      function = methods.get(name);
+      if (function == null) {
+        reject(call, name, "more than one class declares it");
+        return;
+      }
+
+      if (fields.contains(name)) {
+        reject(call, name, "a field of the same name is set");
+        return;
+      }
+
+      if (!(method.object instanceof Expr.Variable) && !(method.object instanceof Expr.This)) {
+        reject(call, name, "the receiver is not a variable");
+        return;
+      }
+    } else {
+      return;
+    }
+
+    String name = function.name.lexeme;
+    if (call.arguments.size() != function.params.size()) {
+      reject(call, name, "the call passes the wrong number of arguments");
+      return;
+    }
+
+    if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)
+        || ((Stmt.Return) function.body.get(0)).value == null) {
+      reject(call, name, "its body is not a single return statement");
+      return;
+    }
+
+    Expr value = ((Stmt.Return) function.body.get(0)).value;
+    problem = null;
+    int size = size(value, function);
+    if (problem != null) {
+      reject(call, name, problem);
+      return;
+    }
+
+    if (size > MAX_SIZE) {
+      reject(call, name, size + " nodes, over the limit of " + MAX_SIZE);
+      return;
+    }
+
+    // What to put in place of each of the callee's slots: "this" for a
+    // method, then the parameters.
+    int first = function.isMethod ? 1 : 0;
+    Expr[] replacements = new Expr[first + function.params.size()];
+    List<Expr> arguments = new ArrayList<>();
+    List<Integer> slots = new ArrayList<>();
+    int temporaries = 0;
+
+    boolean receiverInSlot = false;
+    if (method != null) {
+      if (isStable(method.object, call.arguments, 0)) {
+        replacements[0] = method.object;
+      } else {
+        receiverInSlot = true;
+        temporaries++;
+      }
+    }
+
+    boolean[] stable = new boolean[call.arguments.size()];
+    for (int i = 0; i < stable.length; i++) {
+      stable[i] = isStable(call.arguments.get(i), call.arguments, i + 1);
+      if (!stable[i]) {
+        temporaries++;
+      }
+    }
+
+    if (temporaries > 0 && frame == null) {
+      reject(call, name, "its arguments need slots, and the global scope has none");
+      return;
+    }
+
+    int receiverSlot = -1;
+    if (receiverInSlot) {
+      receiverSlot = newSlot(frame);
+      replacements[0] = temporary(method.name, receiverSlot);
+    }
+
+    for (int i = 0; i < call.arguments.size(); i++) {
+      Expr argument = call.arguments.get(i);
+      if (stable[i]) {
+        replacements[first + i] = argument;
+      } else {
+        int slot = newSlot(frame);
+        arguments.add(argument);
+        slots.add(slot);
+        replacements[first + i] = temporary(function.params.get(i), slot);
+      }
+    }
+
+    int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++) {
+      slotArray[i] = slots.get(i);
+    }
+
+    Cell global = method == null ? globals.cell(name) : null;
+    call.inlined = new InlinedCall(call, function, global, method, receiverSlot,
+        arguments.toArray(new Expr[0]), slotArray,
+        copy(value, replacements, call.isTailCall));
+
+    if (trace) {
+      System.err.printf("[line %d] inlined %s (%d nodes)%n", call.paren.line, name, size);
+      if (receiverInSlot && isStable(method.object)) {
+        traceAssigned(call, method.object);
+      }
+      for (int i = 0; i < stable.length; i++) {
+        if (!stable[i] && isStable(call.arguments.get(i))) {
+          traceAssigned(call, call.arguments.get(i));
+        }
+      }
+    }
+  }
+
+  private static void traceAssigned(Expr.Call call, Expr variable) {
+    System.err.printf("[line %d]   %s is evaluated into a slot first: a later argument "
+        + "assigns it%n", call.paren.line, ((Expr.Variable) variable).name.lexeme);
+  }
+
+  private void reject(Expr.Call call, String name, String reason) {
+    if (trace) {
+      System.err.printf("[line %d] not inlined %s: %s%n", call.paren.line, name, reason);
+    }
+  }
+
+  // Whether the expression gives the same value however many times it's
+  // evaluated, and can't fail: a literal, "this", or a local that only its
+  // own function can assign.
+  private static boolean isStable(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.This) {
+      return true;
+    }
+
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      return variable.depth != -1 && !variable.inCell;
+    }
+
+    return false;
+  }
+
+  // Whether an argument, or the receiver, is stable and none of the arguments
+  // from the given one on assign it. A call in one of them can't: only its
+  // own function can assign a local that isn't in a Cell.
+  private static boolean isStable(Expr expr, List<Expr> arguments, int from) {
+    if (!isStable(expr)) {
+      return false;
+    }
+
+    if (expr instanceof Expr.Variable) {
+      for (int i = from; i < arguments.size(); i++) {
+        if (assigns(arguments.get(i), (Expr.Variable) expr)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Whether evaluating the expression can assign the local.
+  private static boolean assigns(Expr expr, Expr.Variable local) {
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        Expr.Assign assign = (Expr.Assign) expr;
+        return (assign.depth == local.depth && assign.slot == local.slot && !assign.inCell)
+            || assigns(assign.value, local);
+      }
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary) expr;
+        return assigns(binary.left, local) || assigns(binary.right, local);
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        if (assigns(call.callee, local)) {
+          return true;
+        }
+        for (Expr argument : call.arguments) {
+          if (assigns(argument, local)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      case Expr.GET:
+        return assigns(((Expr.Get) expr).object, local);
+      case Expr.GROUPING:
+        return assigns(((Expr.Grouping) expr).expression, local);
+      case Expr.LOGICAL: {
+        Expr.Logical logical = (Expr.Logical) expr;
+        return assigns(logical.left, local) || assigns(logical.right, local);
+      }
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        return assigns(set.object, local) || assigns(set.value, local);
+      }
+      case Expr.UNARY:
+        return assigns(((Expr.Unary) expr).right, local);
+      default:
+        return false;
+    }
+  }
+
+  // Add a slot to the Environment of the given function or block.
+  private static int newSlot(Stmt frame) {
+    if (frame instanceof Stmt.Function) {
+      return ((Stmt.Function) frame).frameSize++;
+    }
+
+    return ((Stmt.Block) frame).frameSize++;
+  }
+
+  private static Expr.Variable temporary(Token name, int slot) {
+    Expr.Variable variable = new Expr.Variable(name);
+    variable.depth = 0;
+    variable.slot = slot;
+    return variable;
+  }
+
+  // Count the nodes in a function's return expression, and record a problem
+  // if it uses anything the copy can't.
+  private int size(Expr expr, Stmt.Function function) {
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        Expr.Assign assign = (Expr.Assign) expr;
+        if (assign.depth != -1) {
+          problem = "it assigns to a parameter";
+        }
+        return 1 + size(assign.value, function);
+      }
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary) expr;
+        return 1 + size(binary.left, function) + size(binary.right, function);
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        if (callsItself(call, function)) {
+          problem = "it calls itself";
+        }
+
+        int size = 1 + size(call.callee, function);
+        for (Expr argument : call.arguments) {
+          size += size(argument, function);
+        }
+        return size;
+      }
+      case Expr.GET:
+        return 1 + size(((Expr.Get) expr).object, function);
+      case Expr.GROUPING:
+        return 1 + size(((Expr.Grouping) expr).expression, function);
+      case Expr.LOGICAL: {
+        Expr.Logical logical = (Expr.Logical) expr;
+        return 1 + size(logical.left, function) + size(logical.right, function);
+      }
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        return 1 + size(set.object, function) + size(set.value, function);
+      }
+      case Expr.SUPER:
+        problem = "it uses super";
+        return 1;
+      case Expr.UNARY:
+        return 1 + size(((Expr.Unary) expr).right, function);
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable) expr;
+        if (variable.depth != -1 && (variable.depth != 0 || variable.inCell)) {
+          problem = "it uses a variable from an enclosing function";
+        }
+        return 1;
+      }
+      default:
+        // A literal or "this".
+        return 1;
+    }
+  }
+
+  private static boolean callsItself(Expr.Call call, Stmt.Function function) {
+    String name = function.name.lexeme;
+    if (function.isMethod) {
+      return call.callee instanceof Expr.Get
+          && ((Expr.Get) call.callee).name.lexeme.equals(name);
+    }
+
+    return call.callee instanceof Expr.Variable
+        && ((Expr.Variable) call.callee).depth == -1
+        && ((Expr.Variable) call.callee).name.lexeme.equals(name);
+  }
+
+  // Copy a function's return expression for one call, replacing "this" and
+  // the parameters. The copy gets fresh nodes, so its operators and property
+  // caches specialize for this call alone. A call the body returns is only
+  // still a tail call if the inlined call was one.
+  private static Expr copy(Expr expr, Expr[] replacements, boolean isTailCall) {
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        // Always to a global.
+        Expr.Assign assign = (Expr.Assign) expr;
+        return new Expr.Assign(assign.name, copy(assign.value, replacements, false));
+      }
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary) expr;
+        return new Expr.Binary(copy(binary.left, replacements, false), binary.operator,
+            copy(binary.right, replacements, false));
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : call.arguments) {
+          arguments.add(copy(argument, replacements, false));
+        }
+
+        Expr.Call copy = new Expr.Call(copy(call.callee, replacements, false), call.paren,
+            arguments);
+        copy.isTailCall = call.isTailCall && isTailCall;
+        return copy;
+      }
+      case Expr.GET: {
+        Expr.Get get = (Expr.Get) expr;
+        return new Expr.Get(copy(get.object, replacements, false), get.name);
+      }
+      case Expr.GROUPING:
+        return new Expr.Grouping(
+            copy(((Expr.Grouping) expr).expression, replacements, false));
+      case Expr.LOGICAL: {
+        Expr.Logical logical = (Expr.Logical) expr;
+        return new Expr.Logical(copy(logical.left, replacements, false), logical.operator,
+            copy(logical.right, replacements, false));
+      }
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        return new Expr.Set(copy(set.object, replacements, false), set.name,
+            copy(set.value, replacements, false));
+      }
+      case Expr.THIS:
+        return replacements[0];
+      case Expr.UNARY: {
+        Expr.Unary unary = (Expr.Unary) expr;
+        return new Expr.Unary(unary.operator, copy(unary.right, replacements, false));
+      }
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable) expr;
+        // A global's node has nothing specific to the call site in it.
+        return variable.depth == -1 ? variable : replacements[variable.slot];
+      }
+      default:
+        // A literal.
+        return expr;
+    }
+  }
+
+  private void walk(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      walk(statement);
+    }
+  }
+
+  private void walk(Stmt stmt) {
+    if (stmt != null) {
+      stmt.accept(this);
+    }
+  }
+
+  private void walk(Expr expr) {
+    if (expr != null) {
+      expr.accept(this);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    Stmt enclosing = frame;
+    if (stmt.hasEnvironment) {
+      frame = stmt;
+    }
+
+    walk(stmt.statements);
+    frame = enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    walk(stmt.superclass);
+    for (Stmt.Function method : stmt.methods) {
+      String name = method.name.lexeme;
+      if (!name.equals("init")) {
+        // A second class with the same method name makes it ambiguous.
+        methods.put(name, methods.containsKey(name) ? null : method);
+      }
+
+      walk(method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    walk(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    Stmt enclosing = frame;
+    frame = stmt;
+    walk(stmt.body);
+    frame = enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    walk(stmt.condition);
+    walk(stmt.thenBranch);
+    walk(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    walk(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    walk(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    walk(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    walk(stmt.condition);
+    walk(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    if (expr.depth == -1) {
+      bind(expr.name);
+    }
+
+    walk(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    walk(expr.left);
+    walk(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    calls.add(expr);
+    frames.add(frame);
+
+    walk(expr.callee);
+    for (Expr argument : expr.arguments) {
+      walk(argument);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    walk(expr.object);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    walk(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    walk(expr.left);
+    walk(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    fields.add(expr.name.lexeme);
+    walk(expr.object);
+    walk(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    walk(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    return null;
+  }
+}
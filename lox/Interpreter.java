@@ -1,16 +1,22 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import com.craftinginterpreters.lox.Environment;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
   final Environment globals = new Environment();
   private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // The value of the return statement that ran last. It's only meaningful
+  // right after a statement completes with Completion.RETURN.
+  Object returnValue;
+  // A call in tail position that's waiting to be made, see tailCall.
+  LoxFunction tailFunction;
+  LoxInstance tailReceiver;
+  Object[] tailArguments;
 
   Interpreter() {
     globals.define("clock", new LoxCallable() {
@@ -20,7 +26,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
 
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+      }
+
+      @Override
+      public Object call0(Interpreter interpreter) {
         return (double) System.currentTimeMillis() / 1000.0;
       }
 
@@ -41,20 +52,142 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  // Run the program as a tree of closures compiled from the AST, instead of
+  // walking the AST itself.
+  void interpretCompiled(List<Stmt> statements) {
+    try {
+      for (Function<Environment, Completion> statement : new ClosureCompiler(this).compile(statements)) {
+        statement.apply(globals);
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  // Statements and expressions are dispatched with a single switch on the
+  // node's kind, which calls the visit method directly. Going through
+  // accept() measured no faster (see "make dispatch-benchmark"), and it puts
+  // two more Java frames on the stack for every node: accept() itself and
+  // the Visitor's generic bridge method. Every Lox call nests a statement
+  // and a few expressions, so those frames came out of how deep Lox code
+  // can recurse. The visit methods still make this a Visitor, for anything
+  // that wants to use accept().
+  Completion execute(Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        return visitBlockStmt((Stmt.Block) stmt);
+      case Stmt.CLASS:
+        return visitClassStmt((Stmt.Class) stmt);
+      case Stmt.EXPRESSION:
+        return visitExpressionStmt((Stmt.Expression) stmt);
+      case Stmt.FUNCTION:
+        return visitFunctionStmt((Stmt.Function) stmt);
+      case Stmt.IF:
+        return visitIfStmt((Stmt.If) stmt);
+      case Stmt.PRINT:
+        return visitPrintStmt((Stmt.Print) stmt);
+      case Stmt.RETURN:
+        return visitReturnStmt((Stmt.Return) stmt);
+      case Stmt.VAR:
+        return visitVarStmt((Stmt.Var) stmt);
+      case Stmt.WHILE:
+        return visitWhileStmt((Stmt.While) stmt);
+    }
+
+    // Unreachable.
+    return null;
   }
 
-  private Object evaluate(Expr expr) {
-    return expr.accept(this);
+  Object evaluate(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return visitAssignExpr((Expr.Assign) expr);
+      case Expr.BINARY:
+        return visitBinaryExpr((Expr.Binary) expr);
+      case Expr.CALL:
+        return visitCallExpr((Expr.Call) expr);
+      case Expr.GET:
+        return visitGetExpr((Expr.Get) expr);
+      case Expr.GROUPING:
+        return visitGroupingExpr((Expr.Grouping) expr);
+      case Expr.LITERAL:
+        return visitLiteralExpr((Expr.Literal) expr);
+      case Expr.LOGICAL:
+        return visitLogicalExpr((Expr.Logical) expr);
+      case Expr.SET:
+        return visitSetExpr((Expr.Set) expr);
+      case Expr.SUPER:
+        return visitSuperExpr((Expr.Super) expr);
+      case Expr.THIS:
+        return visitThisExpr((Expr.This) expr);
+      case Expr.UNARY:
+        return visitUnaryExpr((Expr.Unary) expr);
+      case Expr.VARIABLE:
+        return visitVariableExpr((Expr.Variable) expr);
+    }
+
+    // Unreachable.
+    return null;
+  }
+
+  // Evaluate an expression that's expected to produce a number without boxing
+  // it. Arithmetic nodes hand their result over as a primitive, so only the
+  // final result of a nested computation ever becomes a Double. Anything else
+  // is evaluated normally; if the value isn't a number after all, it comes
+  // back inside the UnexpectedResult.
+  double evaluateDouble(Expr expr) throws UnexpectedResult {
+    if (expr instanceof Expr.Binary) {
+      return ((Expr.Binary) expr).node.executeDouble(this);
+    }
+
+    return UnexpectedResult.expectDouble(evaluate(expr));
+  }
+
+  // Evaluate an expression that TypeInference proved always produces a
+  // number, without checking that it did.
+  double evaluateNumber(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      try {
+        return ((Expr.Binary) expr).node.executeDouble(this);
+      } catch (UnexpectedResult unexpected) {
+        // Only a node that found operands it didn't expect hands back a
+        // boxed result, and it's still a number.
+        return (double) unexpected.result;
+      }
+    }
+
+    return (double) evaluate(expr);
+  }
+
+  // Evaluate the condition of an if or while. Comparisons answer with a
+  // primitive boolean instead of a boxed one.
+  private boolean evaluateCondition(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      return ((Expr.Binary) expr).node.executeCondition(this);
+    }
+
+    if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary) expr;
+      if (unary.operator.type == TokenType.BANG) {
+        return !evaluateCondition(unary.right);
+      }
+    }
+
+    return isTruthy(evaluate(expr));
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // Bind a newly declared variable in the current scope. Globals are keyed by
+  // name; locals go in the slot the Resolver gave them.
+  private void define(Token name, int slot, Object value) {
+    if (environment == globals) {
+      globals.define(name.lexeme, value);
+    } else {
+      environment.define(slot, value);
+    }
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
+  public Completion visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
@@ -66,98 +199,166 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
-
     if (superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      environment = new Environment(environment, 1);
+      environment.define(0, superclass);
+    }
+
+    // Start from the superclass's table, which already holds everything it
+    // inherited, so the class's own methods override inherited ones and no
+    // lookup ever has to walk up the superclass chain.
+    Map<String, LoxFunction> methods = superclass == null
+        ? new HashMap<>()
+        : new HashMap<>(((LoxClass) superclass).methods);
+    // A class whose methods capture its name needs its Cell in place before
+    // they're created.
+    Cell cell = null;
+    if (stmt.inCell) {
+      cell = new Cell(null);
+      define(stmt.name, stmt.slot, cell);
     }
 
-    Map<String, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+      LoxFunction function = new LoxFunction(method, capture(method),
+          method.name.lexeme.equals("init"));
       methods.put(method.name.lexeme, function);
     }
 
     // Transform the Class AST node into its runtime representation,
     // a LoxClass instance.
-    LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+    LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
     if (superclass != null) {
       environment = environment.enclosing;
     }
 
-    // Store the klass object in the variable defined above.
-    // This will allow Lox Classes to reference klass inside
+    // Bind the klass object to the class name. Methods that use the name
+    // share its Cell, so Lox Classes can still reference klass inside their
     // own methods.
-    environment.assign(stmt.name, klass);
+    if (cell != null) {
+      cell.value = klass;
+    } else {
+      define(stmt.name, stmt.slot, klass);
+    }
 
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Completion visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
+  public Completion visitFunctionStmt(Stmt.Function stmt) {
+    // A local function that calls itself captures the Cell holding its own
+    // name, so the Cell has to exist before the function does.
+    if (stmt.inCell) {
+      Cell cell = new Cell(null);
+      define(stmt.name, stmt.slot, cell);
+      cell.value = new LoxFunction(stmt, capture(stmt), false);
+      return Completion.NORMAL;
+    }
+
+    LoxFunction function = new LoxFunction(stmt, capture(stmt), false);
     // Store a reference to the name binding the function declaration.
-    environment.define(stmt.name.lexeme, function);
-    return null;
+    define(stmt.name, stmt.slot, function);
+    return Completion.NORMAL;
+  }
+
+  // Copy what a function declared in the current scope captures from it.
+  Object[] capture(Stmt.Function function) {
+    return environment.capture(function.captureDepths, function.captureSlots);
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
-    if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+  public Completion visitIfStmt(Stmt.If stmt) {
+    if (evaluateCondition(stmt.condition)) {
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Completion visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
     System.out.println(stringify(value));
-    return null;
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Completion visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
     if (stmt.value != null) {
       value = evaluate(stmt.value);
     }
 
-    throw new Return(value);
+    // Nothing else gets evaluated on the way back to the call, so nothing
+    // can overwrite the value before the function picks it up.
+    returnValue = value;
+    return Completion.RETURN;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
-    while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
+  public Completion visitWhileStmt(Stmt.While stmt) {
+    // Gets hoisted out of the loop look their properties up again on each
+    // run of it.
+    if (stmt.hoisted != null) {
+      for (int slot : stmt.hoisted) {
+        setLocal(0, slot, SharedGet.UNSET);
+      }
     }
-    return null;
+
+    if (stmt.counted != null) {
+      return stmt.counted.execute(this);
+    }
+
+    return executeWhile(stmt);
+  }
+
+  // Run a while loop as written, testing its condition before every
+  // iteration.
+  Completion executeWhile(Stmt.While stmt) {
+    while (evaluateCondition(stmt.condition)) {
+      if (execute(stmt.body) == Completion.RETURN) {
+        return Completion.RETURN;
+      }
+    }
+    return Completion.NORMAL;
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Completion visitBlockStmt(Stmt.Block stmt) {
+    if (stmt.hasEnvironment) {
+      return executeBlock(stmt.statements, new Environment(environment, stmt.frameSize));
+    }
+
+    // The Resolver put the block's variables, if any, in the current
+    // Environment.
+    for (Stmt statement : stmt.statements) {
+      if (execute(statement) == Completion.RETURN) {
+        return Completion.RETURN;
+      }
+    }
+    return Completion.NORMAL;
   }
 
-  void executeBlock(List<Stmt> statements, Environment environment) {
+  // Run the statements in the given environment, stopping early if one of
+  // them returns.
+  Completion executeBlock(List<Stmt> statements, Environment environment) {
     Environment previous = this.environment;
 
     try {
       this.environment = environment;
 
       for (Stmt statement : statements) {
-        execute(statement);
+        if (execute(statement) == Completion.RETURN) {
+          return Completion.RETURN;
+        }
       }
+      return Completion.NORMAL;
     } finally {
       // Reset the Interpreter's environment after executing the block.
       // We use finally to ensure that the environment gets restored even
@@ -167,25 +368,30 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Completion visitVarStmt(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
-    return null;
+    define(stmt.name, stmt.slot, stmt.inCell ? new Cell(value) : value);
+    return Completion.NORMAL;
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
+    if (expr.fused != null) {
+      return expr.fused.execute(this);
+    }
+
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    if (expr.inCell) {
+      ((Cell) environment.getAt(expr.depth, expr.slot)).value = value;
+    } else if (expr.depth != -1) {
+      environment.assignAt(expr.depth, expr.slot, value);
     } else {
-      environment.assign(expr.name, value);
+      Environment.assign(globalCell(expr), expr.name, value);
     }
 
     // Return the value of the assignment.
@@ -196,81 +402,135 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
-    Object left = evaluate(expr.left);
-    Object right = evaluate(expr.right);
+    return expr.node.execute(this);
+  }
 
-    switch (expr.operator.type) {
-      case BANG_EQUAL:
-        return !isEqual(left, right);
-      case EQUAL_EQUAL:
-        return isEqual(left, right);
-      case GREATER:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left > (double) right;
-      case GREATER_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left >= (double) right;
-      case LESS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left < (double) right;
-      case LESS_EQUAL:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left <= (double) right;
-      case MINUS:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left - (double) right;
-      case PLUS:
-        // Overload the PLUS operator to handle both addition and String concatenation.
-        if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
-        }
+  @Override
+  public Object visitCallExpr(Expr.Call expr) {
+    if (expr.inlined != null) {
+      return expr.inlined.execute(this);
+    }
 
-        if (left instanceof String && right instanceof String) {
-          return (String) left + (String) right;
-        }
+    return executeCall(expr);
+  }
+
+  // Make a call as written, without the body the Inliner copied into it.
+  Object executeCall(Expr.Call expr) {
+    // For calls like obj.method() and super.method(), look the method up
+    // without binding it and hand it the receiver directly, so calling a
+    // method doesn't allocate a bound method first.
+    Object callee;
+    LoxFunction method = null;
+    LoxInstance receiver = null;
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Object object = evaluate(get.object);
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(get.name, "Only instances have properties.");
+      }
 
-        throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
-      case SLASH:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left / (double) right;
-      case STAR:
-        checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right;
+      receiver = (LoxInstance) object;
+      method = (LoxFunction) get.cache.method(receiver, get.name);
+      // A field shadowing the method holds something else to call.
+      callee = method != null ? method : get.cache.get(receiver, get.name);
+    } else if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super) expr.callee;
+      receiver = (LoxInstance) evaluate(superExpr.receiver);
+      method = superMethod(superExpr);
+      callee = method;
+    } else {
+      callee = evaluate(expr.callee);
     }
 
-    // Unreachable.
-    return null;
-  }
+    // Calls with up to three arguments keep them in locals and pass them
+    // straight to the callee's fixed-arity entry point. The arguments are
+    // always evaluated before the callee is checked.
+    List<Expr> arguments = expr.arguments;
+    if (!expr.isTailCall) {
+      switch (arguments.size()) {
+        case 0: {
+          LoxCallable function = expr.site.check(callee, 0, expr.paren);
+          return method != null ? method.callMethod0(this, receiver) : function.call0(this);
+        }
+        case 1: {
+          Object a = evaluate(arguments.get(0));
+          LoxCallable function = expr.site.check(callee, 1, expr.paren);
+          return method != null
+              ? method.callMethod1(this, receiver, a)
+              : function.call1(this, a);
+        }
+        case 2: {
+          Object a = evaluate(arguments.get(0));
+          Object b = evaluate(arguments.get(1));
+          LoxCallable function = expr.site.check(callee, 2, expr.paren);
+          return method != null
+              ? method.callMethod2(this, receiver, a, b)
+              : function.call2(this, a, b);
+        }
+        case 3: {
+          Object a = evaluate(arguments.get(0));
+          Object b = evaluate(arguments.get(1));
+          Object c = evaluate(arguments.get(2));
+          LoxCallable function = expr.site.check(callee, 3, expr.paren);
+          return method != null
+              ? method.callMethod3(this, receiver, a, b, c)
+              : function.call3(this, a, b, c);
+        }
+      }
+    }
 
-  @Override
-  public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    Object[] values = new Object[arguments.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = evaluate(arguments.get(i));
+    }
 
-    List<Object> arguments = new ArrayList<>();
-    for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
+    LoxCallable function = expr.site.check(callee, values.length, expr.paren);
+    if (expr.isTailCall) {
+      return tailCall(function, receiver, values);
     }
 
-    // Ensure the callee implements LoxCallable so that we don't invoke
-    // non-callable expressions like strings.
-    if (!(callee instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+    if (method != null) {
+      return method.callMethod(this, receiver, values);
     }
 
-    LoxCallable function = (LoxCallable) callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren,
-          "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+    return function.call(this, values);
+  }
+
+  // Make a call whose result the current function returns as is. A Lox
+  // function isn't called here: it's left in tailFunction for the
+  // LoxFunction.callMethod running the current function to call once this
+  // one has returned, reusing its Java frame. That way a chain of tail calls,
+  // like a recursive loop, runs in constant stack space.
+  Object tailCall(LoxCallable function, LoxInstance receiver, Object[] arguments) {
+    if (!(function instanceof LoxFunction)) {
+      return function.call(this, arguments);
     }
 
-    return function.call(this, arguments);
+    tailFunction = (LoxFunction) function;
+    tailReceiver = receiver;
+    tailArguments = arguments;
+    return null;
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
+    if (expr.shared != null) {
+      return expr.shared.execute(this, expr);
+    }
+
+    return executeGet(expr);
+  }
+
+  // Look a property up, without the slot the SsaOptimizer may have given the
+  // get.
+  Object executeGet(Expr.Get expr) {
+    if (expr.fused != null) {
+      return expr.fused.execute(this);
+    }
+
     Object object = evaluate(expr.object);
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      return expr.cache.get((LoxInstance) object, expr.name);
     }
 
     // If object is not a LoxInstance, throw a RuntimeError — we can only
@@ -314,31 +574,32 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     Object value = evaluate(expr.value);
-    ((LoxInstance) object).set(expr.name, value);
+    expr.cache.set((LoxInstance) object, expr.name, value);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+    LoxInstance object = (LoxInstance) evaluate(expr.receiver);
+
+    // Bind "this" to the method looked up in the superclass.
+    return superMethod(expr).bind(object);
+  }
 
-    // The environment where "this" is bound is always right inside the
-    // environment where we store "super".
-    LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+  private LoxFunction superMethod(Expr.Super expr) {
+    LoxClass superclass = (LoxClass) environment.getAt(expr.depth, expr.slot);
     LoxFunction method = superclass.findMethod(expr.method.lexeme);
 
     if (method == null) {
       throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
     }
 
-    // Bind "this" to the method looked up in the superclass.
-    return method.bind(object);
+    return method;
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable(expr.keyword, expr.depth, expr.slot, false);
   }
 
   @Override
@@ -353,7 +614,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       case BANG:
         return !isTruthy(right);
       case MINUS:
-        checkNumberOperand(expr.operator, right);
+        if (expr.right.type != TypeInference.NUMBER) {
+          checkNumberOperand(expr.operator, right);
+        }
         return -(double) right;
     }
 
@@ -363,41 +626,62 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    if (expr.depth == -1) {
+      // If the Resolver didn't find the variable in any local
+      // scope, it must be a global variable. Look it up in globals.
+      return Environment.get(globalCell(expr), expr.name);
+    }
+
+    return lookUpVariable(expr.name, expr.depth, expr.slot, expr.inCell);
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      // If the variable is local, look it up in the correct
-      // enclosing scope as computed by our static analysis (Resolver).
-      return environment.getAt(distance, name.lexeme);
-    } else {
-      // If the variable expr is not in the locals map, it
-      // must be a global variable. Look it up in globals.
-      return globals.get(name);
+  private Object lookUpVariable(Token name, int depth, int slot, boolean inCell) {
+    // The variable is local, so look it up in the correct
+    // enclosing scope and slot as computed by our static analysis (Resolver),
+    // or among the running function's captures.
+    Object value = environment.getAt(depth, slot);
+    return inCell ? ((Cell) value).value : value;
+  }
+
+  // Read and write a local variable's slot directly, for superinstructions
+  // that have already checked the variable isn't global or in a Cell.
+  Object getLocal(int depth, int slot) {
+    return environment.getAt(depth, slot);
+  }
+
+  void setLocal(int depth, int slot, Object value) {
+    environment.assignAt(depth, slot, value);
+  }
+
+  // Find a global's Cell the first time the expression runs, and keep it on
+  // the node after that.
+  private Cell globalCell(Expr.Variable expr) {
+    if (expr.global == null) {
+      expr.global = globals.cell(expr.name.lexeme);
     }
+
+    return expr.global;
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
-    if (operand instanceof Double) {
-      return;
+  private Cell globalCell(Expr.Assign expr) {
+    if (expr.global == null) {
+      expr.global = globals.cell(expr.name.lexeme);
     }
 
-    throw new RuntimeError(operator, "Operand must be a number.");
+    return expr.global;
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
-    if (left instanceof Double && right instanceof Double) {
+  private void checkNumberOperand(Token operator, Object operand) {
+    if (operand instanceof Double) {
       return;
     }
 
-    throw new RuntimeError(operator, "Operands must be numbers.");
+    throw new RuntimeError(operator, "Operand must be a number.");
   }
 
   // Follow Ruby's rules for falsey values — nil and false are falsey, and all
   // other values are truthy.
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) {
       return false;
     }
@@ -409,7 +693,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) {
       return true;
     }
@@ -426,7 +710,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   // The Lox and Java string representations of data are quite similar, with the
   // exception of nil vs. null and numbers. We rectify those differences in thie
   // method.
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) {
       return "nil";
     }
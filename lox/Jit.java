@@ -0,0 +1,818 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles hot Lox functions into JVM bytecode, so HotSpot can turn them into
+// native code instead of running the tree-walker over and over.
+//
+// LoxFunction counts calls to each function declaration. Once a declaration
+// crosses THRESHOLD calls, it is compiled here into a hidden class defined
+// with MethodHandles.Lookup.defineHiddenClass. From then on, calls to the
+// function run the generated code.
+//
+// The generated code keeps the function's parameters and local variables in
+// JVM locals instead of an Environment. That's only safe when nothing can
+// capture the function's scope, so functions that declare functions or
+// classes aren't compiled, and neither are super expressions. Variables the
+// function captured from enclosing ones come from its captures array. Functions the
+// Jit can't compile keep running on the tree-walker.
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // How many calls a function gets before it is compiled.
+  static final int THRESHOLD = 1000;
+  // Set by the --jit option.
+  static boolean enabled = false;
+
+  // The interface each generated class implements. A function with up to
+  // three parameters also gets the entry point for its arity, which takes
+  // the arguments directly instead of in an array. The other fixed-arity
+  // entry points are never called, since a call always passes a function
+  // exactly as many arguments as it declares.
+  interface Code {
+    Object invoke(Interpreter interpreter, Object[] captures, LoxInstance receiver,
+        Object[] arguments);
+
+    default Object invoke0(Interpreter interpreter, Object[] captures, LoxInstance receiver) {
+      return invoke(interpreter, captures, receiver, LoxCallable.NO_ARGUMENTS);
+    }
+
+    default Object invoke1(Interpreter interpreter, Object[] captures, LoxInstance receiver,
+        Object a) {
+      return invoke(interpreter, captures, receiver, new Object[] {a});
+    }
+
+    default Object invoke2(Interpreter interpreter, Object[] captures, LoxInstance receiver,
+        Object a, Object b) {
+      return invoke(interpreter, captures, receiver, new Object[] {a, b});
+    }
+
+    default Object invoke3(Interpreter interpreter, Object[] captures, LoxInstance receiver,
+        Object a, Object b, Object c) {
+      return invoke(interpreter, captures, receiver, new Object[] {a, b, c});
+    }
+  }
+
+  // Thrown when the function uses something the Jit doesn't compile.
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  private static final String OBJECT = "java/lang/Object";
+  private static final String OBJECT_TYPE = "Ljava/lang/Object;";
+  private static final String TOKEN = "com/craftinginterpreters/lox/Token";
+  private static final String TOKEN_TYPE = "L" + TOKEN + ";";
+  private static final String CELL = "com/craftinginterpreters/lox/Cell";
+  private static final String INTERPRETER = "com/craftinginterpreters/lox/Interpreter";
+  private static final String INSTANCE = "com/craftinginterpreters/lox/LoxInstance";
+  private static final String PROPERTY_CACHE = "com/craftinginterpreters/lox/PropertyCache";
+  private static final String PROPERTY_CACHE_TYPE = "L" + PROPERTY_CACHE + ";";
+  private static final String CALL_SITE = "com/craftinginterpreters/lox/CallSite";
+  private static final String CALL_SITE_TYPE = "L" + CALL_SITE + ";";
+  private static final String RUNTIME = "com/craftinginterpreters/lox/JitRuntime";
+  private static final String CODE = "com/craftinginterpreters/lox/Jit$Code";
+
+  private static final int ACONST_NULL = 0x01;
+  private static final int ICONST_0 = 0x03;
+  private static final int ICONST_1 = 0x04;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int ALOAD = 0x19;
+  private static final int AALOAD = 0x32;
+  private static final int ASTORE = 0x3a;
+  private static final int AASTORE = 0x53;
+  private static final int POP = 0x57;
+  private static final int DUP = 0x59;
+  private static final int DADD = 0x63;
+  private static final int DSUB = 0x67;
+  private static final int DMUL = 0x6b;
+  private static final int DDIV = 0x6f;
+  private static final int DNEG = 0x77;
+  private static final int IXOR = 0x82;
+  private static final int IFEQ = 0x99;
+  private static final int IFNE = 0x9a;
+  private static final int GOTO = 0xa7;
+  private static final int ARETURN = 0xb0;
+  private static final int RETURN = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int PUTSTATIC = 0xb3;
+  private static final int GETFIELD = 0xb4;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int INVOKEINTERFACE = 0xb9;
+  private static final int ANEWARRAY = 0xbd;
+  private static final int CHECKCAST = 0xc0;
+
+  // JVM locals of the generated invoke methods. In the fixed-arity ones, the
+  // arguments start at ARGUMENTS_LOCAL.
+  private static final int INTERPRETER_LOCAL = 1;
+  private static final int CAPTURES_LOCAL = 2;
+  private static final int RECEIVER_LOCAL = 3;
+  private static final int ARGUMENTS_LOCAL = 4;
+
+  private final Stmt.Function function;
+  // The globals the function runs against. The code holds on to the Cell of
+  // each global it uses, instead of looking the name up.
+  private final Environment globals;
+  private final String className;
+  private final ClassWriter writer;
+  private ClassWriter.MethodWriter code;
+
+  // Tokens and literal values used by the code, handed to the generated class
+  // as its class data.
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndexes = new IdentityHashMap<>();
+
+  // The JVM local holding each Resolver slot, for the function's own scope
+  // and each nested block with an Environment of its own. Blocks without one
+  // keep their variables in the slots of the enclosing scope.
+  private final List<int[]> scopes = new ArrayList<>();
+  private int nextLocal = ARGUMENTS_LOCAL + 1;
+
+  private Jit(Stmt.Function function, Environment globals) {
+    this.function = function;
+    this.globals = globals;
+    // Hidden classes don't need unique names, but this one mustn't match a
+    // class the code refers to, like Jit$Code.
+    this.className = "com/craftinginterpreters/lox/Compiled$" + function.name.lexeme;
+    this.writer = new ClassWriter(className, OBJECT);
+  }
+
+  // Compile a function declaration, or return null if it uses something the
+  // Jit doesn't support. Anything else that goes wrong, like the JVM
+  // rejecting the generated class, is a bug in the Jit, so it isn't hidden
+  // by falling back to the tree-walker.
+  static Code compile(Stmt.Function function, Environment globals) {
+    try {
+      return new Jit(function, globals).generate();
+    } catch (Unsupported unsupported) {
+      return null;
+    } catch (ReflectiveOperationException error) {
+      throw new AssertionError(error);
+    }
+  }
+
+  private Code generate() throws ReflectiveOperationException {
+    writer.addInterface(CODE);
+    writer.addField(ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL, "K", "[" + OBJECT_TYPE);
+    generateConstructor();
+    generateInvoke();
+    generateStaticInitializer();
+
+    MethodHandles.Lookup lookup = MethodHandles.lookup()
+        .defineHiddenClassWithClassData(writer.toByteArray(), constants.toArray(), true);
+    try {
+      return (Code) lookup
+          .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+          .invoke();
+    } catch (ReflectiveOperationException | RuntimeException | Error error) {
+      throw error;
+    } catch (Throwable error) {
+      throw new AssertionError(error);
+    }
+  }
+
+  private void generateConstructor() {
+    code = writer.addMethod(ClassWriter.ACC_PUBLIC, "<init>", "()V");
+    code.maxLocals = 1;
+    load(0);
+    invoke(INVOKESPECIAL, OBJECT, "<init>", "()V", -1);
+    code.op(RETURN, 0);
+  }
+
+  // Load the constants array out of the class data.
+  private void generateStaticInitializer() {
+    code = writer.addMethod(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+    invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+        "()Ljava/lang/invoke/MethodHandles$Lookup;", 1);
+    code.op(LDC_W, 1);
+    code.u2(writer.string("_"));
+    code.op(LDC_W, 1);
+    code.u2(writer.classRef("[" + OBJECT_TYPE));
+    invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)"
+            + OBJECT_TYPE, -2);
+    code.op(CHECKCAST, 0);
+    code.u2(writer.classRef("[" + OBJECT_TYPE));
+    code.op(PUTSTATIC, -1);
+    code.u2(writer.fieldRef(className, "K", "[" + OBJECT_TYPE));
+    code.op(RETURN, 0);
+  }
+
+  private void generateInvoke() {
+    String prefix = "(L" + INTERPRETER + ";[" + OBJECT_TYPE + "L" + INSTANCE + ";";
+    int arity = function.params.size();
+    if (arity > 3) {
+      code = writer.addMethod(ClassWriter.ACC_PUBLIC, "invoke",
+          prefix + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+      generateBody(false);
+      return;
+    }
+
+    // The body goes in the entry point for the function's arity, where the
+    // arguments are already in the locals after the receiver.
+    String descriptor = prefix + OBJECT_TYPE.repeat(arity) + ")" + OBJECT_TYPE;
+    code = writer.addMethod(ClassWriter.ACC_PUBLIC, "invoke" + arity, descriptor);
+    nextLocal = ARGUMENTS_LOCAL + arity;
+    generateBody(true);
+
+    // The array entry point, used for tail calls, unpacks the arguments and
+    // calls that one.
+    code = writer.addMethod(ClassWriter.ACC_PUBLIC, "invoke",
+        prefix + "[" + OBJECT_TYPE + ")" + OBJECT_TYPE);
+    code.maxLocals = ARGUMENTS_LOCAL + 1;
+    load(0);
+    load(INTERPRETER_LOCAL);
+    load(CAPTURES_LOCAL);
+    load(RECEIVER_LOCAL);
+    for (int i = 0; i < arity; i++) {
+      load(ARGUMENTS_LOCAL);
+      pushInt(i);
+      code.op(AALOAD, -1);
+    }
+    invoke(INVOKEVIRTUAL, className, "invoke" + arity, descriptor, -3 - arity);
+    code.op(ARETURN, -1);
+  }
+
+  // Compile the function's body into the current method. With fixed
+  // arguments, each parameter is in the local after the receiver's, in
+  // order. Otherwise, they're copied out of the arguments array.
+  private void generateBody(boolean fixedArguments) {
+    // A method's "this" is the first slot of its scope, and it's already in
+    // a local.
+    beginScope(function.frameSize);
+    int slot = 0;
+    if (function.isMethod) {
+      scopes.get(0)[slot++] = RECEIVER_LOCAL;
+    }
+
+    for (int i = 0; i < function.params.size(); i++) {
+      if (fixedArguments) {
+        scopes.get(0)[slot++] = ARGUMENTS_LOCAL + i;
+        continue;
+      }
+
+      load(ARGUMENTS_LOCAL);
+      pushInt(i);
+      code.op(AALOAD, -1);
+      declareLocal(slot++);
+    }
+
+    for (Stmt statement : function.body) {
+      statement.accept(this);
+    }
+
+    // Falling off the end of the body returns nil.
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+
+    // Jump offsets are signed 16-bit values.
+    if (code.length() > Short.MAX_VALUE) {
+      throw new Unsupported();
+    }
+
+    code.maxLocals = nextLocal;
+  }
+
+  private void beginScope(int size) {
+    scopes.add(new int[size]);
+  }
+
+  private void endScope() {
+    scopes.remove(scopes.size() - 1);
+  }
+
+  // Store the value on top of the stack in a fresh local for a slot of the
+  // innermost scope.
+  private void declareLocal(int slot) {
+    int local = nextLocal++;
+    if (local > 0xff) {
+      throw new Unsupported();
+    }
+
+    code.op(ASTORE, -1);
+    code.u1(local);
+    scopes.get(scopes.size() - 1)[slot] = local;
+  }
+
+  // Return the JVM local for a variable resolved to this function's scopes.
+  private int localFor(int depth, int slot) {
+    return scopes.get(scopes.size() - 1 - depth)[slot];
+  }
+
+  private void lookUpVariable(Token name, int depth, int slot, boolean inCell) {
+    if (depth == -1) {
+      constant(globals.cell(name.lexeme), CELL);
+      constant(name, TOKEN);
+      invoke(INVOKESTATIC, RUNTIME, "getGlobal",
+          "(L" + CELL + ";" + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+      return;
+    }
+
+    if (depth != Environment.CAPTURED) {
+      load(localFor(depth, slot));
+      return;
+    }
+
+    load(CAPTURES_LOCAL);
+    pushInt(slot);
+    code.op(AALOAD, -1);
+    if (inCell) {
+      code.op(CHECKCAST, 0);
+      code.u2(writer.classRef(CELL));
+      code.op(GETFIELD, 0);
+      code.u2(writer.fieldRef(CELL, "value", OBJECT_TYPE));
+    }
+  }
+
+  private void load(int local) {
+    code.op(ALOAD, 1);
+    code.u1(local);
+  }
+
+  private void pushInt(int value) {
+    if (value >= -1 && value <= 5) {
+      code.op(ICONST_0 + value, 1);
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      code.op(BIPUSH, 1);
+      code.u1(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      code.op(SIPUSH, 1);
+      code.u2(value);
+    } else {
+      code.op(LDC_W, 1);
+      code.u2(writer.integer(value));
+    }
+  }
+
+  // Push one of the constants handed to the class, cast to type if it's
+  // passed somewhere more specific than Object.
+  private void constant(Object value, String type) {
+    Integer index = constantIndexes.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndexes.put(value, index);
+    }
+
+    code.op(GETSTATIC, 1);
+    code.u2(writer.fieldRef(className, "K", "[" + OBJECT_TYPE));
+    pushInt(index);
+    code.op(AALOAD, -1);
+    if (type != null) {
+      code.op(CHECKCAST, 0);
+      code.u2(writer.classRef(type));
+    }
+  }
+
+  private void invoke(int opcode, String owner, String name, String descriptor, int stackEffect) {
+    code.op(opcode, stackEffect);
+    code.u2(writer.methodRef(owner, name, descriptor));
+  }
+
+  private void box() {
+    invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+  }
+
+  private void unboxDouble() {
+    code.op(CHECKCAST, 0);
+    code.u2(writer.classRef("java/lang/Double"));
+    invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D", 1);
+  }
+
+  private void boxDouble() {
+    invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+  }
+
+  private void isTruthy() {
+    invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(" + OBJECT_TYPE + ")Z", 0);
+  }
+
+  // Compile an expression used as a condition, leaving an int on the stack
+  // instead of a boxed value. Comparisons skip boxing their result entirely.
+  private void condition(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      String comparison = comparison(binary.operator.type);
+      if (comparison != null && TypeInference.isProven(binary)) {
+        number(binary.left);
+        number(binary.right);
+        invoke(INVOKESTATIC, RUNTIME, comparison, "(DD)Z", -3);
+        return;
+      }
+
+      if (comparison != null) {
+        binary.left.accept(this);
+        binary.right.accept(this);
+        constant(binary.operator, TOKEN);
+        invoke(INVOKESTATIC, RUNTIME, comparison,
+            "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")Z", -2);
+        return;
+      }
+    }
+
+    expr.accept(this);
+    isTruthy();
+  }
+
+  // Compile an expression that TypeInference proved produces a number,
+  // leaving it unboxed on the stack as a double. Arithmetic on proven numbers
+  // stays unboxed all the way down, and nothing is checked.
+  private void number(Expr expr) {
+    if (expr instanceof Expr.Binary && TypeInference.isProven((Expr.Binary) expr)) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      int opcode = arithmetic(binary.operator.type);
+      if (opcode != 0) {
+        number(binary.left);
+        number(binary.right);
+        code.op(opcode, -2);
+        return;
+      }
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      number(((Expr.Grouping) expr).expression);
+      return;
+    }
+
+    if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.MINUS
+        && ((Expr.Unary) expr).right.type == TypeInference.NUMBER) {
+      number(((Expr.Unary) expr).right);
+      code.op(DNEG, 0);
+      return;
+    }
+
+    expr.accept(this);
+    unboxDouble();
+  }
+
+  private static int arithmetic(TokenType type) {
+    switch (type) {
+      case MINUS:
+        return DSUB;
+      case PLUS:
+        return DADD;
+      case SLASH:
+        return DDIV;
+      case STAR:
+        return DMUL;
+      default:
+        return 0;
+    }
+  }
+
+  private static String comparison(TokenType type) {
+    switch (type) {
+      case GREATER:
+        return "greater";
+      case GREATER_EQUAL:
+        return "greaterEqual";
+      case LESS:
+        return "less";
+      case LESS_EQUAL:
+        return "lessEqual";
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    if (stmt.hasEnvironment) {
+      beginScope(stmt.frameSize);
+    }
+
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+
+    if (stmt.hasEnvironment) {
+      endScope();
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression.accept(this);
+    code.op(POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    condition(stmt.condition);
+    int elseJump = code.jump(IFEQ, -1);
+    stmt.thenBranch.accept(this);
+
+    if (stmt.elseBranch == null) {
+      code.patch(elseJump);
+      return null;
+    }
+
+    int endJump = code.jump(GOTO, 0);
+    code.patch(elseJump);
+    stmt.elseBranch.accept(this);
+    code.patch(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    stmt.expression.accept(this);
+    invoke(INVOKESTATIC, RUNTIME, "print", "(" + OBJECT_TYPE + ")V", -1);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      stmt.value.accept(this);
+    }
+
+    code.op(ARETURN, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      stmt.initializer.accept(this);
+    }
+
+    declareLocal(stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = code.length();
+    condition(stmt.condition);
+    int exitJump = code.jump(IFEQ, -1);
+    stmt.body.accept(this);
+    code.jumpTo(GOTO, 0, loopStart);
+    code.patch(exitJump);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    expr.value.accept(this);
+
+    if (expr.depth == -1) {
+      constant(globals.cell(expr.name.lexeme), CELL);
+      constant(expr.name, TOKEN);
+      invoke(INVOKESTATIC, RUNTIME, "setGlobal",
+          "(" + OBJECT_TYPE + "L" + CELL + ";" + TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+      return null;
+    }
+
+    if (expr.depth != Environment.CAPTURED) {
+      code.op(DUP, 1);
+      code.op(ASTORE, -1);
+      code.u1(localFor(expr.depth, expr.slot));
+      return null;
+    }
+
+    load(CAPTURES_LOCAL);
+    pushInt(expr.slot);
+    invoke(INVOKESTATIC, RUNTIME, "assignCaptured",
+        "(" + OBJECT_TYPE + "[" + OBJECT_TYPE + "I)" + OBJECT_TYPE, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    String comparison = comparison(expr.operator.type);
+    if (comparison != null) {
+      condition(expr);
+      box();
+      return null;
+    }
+
+    if (TypeInference.isProven(expr) && arithmetic(expr.operator.type) != 0) {
+      number(expr);
+      boxDouble();
+      return null;
+    }
+
+    expr.left.accept(this);
+    expr.right.accept(this);
+
+    String helper;
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+      case EQUAL_EQUAL:
+        invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+            "(" + OBJECT_TYPE + OBJECT_TYPE + ")Z", -1);
+        if (expr.operator.type == TokenType.BANG_EQUAL) {
+          code.op(ICONST_1, 1);
+          code.op(IXOR, -1);
+        }
+        box();
+        return null;
+      case MINUS:
+        helper = "subtract";
+        break;
+      case PLUS:
+        helper = "add";
+        break;
+      case SLASH:
+        helper = "divide";
+        break;
+      case STAR:
+        helper = "multiply";
+        break;
+      default:
+        throw new Unsupported();
+    }
+
+    constant(expr.operator, TOKEN);
+    invoke(INVOKESTATIC, RUNTIME, helper,
+        "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    load(INTERPRETER_LOCAL);
+
+    // Calls like obj.method() keep the receiver on the stack and look the
+    // method up unbound, so no bound method gets allocated.
+    boolean isMethodCall = expr.callee instanceof Expr.Get;
+    if (isMethodCall) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      get.object.accept(this);
+      code.op(DUP, 1);
+      constant(get.name, TOKEN);
+      constant(get.cache, PROPERTY_CACHE);
+      invoke(INVOKESTATIC, RUNTIME, "callee",
+          "(" + OBJECT_TYPE + TOKEN_TYPE + PROPERTY_CACHE_TYPE + ")" + OBJECT_TYPE, -2);
+    } else {
+      expr.callee.accept(this);
+    }
+
+    // Calls with up to three arguments leave them on the stack for one of
+    // JitRuntime's fixed-arity calls, so no array gets allocated.
+    int count = expr.arguments.size();
+    if (!expr.isTailCall && count <= 3) {
+      String objects = "";
+      for (Expr argument : expr.arguments) {
+        argument.accept(this);
+        objects += OBJECT_TYPE;
+      }
+
+      constant(expr.paren, TOKEN);
+      constant(expr.site, CALL_SITE);
+      if (isMethodCall) {
+        invoke(INVOKESTATIC, RUNTIME, "callMethod" + count,
+            "(L" + INTERPRETER + ";" + OBJECT_TYPE + OBJECT_TYPE + objects + TOKEN_TYPE
+                + CALL_SITE_TYPE + ")" + OBJECT_TYPE, -4 - count);
+      } else {
+        invoke(INVOKESTATIC, RUNTIME, "call" + count,
+            "(L" + INTERPRETER + ";" + OBJECT_TYPE + objects + TOKEN_TYPE + CALL_SITE_TYPE + ")"
+                + OBJECT_TYPE, -3 - count);
+      }
+      return null;
+    }
+
+    pushInt(count);
+    code.op(ANEWARRAY, 0);
+    code.u2(writer.classRef(OBJECT));
+    for (int i = 0; i < count; i++) {
+      code.op(DUP, 1);
+      pushInt(i);
+      expr.arguments.get(i).accept(this);
+      code.op(AASTORE, -3);
+    }
+
+    constant(expr.paren, TOKEN);
+    constant(expr.site, CALL_SITE);
+    if (isMethodCall) {
+      invoke(INVOKESTATIC, RUNTIME, expr.isTailCall ? "tailCallMethod" : "callMethod",
+          "(L" + INTERPRETER + ";" + OBJECT_TYPE + OBJECT_TYPE + "[" + OBJECT_TYPE + TOKEN_TYPE
+              + CALL_SITE_TYPE + ")" + OBJECT_TYPE, -5);
+    } else {
+      invoke(INVOKESTATIC, RUNTIME, expr.isTailCall ? "tailCall" : "call",
+          "(L" + INTERPRETER + ";" + OBJECT_TYPE + "[" + OBJECT_TYPE + TOKEN_TYPE
+              + CALL_SITE_TYPE + ")" + OBJECT_TYPE, -4);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    expr.object.accept(this);
+    constant(expr.name, TOKEN);
+    constant(expr.cache, PROPERTY_CACHE);
+    invoke(INVOKESTATIC, RUNTIME, "get",
+        "(" + OBJECT_TYPE + TOKEN_TYPE + PROPERTY_CACHE_TYPE + ")" + OBJECT_TYPE, -2);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    expr.expression.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(ACONST_NULL, 1);
+    } else {
+      constant(expr.value, null);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    expr.left.accept(this);
+    code.op(DUP, 1);
+    isTruthy();
+
+    // Keep the left operand as the result if it decides the outcome.
+    int endJump = code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, -1);
+    code.op(POP, -1);
+    expr.right.accept(this);
+    code.patch(endJump);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    expr.object.accept(this);
+    constant(expr.name, TOKEN);
+    invoke(INVOKESTATIC, RUNTIME, "checkInstance",
+        "(" + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+    expr.value.accept(this);
+    constant(expr.name, TOKEN);
+    constant(expr.cache, PROPERTY_CACHE);
+    invoke(INVOKESTATIC, RUNTIME, "set",
+        "(" + OBJECT_TYPE + OBJECT_TYPE + TOKEN_TYPE + PROPERTY_CACHE_TYPE + ")" + OBJECT_TYPE, -3);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    lookUpVariable(expr.keyword, expr.depth, expr.slot, false);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    expr.right.accept(this);
+
+    if (expr.operator.type == TokenType.BANG) {
+      isTruthy();
+      code.op(ICONST_1, 1);
+      code.op(IXOR, -1);
+      box();
+      return null;
+    }
+
+    if (expr.right.type == TypeInference.NUMBER) {
+      unboxDouble();
+      code.op(DNEG, 0);
+      boxDouble();
+      return null;
+    }
+
+    constant(expr.operator, TOKEN);
+    invoke(INVOKESTATIC, RUNTIME, "negate", "(" + OBJECT_TYPE + TOKEN_TYPE + ")" + OBJECT_TYPE, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    lookUpVariable(expr.name, expr.depth, expr.slot, expr.inCell);
+    return null;
+  }
+}
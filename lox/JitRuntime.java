@@ -0,0 +1,247 @@
+package com.craftinginterpreters.lox;
+
+// Static helpers called from the classes the Jit generates. Keeping the
+// operations here keeps the emitted bytecode short, and they're small enough
+// for HotSpot to inline into the generated method.
+final class JitRuntime {
+  private JitRuntime() {}
+
+  static Object getGlobal(Cell global, Token name) {
+    return Environment.get(global, name);
+  }
+
+  static Object setGlobal(Object value, Cell global, Token name) {
+    Environment.assign(global, name, value);
+    return value;
+  }
+
+  // Assign to a variable the function captured. Captured variables that are
+  // assigned always live in a Cell.
+  static Object assignCaptured(Object value, Object[] captures, int index) {
+    ((Cell) captures[index]).value = value;
+    return value;
+  }
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left + (double) right;
+    }
+
+    return BinaryNode.generic(operator, left, right);
+  }
+
+  static Object subtract(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left - (double) right;
+    }
+
+    return BinaryNode.generic(operator, left, right);
+  }
+
+  static Object multiply(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left * (double) right;
+    }
+
+    return BinaryNode.generic(operator, left, right);
+  }
+
+  static Object divide(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left / (double) right;
+    }
+
+    return BinaryNode.generic(operator, left, right);
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left > (double) right;
+    }
+
+    return (boolean) BinaryNode.generic(operator, left, right);
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left >= (double) right;
+    }
+
+    return (boolean) BinaryNode.generic(operator, left, right);
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left < (double) right;
+    }
+
+    return (boolean) BinaryNode.generic(operator, left, right);
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return (double) left <= (double) right;
+    }
+
+    return (boolean) BinaryNode.generic(operator, left, right);
+  }
+
+  // Comparisons of operands that TypeInference proved are numbers, which the
+  // generated code has already unboxed.
+  static boolean greater(double left, double right) {
+    return left > right;
+  }
+
+  static boolean greaterEqual(double left, double right) {
+    return left >= right;
+  }
+
+  static boolean less(double left, double right) {
+    return left < right;
+  }
+
+  static boolean lessEqual(double left, double right) {
+    return left <= right;
+  }
+
+  static Object negate(Object operand, Token operator) {
+    if (operand instanceof Double) {
+      return -(double) operand;
+    }
+
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren,
+      CallSite site) {
+    return site.check(callee, arguments.length, paren).call(interpreter, arguments);
+  }
+
+  // Calls with up to three arguments pass them straight to the callee's
+  // fixed-arity entry point, without an array.
+  static Object call0(Interpreter interpreter, Object callee, Token paren, CallSite site) {
+    return site.check(callee, 0, paren).call0(interpreter);
+  }
+
+  static Object call1(Interpreter interpreter, Object callee, Object a, Token paren,
+      CallSite site) {
+    return site.check(callee, 1, paren).call1(interpreter, a);
+  }
+
+  static Object call2(Interpreter interpreter, Object callee, Object a, Object b, Token paren,
+      CallSite site) {
+    return site.check(callee, 2, paren).call2(interpreter, a, b);
+  }
+
+  static Object call3(Interpreter interpreter, Object callee, Object a, Object b, Object c,
+      Token paren, CallSite site) {
+    return site.check(callee, 3, paren).call3(interpreter, a, b, c);
+  }
+
+  // A call in tail position, see Interpreter.tailCall.
+  static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments,
+      Token paren, CallSite site) {
+    LoxCallable function = site.check(callee, arguments.length, paren);
+    return interpreter.tailCall(function, null, arguments);
+  }
+
+  // Look up the property a method call calls: the unbound method, or the
+  // value of a field that shadows it.
+  static Object callee(Object object, Token name, PropertyCache cache) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    LoxInstance instance = (LoxInstance) object;
+    LoxFunction method = (LoxFunction) cache.method(instance, name);
+    return method != null ? method : cache.get(instance, name);
+  }
+
+  static Object callMethod(Interpreter interpreter, Object receiver, Object callee,
+      Object[] arguments, Token paren, CallSite site) {
+    // Unbound methods only ever come from callee(), never from a field.
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, arguments.length, paren);
+      return method.callMethod(interpreter, (LoxInstance) receiver, arguments);
+    }
+
+    return call(interpreter, callee, arguments, paren, site);
+  }
+
+  static Object callMethod0(Interpreter interpreter, Object receiver, Object callee,
+      Token paren, CallSite site) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, 0, paren);
+      return method.callMethod0(interpreter, (LoxInstance) receiver);
+    }
+
+    return call0(interpreter, callee, paren, site);
+  }
+
+  static Object callMethod1(Interpreter interpreter, Object receiver, Object callee, Object a,
+      Token paren, CallSite site) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, 1, paren);
+      return method.callMethod1(interpreter, (LoxInstance) receiver, a);
+    }
+
+    return call1(interpreter, callee, a, paren, site);
+  }
+
+  static Object callMethod2(Interpreter interpreter, Object receiver, Object callee, Object a,
+      Object b, Token paren, CallSite site) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, 2, paren);
+      return method.callMethod2(interpreter, (LoxInstance) receiver, a, b);
+    }
+
+    return call2(interpreter, callee, a, b, paren, site);
+  }
+
+  static Object callMethod3(Interpreter interpreter, Object receiver, Object callee, Object a,
+      Object b, Object c, Token paren, CallSite site) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, 3, paren);
+      return method.callMethod3(interpreter, (LoxInstance) receiver, a, b, c);
+    }
+
+    return call3(interpreter, callee, a, b, c, paren, site);
+  }
+
+  static Object tailCallMethod(Interpreter interpreter, Object receiver, Object callee,
+      Object[] arguments, Token paren, CallSite site) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction) site.check(callee, arguments.length, paren);
+      return interpreter.tailCall(method, (LoxInstance) receiver, arguments);
+    }
+
+    return tailCall(interpreter, callee, arguments, paren, site);
+  }
+
+  static Object get(Object object, Token name, PropertyCache cache) {
+    if (object instanceof LoxInstance) {
+      return cache.get((LoxInstance) object, name);
+    }
+
+    throw new RuntimeError(name, "Only instances have properties.");
+  }
+
+  // Checked before the value of a set expression is evaluated, the same order
+  // the Interpreter uses.
+  static Object checkInstance(Object object, Token name) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instances have fields");
+    }
+
+    return object;
+  }
+
+  static Object set(Object object, Object value, Token name, PropertyCache cache) {
+    cache.set((LoxInstance) object, name, value);
+    return value;
+  }
+
+  static void print(Object value) {
+    System.out.println(Interpreter.stringify(value));
+  }
+}
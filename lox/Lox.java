@@ -13,25 +13,101 @@ public class Lox {
   // We make the interpreter field static such that successive calls to run
   // inside of a REPL session reuse the same interpreter instance.
   private static final Interpreter interpreter = new Interpreter();
+  // Likewise for the bytecode VM, which keeps its own globals.
+  private static final VM vm = new VM();
+  // Run code on the bytecode VM instead of the tree-walking Interpreter.
+  private static boolean useVm = false;
+  // Compile the AST into closures before running it on the Interpreter.
+  private static boolean useClosures = false;
+  // Print the program before and after the Optimizer rewrites it.
+  private static boolean dumpAst = false;
+  // Whether code is being run a line at a time in the REPL.
+  private static boolean interactive = false;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    // Options come before the script path and choose how the code is run.
+    int first = 0;
+    while (first < args.length && args[first].startsWith("--")) {
+      switch (args[first]) {
+        case "--vm":
+          useVm = true;
+          break;
+        case "--closures":
+          useClosures = true;
+          break;
+        case "--jit":
+          Jit.enabled = true;
+          break;
+        case "--stats":
+          PropertyCache.collectStats = true;
+          CallSite.collectStats = true;
+          FusedNode.collectStats = true;
+          SharedGet.collectStats = true;
+          break;
+        case "--trace-inlining":
+          Inliner.trace = true;
+          break;
+        case "--dump-ast":
+          dumpAst = true;
+          break;
+        case "--dump-ssa":
+          SsaOptimizer.dump = true;
+          break;
+        default:
+          usage();
+      }
+      first++;
+    }
+
+    // The VM runs code itself, so only the tree-walker's options make sense
+    // without it, and only the tree-walker inlines and builds SSA. Running
+    // with an option that would be ignored could report timings or output
+    // for an engine other than the one asked for.
+    if (useVm && (useClosures || Jit.enabled)) {
+      usage("--vm can't be combined with --closures or --jit.");
+    }
+    if ((useVm || useClosures) && (Inliner.trace || SsaOptimizer.dump)) {
+      usage("--trace-inlining and --dump-ssa only apply to the tree-walker.");
+    }
+
+    if (args.length - first > 1) {
+      usage();
+    } else if (args.length - first == 1) {
+      runFile(args[first]);
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--vm | [--closures] [--jit]] [--stats] [--trace-inlining] [--dump-ast] [--dump-ssa] [script]");
+    System.exit(64);
+  }
+
+  private static void usage(String message) {
+    System.out.println(message);
+    usage();
+  }
+
   // Execute lox code from a source file on disk.
   private static void runFile(String path) throws IOException {
     byte[] bytes = Files.readAllBytes(Paths.get(path));
     run(new String(bytes, Charset.defaultCharset()));
 
+    if (PropertyCache.collectStats) {
+      PropertyCache.report(System.err);
+      CallSite.report(System.err);
+      if (!useVm) {
+        TypeInference.report(System.err);
+      }
+      if (!useVm && !useClosures) {
+        SsaOptimizer.report(System.err);
+        FusedNode.report(System.err);
+      }
+    }
+
     // If we encounter a syntax error, indicate it with exit code.
     if (hadError) {
       System.exit(65);
@@ -45,6 +121,7 @@ public class Lox {
 
   // Execute lox code interactively, as you would in a REPL.
   private static void runPrompt() throws IOException {
+    interactive = true;
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
 
@@ -74,7 +151,7 @@ public class Lox {
     }
 
     // Run the resolver after the parser to resolve local variables.
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
 
     // Stop if there was a resolution error.
@@ -82,17 +159,59 @@ public class Lox {
       return;
     }
 
-    // To see the pretty-printed AST of the expression, uncomment this line.
-    // System.out.println(new AstPrinter().print(expression));
+    // Simplify the resolved program. Every engine runs the optimized tree.
+    if (dumpAst) {
+      System.err.print("Before optimization:\n" + new AstPrinter().print(statements));
+    }
+    statements = new Optimizer().optimize(statements);
+    if (dumpAst) {
+      System.err.print("After optimization:\n" + new AstPrinter().print(statements));
+    }
+
+    if (useVm) {
+      VM.ObjFunction script = new BytecodeCompiler(vm).compile(statements);
+
+      // Stop if the program doesn't fit within the VM's limits.
+      if (hadError) {
+        return;
+      }
+
+      vm.interpret(script);
+      return;
+    }
+
+    // Work out which operands are always numbers, so the tree-walker, the
+    // closures and the JIT don't check them. The VM checks them all.
+    new TypeInference().infer(statements);
+
+    if (useClosures) {
+      interpreter.interpretCompiled(statements);
+      return;
+    }
+
+    prepareForInterpreter(statements, interpreter, !interactive);
     interpreter.interpret(statements);
   }
 
+  // Share property gets that compute the same value and hoist the ones that
+  // don't change out of loops. Copy small functions into the calls to them,
+  // then give the tree-walker superinstructions for its most common
+  // patterns. The SsaOptimizer needs to see the whole program.
+  static void prepareForInterpreter(List<Stmt> statements, Interpreter interpreter,
+      boolean wholeProgram) {
+    if (wholeProgram) {
+      new SsaOptimizer().optimize(statements);
+    }
+    new Inliner(interpreter.globals).inline(statements);
+    new Peephole().fuse(statements);
+  }
+
   static void error(int line, String message) {
     report(line, "", message);
   }
 
   static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+    System.err.println(error.getMessage() + "\n[line " + error.line + "]");
     hadRuntimeError = true;
   }
 
@@ -1,27 +1,22 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
 import java.util.Map;
 
-class LoxClass implements LoxCallable {
-  final String name;
-  final LoxClass superclass;
+class LoxClass extends ShapedClass implements LoxCallable {
+  // Every method instances of this class respond to, inherited ones
+  // included, flattened into one table when the class is defined.
   final Map<String, LoxFunction> methods;
+  // Looked up once, since every construction needs it.
+  final LoxFunction initializer;
 
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
-    this.name = name;
-    this.superclass = superclass;
+  LoxClass(String name, Map<String, LoxFunction> methods) {
+    super(name);
     this.methods = methods;
-  }
-
-  @Override
-  public String toString() {
-    return this.name;
+    this.initializer = methods.get("init");
   }
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
     if (initializer == null) {
       return 0;
     }
@@ -30,27 +25,56 @@ class LoxClass implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
-      // If we find an initializer, bind it to bring "this" into scope and
-      // call it, passing the interpreter instance and arguments as arguments.
-      initializer.bind(instance).call(interpreter, arguments);
+      // If we find an initializer, call it with the new instance as "this",
+      // passing the interpreter instance and arguments as arguments.
+      initializer.callMethod(interpreter, instance, arguments);
     }
 
     return instance;
   }
 
-  public LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
+  @Override
+  public Object call0(Interpreter interpreter) {
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) {
+      initializer.callMethod0(interpreter, instance);
     }
 
-    if (superclass != null) {
-      return superclass.findMethod(name);
-    }
+    return instance;
+  }
+
+  // A class only takes arguments if it has an initializer to pass them to.
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.callMethod1(interpreter, instance, a);
+    return instance;
+  }
 
-    return null;
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.callMethod2(interpreter, instance, a, b);
+    return instance;
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.callMethod3(interpreter, instance, a, b, c);
+    return instance;
+  }
+
+  @Override
+  public LoxFunction findMethod(String name) {
+    return methods.get(name);
+  }
+
+  @Override
+  Object bind(Object method, LoxInstance instance) {
+    return ((LoxFunction) method).bind(instance);
   }
 }
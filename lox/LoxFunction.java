@@ -1,21 +1,51 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
+import java.util.function.Function;
 
 import com.craftinginterpreters.lox.Environment;
 
 class LoxFunction implements LoxCallable {
   private final Stmt.Function declaration;
-  // The closure Environment "closes over" scope at the function's
-  // declaration site. This allows us to use local functions (functions)
-  // defined in the body of other functions.
-  private final Environment closure;
+  // The variables from enclosing functions that the function uses, copied
+  // from the scope at its declaration site. This allows us to use local
+  // functions (functions) defined in the body of other functions, without
+  // keeping the rest of those scopes alive.
+  private final Object[] captures;
   private final boolean isInitializer;
+  // The body as compiled by the ClosureCompiler, or null when the function
+  // is run by walking its declaration's statements.
+  private final Function<Environment, Completion> body;
+  // For a method that has been used as a value, like "var m = obj.method;",
+  // the instance it was bound to. Methods called directly get their receiver
+  // passed to callMethod instead, and plain functions have none.
+  private final LoxInstance receiver;
 
-  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+  LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer) {
+    this(declaration, captures, isInitializer, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer,
+      Function<Environment, Completion> body) {
+    this(declaration, captures, isInitializer, body, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer,
+      Function<Environment, Completion> body, LoxInstance receiver) {
     this.declaration = declaration;
-    this.closure = closure;
+    this.captures = captures;
     this.isInitializer = isInitializer;
+    this.body = body;
+    this.receiver = receiver;
+  }
+
+  Stmt.Function declaration() {
+    return declaration;
+  }
+
+  // Whether this is the function, or a method, that the given declaration
+  // created.
+  boolean isDeclaredBy(Stmt.Function declaration) {
+    return this.declaration == declaration;
   }
 
   @Override
@@ -24,37 +54,203 @@ class LoxFunction implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return callMethod(interpreter, receiver, arguments);
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return callMethod0(interpreter, receiver);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    return callMethod1(interpreter, receiver, a);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return callMethod2(interpreter, receiver, a, b);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return callMethod3(interpreter, receiver, a, b, c);
+  }
+
+  // Call a method on an instance without binding it first. Plain functions
+  // ignore the receiver.
+  Object callMethod(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    return finish(interpreter, invoke(interpreter, receiver, arguments));
+  }
+
+  // The fixed-arity calls write their arguments straight into the new
+  // frame's slots, or pass them to compiled code's entry point for the same
+  // arity.
+  Object callMethod0(Interpreter interpreter, LoxInstance receiver) {
+    Jit.Code code = jitCode(interpreter);
+    if (code != null) {
+      return finish(interpreter,
+          compiled(code.invoke0(interpreter, captures, receiver), receiver));
     }
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
+    return finish(interpreter, run(interpreter, receiver, frame(receiver)));
+  }
+
+  Object callMethod1(Interpreter interpreter, LoxInstance receiver, Object a) {
+    Jit.Code code = jitCode(interpreter);
+    if (code != null) {
+      return finish(interpreter,
+          compiled(code.invoke1(interpreter, captures, receiver, a), receiver));
+    }
+
+    Environment environment = frame(receiver);
+    int slot = firstParameter();
+    environment.define(slot, a);
+    return finish(interpreter, run(interpreter, receiver, environment));
+  }
+
+  Object callMethod2(Interpreter interpreter, LoxInstance receiver, Object a, Object b) {
+    Jit.Code code = jitCode(interpreter);
+    if (code != null) {
+      return finish(interpreter,
+          compiled(code.invoke2(interpreter, captures, receiver, a, b), receiver));
+    }
+
+    Environment environment = frame(receiver);
+    int slot = firstParameter();
+    environment.define(slot, a);
+    environment.define(slot + 1, b);
+    return finish(interpreter, run(interpreter, receiver, environment));
+  }
+
+  Object callMethod3(Interpreter interpreter, LoxInstance receiver, Object a, Object b,
+      Object c) {
+    Jit.Code code = jitCode(interpreter);
+    if (code != null) {
+      return finish(interpreter,
+          compiled(code.invoke3(interpreter, captures, receiver, a, b, c), receiver));
+    }
+
+    Environment environment = frame(receiver);
+    int slot = firstParameter();
+    environment.define(slot, a);
+    environment.define(slot + 1, b);
+    environment.define(slot + 2, c);
+    return finish(interpreter, run(interpreter, receiver, environment));
+  }
+
+  // If the function ended with a tail call to another Lox function, make
+  // that call here, in this same Java frame, instead of nesting it. Keep
+  // going until a call returns without leaving another one.
+  private static Object finish(Interpreter interpreter, Object result) {
+    while (interpreter.tailFunction != null) {
+      LoxFunction next = interpreter.tailFunction;
+      interpreter.tailFunction = null;
+      LoxInstance receiver =
+          interpreter.tailReceiver != null ? interpreter.tailReceiver : next.receiver;
+      result = next.invoke(interpreter, receiver, interpreter.tailArguments);
+    }
+
+    return result;
+  }
+
+  // Run the function's body once with the arguments in an array. If it ends
+  // with a tail call, the call is left in the Interpreter for finish to make.
+  private Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Jit.Code code = jitCode(interpreter);
+    if (code != null) {
+      return compiled(code.invoke(interpreter, captures, receiver, arguments), receiver);
+    }
+
+    Environment environment = frame(receiver);
+    int slot = firstParameter();
+    for (int i = 0; i < arguments.length; i++) {
+      environment.define(slot + i, arguments[i]);
+    }
+
+    return run(interpreter, receiver, environment);
+  }
+
+  // The value of a call to compiled code that returned result. Compiled
+  // initializers return whatever their return statements do, so replace it
+  // with "this" here.
+  private Object compiled(Object result, LoxInstance receiver) {
+    return isInitializer ? receiver : result;
+  }
+
+  // Create the Environment for a call. Methods keep "this" in the first slot
+  // of their own frame, ahead of the parameters.
+  private Environment frame(LoxInstance receiver) {
+    Environment environment = new Environment(captures, declaration.frameSize);
+    if (declaration.isMethod) {
+      environment.define(0, receiver);
+    }
+
+    return environment;
+  }
+
+  private int firstParameter() {
+    return declaration.isMethod ? 1 : 0;
+  }
+
+  // Run the body in a frame that already holds the arguments.
+  private Object run(Interpreter interpreter, LoxInstance receiver, Environment environment) {
+    // Parameters that a closure captures and the body assigns to are shared
+    // through a Cell.
+    for (int cellSlot : declaration.cellParams) {
+      environment.define(cellSlot, new Cell(environment.getAt(0, cellSlot)));
+    }
+
+    Completion completion = body != null
+        ? body.apply(environment)
+        : interpreter.executeBlock(declaration.body, environment);
+
+    if (completion == Completion.RETURN) {
       // If we're in an initializer and execute a return statment with no value,
       // return "this".
       if (isInitializer) {
-        return closure.getAt(0, "this");
+        return receiver;
       }
 
-      return returnValue.value;
+      return interpreter.returnValue;
     }
 
     // If the LoxFunction instance is an initializer, return "this".
     if (isInitializer) {
-      return closure.getAt(0, "this");
+      return receiver;
     }
     return null;
   }
 
+  // Whether this is a method straight out of a class's method table, which
+  // has to be called with callMethod. Those never escape as Lox values,
+  // since a method is bound as soon as it's used as one.
+  boolean isUnboundMethod() {
+    return declaration.isMethod && receiver == null;
+  }
+
+  // Count calls to the declaration, compiling it once it gets hot. Counts are
+  // kept on the declaration rather than on this LoxFunction, since a method
+  // gets a new LoxFunction each time it's bound.
+  private Jit.Code jitCode(Interpreter interpreter) {
+    if (!Jit.enabled) {
+      return null;
+    }
+
+    if (declaration.jitCode == null && ++declaration.calls == Jit.THRESHOLD) {
+      // Stays null if the Jit can't compile this function, and the count
+      // moves past the threshold so it isn't tried again.
+      declaration.jitCode = Jit.compile(declaration, interpreter.globals);
+    }
+
+    return declaration.jitCode;
+  }
+
+  // Bind a method to an instance, for when it's used as a value rather than
+  // called right away.
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    // Define the "this" keyword so that the method invoked on the instance
-    // can find the instance in its environment.
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, captures, isInitializer, body, instance);
   }
 
   @Override
@@ -1,14 +1,22 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-  private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  private static final Object[] EMPTY = new Object[0];
 
-  LoxInstance(LoxClass klass) {
+  private final ShapedClass klass;
+  // The layout of this instance's fields, which are stored in the same order
+  // in the fields array.
+  Shape shape;
+  Object[] fields;
+
+  LoxInstance(ShapedClass klass) {
     this.klass = klass;
+    this.shape = klass.rootShape;
+    // Size the array for as many fields as instances of the class have had
+    // so far, so an initializer usually doesn't have to grow it.
+    this.fields = klass.fieldCount == 0 ? EMPTY : new Object[klass.fieldCount];
   }
 
   @Override
@@ -17,22 +25,43 @@ class LoxInstance {
   }
 
   Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    int slot = shape.slotOf(name.lexeme);
+    if (slot >= 0) {
+      return fields[slot];
     }
 
     // If we don't find a field of a given name, search for a class method.
     // Implicitly, this ordering of lookup means that fields shadow methods
     // of the same name.
-    LoxFunction method = klass.findMethod(name.lexeme);
+    Object method = klass.findMethod(name.lexeme);
     if (method != null) {
-      return method.bind(this);
+      return klass.bind(method, this);
     }
 
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
   }
 
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    int slot = shape.slotOf(name.lexeme);
+    if (slot >= 0) {
+      fields[slot] = value;
+      return;
+    }
+
+    addField(shape.withField(name.lexeme), value);
+  }
+
+  // Add a field the instance doesn't have yet by moving it to next, which
+  // must be the shape's transition for that field.
+  void addField(Shape next, Object value) {
+    shape = next;
+    if (fields.length < shape.size) {
+      fields = Arrays.copyOf(fields, shape.size);
+      if (klass.fieldCount < shape.size) {
+        klass.fieldCount = shape.size;
+      }
+    }
+
+    fields[shape.size - 1] = value;
   }
 }
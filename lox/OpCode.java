@@ -0,0 +1,94 @@
+package com.craftinginterpreters.lox;
+
+// The instruction set for the bytecode VM. Operands follow the opcode in the
+// chunk: "k" is a two-byte constant index, "c" the two-byte index of the
+// constant holding the Expr.Get or Expr.Set the instruction was compiled
+// from, whose name and PropertyCache it uses, "s" a one-byte stack slot,
+// "u" a one-byte upvalue index, "g" a two-byte global slot, "n" a one-byte
+// argument count, "o" a one-byte comparison opcode (GREATER through
+// LESS_EQUAL) and "j" a two-byte jump offset.
+final class OpCode {
+  static final byte CONSTANT = 0;          // k
+  static final byte NIL = 1;
+  static final byte TRUE = 2;
+  static final byte FALSE = 3;
+  static final byte POP = 4;
+  static final byte GET_LOCAL = 5;         // s
+  static final byte SET_LOCAL = 6;         // s
+  static final byte GET_GLOBAL = 7;        // g
+  static final byte DEFINE_GLOBAL = 8;     // g
+  static final byte SET_GLOBAL = 9;        // g
+  static final byte GET_UPVALUE = 10;      // u
+  static final byte SET_UPVALUE = 11;      // u
+  static final byte GET_PROPERTY = 12;     // c
+  static final byte SET_PROPERTY = 13;     // c
+  static final byte GET_SUPER = 14;        // k
+  static final byte GET_METHOD = 15;       // c
+  static final byte GET_SUPER_METHOD = 16; // k
+  static final byte EQUAL = 17;
+  static final byte NOT_EQUAL = 18;
+  static final byte GREATER = 19;
+  static final byte GREATER_EQUAL = 20;
+  static final byte LESS = 21;
+  static final byte LESS_EQUAL = 22;
+  static final byte ADD = 23;
+  static final byte SUBTRACT = 24;
+  static final byte MULTIPLY = 25;
+  static final byte DIVIDE = 26;
+  static final byte NOT = 27;
+  static final byte NEGATE = 28;
+  static final byte PRINT = 29;
+  static final byte JUMP = 30;             // j
+  static final byte JUMP_IF_FALSE = 31;    // j
+  static final byte LOOP = 32;             // j
+  static final byte CALL = 33;             // n
+  static final byte CALL_METHOD = 34;      // n
+  static final byte CLOSURE = 35;          // k, then a (local, index) pair per upvalue
+  static final byte CLOSE_UPVALUE = 36;
+  static final byte RETURN = 37;
+  static final byte CLASS = 38;            // k
+  static final byte INHERIT = 39;
+  static final byte METHOD = 40;           // k
+  // Like JUMP_IF_FALSE, but pops the condition whether or not it jumps.
+  static final byte POP_JUMP_IF_FALSE = 41; // j
+  // Like the SET_ instructions, but pop the assigned value, for assignments
+  // whose value is discarded.
+  static final byte STORE_LOCAL = 42;      // s
+  static final byte STORE_GLOBAL = 43;     // g
+  static final byte STORE_UPVALUE = 44;    // u
+  static final byte STORE_PROPERTY = 45;   // c
+  static final byte TAIL_CALL = 46;        // n
+  static final byte TAIL_CALL_METHOD = 47; // n
+  // Superinstructions for the most common sequences. Each does in one
+  // dispatch what the instructions it replaces would do, including their
+  // errors.
+  // ADD or SUBTRACT with a number constant as the right operand.
+  static final byte ADD_CONSTANT = 48;      // k
+  static final byte SUBTRACT_CONSTANT = 49; // k
+  // Pop two values, compare them and jump if the comparison is false.
+  static final byte JUMP_UNLESS = 50;       // o, j
+  // Compare a local with a number constant and jump if that's false.
+  static final byte JUMP_UNLESS_LOCAL = 51; // o, s, k, j
+  // Add a number constant to a local, as in "i = i + 1;".
+  static final byte INCREMENT_LOCAL = 52;   // s, k
+  // Look up a method on the receiver below the arguments and call it. Only
+  // used when the arguments can't run code, so looking the method up after
+  // them can't be told apart from GET_METHOD and CALL_METHOD.
+  static final byte INVOKE = 53;            // c, n
+  // GET_PROPERTY and STORE_PROPERTY on a local, as in "this.x".
+  static final byte GET_LOCAL_PROPERTY = 54;   // s, c
+  static final byte STORE_LOCAL_PROPERTY = 55; // s, c
+  // Return the value of a local.
+  static final byte RETURN_LOCAL = 56;      // s
+  // The end of a counted for loop: add the first constant to local s, then
+  // jump back if the local still compares true with the second constant.
+  static final byte FOR_LOOP = 57;          // s, k, o, k, j
+  // Push local s plus or minus a number constant, as in "n - 1".
+  static final byte ADD_LOCAL_CONSTANT = 58;      // s, k
+  static final byte SUBTRACT_LOCAL_CONSTANT = 59; // s, k
+  // ADD with local s as the right operand.
+  static final byte ADD_LOCAL = 60;         // s
+
+  private OpCode() {
+  }
+}
@@ -0,0 +1,360 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Rewrites a resolved program into a simpler one that does the same thing.
+// It folds operators whose operands are literals, drops branches and loops
+// whose condition is a constant, and removes arithmetic identities like
+// "x * 1". Nothing that could fail at runtime is folded: "1 + nil" is left
+// for the Interpreter to report, just as before.
+//
+// The pass runs after the Resolver so that dead code still gets checked for
+// static errors like a top-level return. That's also why it only ever drops
+// whole statements that aren't declarations: the slots the Resolver handed
+// out stay valid. Variables and other leaves are returned as they are, and
+// the nodes that are rebuilt keep the Resolver's annotations.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      // A statement that does nothing, like "while (false) ...", goes away.
+      if (result != null) {
+        optimized.add(result);
+      }
+    }
+    return optimized;
+  }
+
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // Optimize a statement that has to stay a statement, like the body of a
+  // loop, using an empty block if nothing is left of it.
+  private Stmt optimizeBranch(Stmt stmt) {
+    Stmt result = optimize(stmt);
+    if (result == null) {
+      return new Stmt.Block(new ArrayList<>());
+    }
+    return result;
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private List<Expr> optimizeAll(List<Expr> exprs) {
+    List<Expr> optimized = new ArrayList<>();
+    for (Expr expr : exprs) {
+      optimized.add(optimize(expr));
+    }
+    return optimized;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    Stmt.Block block = new Stmt.Block(optimize(stmt.statements));
+    block.hasEnvironment = stmt.hasEnvironment;
+    block.frameSize = stmt.frameSize;
+    return block;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>();
+    for (Stmt.Function method : stmt.methods) {
+      methods.add((Stmt.Function) optimize(method));
+    }
+
+    Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    klass.slot = stmt.slot;
+    klass.inCell = stmt.inCell;
+    return klass;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    // A literal on its own can't do anything.
+    if (expression instanceof Expr.Literal) {
+      return null;
+    }
+
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, optimize(stmt.body));
+    function.isMethod = stmt.isMethod;
+    function.slot = stmt.slot;
+    function.inCell = stmt.inCell;
+    function.frameSize = stmt.frameSize;
+    function.captureDepths = stmt.captureDepths;
+    function.captureSlots = stmt.captureSlots;
+    function.cellParams = stmt.cellParams;
+    return function;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      // Branches are statements, never declarations, so the one that's kept
+      // can stand in for the if without disturbing the enclosing scope.
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+        return optimize(stmt.thenBranch);
+      }
+
+      return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+    }
+
+    Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBranch(stmt.elseBranch);
+    return new Stmt.If(condition, optimizeBranch(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    return new Stmt.Print(optimize(stmt.expression));
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Expr value = stmt.value == null ? null : optimize(stmt.value);
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.slot = stmt.slot;
+    var.inCell = stmt.inCell;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal
+        && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+      return null;
+    }
+
+    return new Stmt.While(condition, optimizeBranch(stmt.body));
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    assign.inCell = expr.inCell;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Expr folded = fold(expr.operator, ((Expr.Literal) left).value,
+          ((Expr.Literal) right).value);
+      if (folded != null) {
+        return folded;
+      }
+    }
+
+    Expr simplified = simplify(expr.operator, left, right);
+    if (simplified != null) {
+      return simplified;
+    }
+
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // Compute a binary operator on two constants, or return null if doing so
+  // would be a runtime error, which has to happen when the code runs.
+  private Expr fold(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case EQUAL_EQUAL:
+        return new Expr.Literal(Interpreter.isEqual(left, right));
+      case BANG_EQUAL:
+        return new Expr.Literal(!Interpreter.isEqual(left, right));
+      case PLUS:
+        if (left instanceof String && right instanceof String) {
+          return new Expr.Literal((String) left + (String) right);
+        }
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double)) {
+      return null;
+    }
+
+    double a = (double) left;
+    double b = (double) right;
+    switch (operator.type) {
+      case PLUS:
+        return new Expr.Literal(a + b);
+      case MINUS:
+        return new Expr.Literal(a - b);
+      case STAR:
+        return new Expr.Literal(a * b);
+      case SLASH:
+        return new Expr.Literal(a / b);
+      case GREATER:
+        return new Expr.Literal(a > b);
+      case GREATER_EQUAL:
+        return new Expr.Literal(a >= b);
+      case LESS:
+        return new Expr.Literal(a < b);
+      case LESS_EQUAL:
+        return new Expr.Literal(a <= b);
+    }
+
+    return null;
+  }
+
+  // Drop the constant operand of an identity operation when the other
+  // operand is sure to be a number. "x * 1" can't go away if x might be a
+  // string, since that has to fail. Adding zero isn't an identity at all:
+  // -0 + 0 is 0.
+  private Expr simplify(Token operator, Expr left, Expr right) {
+    switch (operator.type) {
+      case STAR:
+        if (isConstant(right, 1.0) && isNumber(left)) return left;
+        if (isConstant(left, 1.0) && isNumber(right)) return right;
+        break;
+      case SLASH:
+        if (isConstant(right, 1.0) && isNumber(left)) return left;
+        break;
+      case MINUS:
+        if (isConstant(right, 0.0) && isNumber(left)) return left;
+        break;
+    }
+
+    return null;
+  }
+
+  private static boolean isConstant(Expr expr, double value) {
+    return expr instanceof Expr.Literal
+        && Interpreter.isEqual(((Expr.Literal) expr).value, value);
+  }
+
+  // Whether the expression can only produce a number, if it produces
+  // anything at all.
+  private static boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Literal) {
+      return ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    if (expr instanceof Expr.Grouping) {
+      return isNumber(((Expr.Grouping) expr).expression);
+    }
+
+    if (expr instanceof Expr.Unary) {
+      return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    }
+
+    if (expr instanceof Expr.Binary) {
+      switch (((Expr.Binary) expr).operator.type) {
+        case MINUS:
+        case STAR:
+        case SLASH:
+          return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr.Call call = new Expr.Call(optimize(expr.callee), expr.paren, optimizeAll(expr.arguments));
+    call.isTailCall = expr.isTailCall;
+    return call;
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    return new Expr.Get(optimize(expr.object), expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = optimize(expr.expression);
+    if (expression instanceof Expr.Literal) {
+      return expression;
+    }
+
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    // A constant left operand decides on its own whether the right one runs,
+    // and the result is whichever of the two is returned.
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+      if (expr.operator.type == TokenType.OR) {
+        return truthy ? left : right;
+      }
+
+      return truthy ? right : left;
+    }
+
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    return new Expr.Set(optimize(expr.object), expr.name, optimize(expr.value));
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) right).value;
+      switch (expr.operator.type) {
+        case BANG:
+          return new Expr.Literal(!Interpreter.isTruthy(value));
+        case MINUS:
+          if (value instanceof Double) {
+            return new Expr.Literal(-(double) value);
+          }
+          break;
+      }
+    }
+
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+}
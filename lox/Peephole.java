@@ -0,0 +1,306 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Looks for a few small patterns of nodes that programs run over and over,
+// and gives the Interpreter a superinstruction that runs each of them in one
+// step:
+//
+//   i = i + 1     a local incremented or decremented by a number literal
+//   i < 10        a local compared with a number literal
+//   this.x        a property of "this"
+//   a.b.c         a chain of property gets on a variable or "this"
+//
+// It also turns numeric for loops into CountedLoops.
+//
+// The tree itself is left as it is. The superinstruction goes in an
+// annotation on the node at the top of the pattern, so every other engine,
+// and the JIT, still sees the original nodes. The pass runs after the
+// Optimizer, whose rewrites would otherwise drop the annotations.
+class Peephole implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // Every assignment seen so far, so a loop can tell which ones are in its
+  // body.
+  private final List<Expr.Assign> assignments = new ArrayList<>();
+  // Every variable read seen so far, so a counted loop can tell whether its
+  // body reads the induction variable.
+  private final List<Expr.Variable> reads = new ArrayList<>();
+
+  void fuse(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      fuse(statement);
+    }
+  }
+
+  private void fuse(Stmt stmt) {
+    if (stmt != null) {
+      stmt.accept(this);
+    }
+  }
+
+  private void fuse(Expr expr) {
+    if (expr != null) {
+      expr.accept(this);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    fuse(stmt.statements);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    fuse(stmt.superclass);
+    for (Stmt.Function method : stmt.methods) {
+      fuse(method);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    fuse(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    fuse(stmt.body);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    fuse(stmt.condition);
+    fuse(stmt.thenBranch);
+    fuse(stmt.elseBranch);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    fuse(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    fuse(stmt.value);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    fuse(stmt.initializer);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int first = assignments.size();
+    fuse(stmt.condition);
+    int firstRead = reads.size();
+    fuse(stmt.body);
+
+    stmt.counted = CountedLoop.match(stmt, assignments.subList(first, assignments.size()),
+        reads.subList(firstRead, reads.size()));
+    if (stmt.counted != null) {
+      FusedNode.installed(FusedNode.Kind.COUNTED_LOOP);
+      absorb(stmt);
+    }
+    return null;
+  }
+
+  // The counted loop runs the comparison and the increment itself, so the
+  // nodes fused into them only run if it falls back. Report them apart.
+  private static void absorb(Stmt.While loop) {
+    if (((Expr.Binary) loop.condition).node instanceof BinaryNode.LocalCompareConstant) {
+      FusedNode.absorbed(FusedNode.Kind.COMPARE_LOCAL);
+    }
+
+    List<Stmt> body = ((Stmt.Block) loop.body).statements;
+    Stmt last = body.get(body.size() - 1);
+    if (((Expr.Assign) ((Stmt.Expression) last).expression).fused != null) {
+      FusedNode.absorbed(FusedNode.Kind.INCREMENT_LOCAL);
+    }
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    assignments.add(expr);
+    fuse(expr.value);
+
+    // "i = i + 1" or "i = i - 1" on a local in a slot of its own.
+    if (expr.depth < 0 || expr.inCell || !(expr.value instanceof Expr.Binary)) {
+      return null;
+    }
+
+    Expr.Binary binary = (Expr.Binary) expr.value;
+    TokenType operator = binary.operator.type;
+    if ((operator == TokenType.PLUS || operator == TokenType.MINUS)
+        && isLocal(binary.left)
+        && ((Expr.Variable) binary.left).depth == expr.depth
+        && ((Expr.Variable) binary.left).slot == expr.slot
+        && isNumber(binary.right)) {
+      double constant = (double) ((Expr.Literal) binary.right).value;
+      expr.fused = new FusedNode.IncrementLocal(expr, binary.operator, constant);
+      FusedNode.installed(FusedNode.Kind.INCREMENT_LOCAL);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    fuse(expr.left);
+    fuse(expr.right);
+
+    switch (expr.operator.type) {
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        if (isLocal(expr.left) && isNumber(expr.right)) {
+          double constant = (double) ((Expr.Literal) expr.right).value;
+          expr.node = new BinaryNode.LocalCompareConstant(
+              expr, (Expr.Variable) expr.left, constant);
+          FusedNode.installed(FusedNode.Kind.COMPARE_LOCAL);
+        }
+        break;
+      default:
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    // The Interpreter looks up a called method itself, so a Get in callee
+    // position is never evaluated on its own. Only its object can be fused.
+    if (expr.callee instanceof Expr.Get) {
+      fuse(((Expr.Get) expr.callee).object);
+    } else {
+      fuse(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      fuse(argument);
+    }
+
+    if (expr.inlined != null) {
+      fuse(expr.inlined.body);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    // Walk down to the start of the chain, collecting the gets on the way.
+    int length = 1;
+    Expr base = expr.object;
+    while (base instanceof Expr.Get) {
+      if (((Expr.Get) base).shared != null) {
+        // A chain is looked up in one go, without evaluating the gets in
+        // it, but this one has a value to keep for the SsaOptimizer.
+        fuse(expr.object);
+        return null;
+      }
+
+      length++;
+      base = ((Expr.Get) base).object;
+    }
+
+    if (!(base instanceof Expr.Variable) && !(base instanceof Expr.This)) {
+      // Something like "f().a.b". Fusing stops at the call, but its
+      // arguments and what it calls may still have patterns in them.
+      fuse(base);
+      return null;
+    }
+
+    // Only to record a variable as read. On its own, it has nothing to fuse.
+    fuse(base);
+    if (length == 1) {
+      if (base instanceof Expr.This) {
+        expr.fused = new FusedNode.GetFieldOfThis(expr, (Expr.This) base);
+        FusedNode.installed(FusedNode.Kind.GET_FIELD_OF_THIS);
+      }
+      return null;
+    }
+
+    Expr.Get[] gets = new Expr.Get[length];
+    Expr.Get get = expr;
+    for (int i = length - 1; i >= 0; i--) {
+      gets[i] = get;
+      if (i > 0) {
+        get = (Expr.Get) get.object;
+      }
+    }
+
+    expr.fused = new FusedNode.GetChain(base, gets);
+    FusedNode.installed(FusedNode.Kind.GET_CHAIN);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    fuse(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    fuse(expr.left);
+    fuse(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    fuse(expr.object);
+    fuse(expr.value);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    fuse(expr.right);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    reads.add(expr);
+    return null;
+  }
+
+  // A local variable the Interpreter can read straight out of a slot: one
+  // that isn't global and doesn't live in a Cell.
+  private static boolean isLocal(Expr expr) {
+    if (!(expr instanceof Expr.Variable)) {
+      return false;
+    }
+
+    Expr.Variable variable = (Expr.Variable) expr;
+    return variable.depth != -1 && !variable.inCell;
+  }
+
+  private static boolean isNumber(Expr expr) {
+    return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+  }
+}
@@ -0,0 +1,195 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// An inline cache for one property get or set expression. It remembers what
+// the lookup found for each receiver Shape it has seen: the slot of a field,
+// the method a get resolves to, or the shape a set moves the instance to when
+// it adds the field. Shapes never change and each one belongs to a single
+// class, so a matching shape means the cached answer is still right.
+//
+// A site that sees more than MAX_ENTRIES shapes goes megamorphic: it drops
+// its entries and does a full lookup every time from then on.
+final class PropertyCache {
+  static final int MAX_ENTRIES = 4;
+
+  // Set by the --stats option.
+  static boolean collectStats = false;
+  // Every site that has run, in the order they first ran, for the report.
+  private static final List<PropertyCache> sites = new ArrayList<>();
+
+  private final String kind;
+  private final Shape[] shapes = new Shape[MAX_ENTRIES];
+  private final int[] slots = new int[MAX_ENTRIES];
+  // For a get, the method found when the shape has no such field. For a set,
+  // the shape to move to when the shape doesn't have the field yet.
+  private final Object[] targets = new Object[MAX_ENTRIES];
+  private int size = 0;
+  private boolean megamorphic = false;
+
+  private Token name;
+  private long hits = 0;
+  private long misses = 0;
+
+  PropertyCache(String kind) {
+    this.kind = kind;
+  }
+
+  Object get(LoxInstance instance, Token name) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (shapes[i] == shape) {
+        if (collectStats) {
+          hits++;
+        }
+
+        int slot = slots[i];
+        if (slot >= 0) {
+          return instance.fields[slot];
+        }
+
+        return shape.klass.bind(targets[i], instance);
+      }
+    }
+
+    miss(name);
+    if (megamorphic) {
+      return instance.get(name);
+    }
+
+    int slot = shape.slotOf(name.lexeme);
+    if (slot >= 0) {
+      add(shape, slot, null);
+      return instance.fields[slot];
+    }
+
+    Object method = shape.klass.findMethod(name.lexeme);
+    if (method != null) {
+      add(shape, -1, method);
+      return shape.klass.bind(method, instance);
+    }
+
+    throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+  }
+
+  // Look up a property that's about to be called. If it's a method, return
+  // it unbound so the caller can pass the instance straight to callMethod.
+  // If it's a field, return null, and the caller should use get instead.
+  Object method(LoxInstance instance, Token name) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (shapes[i] == shape) {
+        if (collectStats) {
+          hits++;
+        }
+
+        return slots[i] >= 0 ? null : targets[i];
+      }
+    }
+
+    miss(name);
+    int slot = shape.slotOf(name.lexeme);
+    if (slot >= 0) {
+      if (!megamorphic) {
+        add(shape, slot, null);
+      }
+      return null;
+    }
+
+    Object method = shape.klass.findMethod(name.lexeme);
+    if (method == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    if (!megamorphic) {
+      add(shape, -1, method);
+    }
+    return method;
+  }
+
+  void set(LoxInstance instance, Token name, Object value) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < size; i++) {
+      if (shapes[i] == shape) {
+        if (collectStats) {
+          hits++;
+        }
+
+        if (targets[i] == null) {
+          instance.fields[slots[i]] = value;
+        } else {
+          instance.addField((Shape) targets[i], value);
+        }
+        return;
+      }
+    }
+
+    miss(name);
+    if (megamorphic) {
+      instance.set(name, value);
+      return;
+    }
+
+    int slot = shape.slotOf(name.lexeme);
+    if (slot >= 0) {
+      add(shape, slot, null);
+      instance.fields[slot] = value;
+      return;
+    }
+
+    Shape next = shape.withField(name.lexeme);
+    add(shape, next.size - 1, next);
+    instance.addField(next, value);
+  }
+
+  private void miss(Token name) {
+    if (!collectStats) {
+      return;
+    }
+
+    if (this.name == null) {
+      this.name = name;
+      sites.add(this);
+    }
+
+    misses++;
+  }
+
+  private void add(Shape shape, int slot, Object target) {
+    if (size == MAX_ENTRIES) {
+      megamorphic = true;
+      size = 0;
+      return;
+    }
+
+    shapes[size] = shape;
+    slots[size] = slot;
+    targets[size] = target;
+    size++;
+  }
+
+  private String state() {
+    if (megamorphic) {
+      return "megamorphic";
+    }
+
+    if (size == 0) {
+      return "uncached";
+    }
+
+    return size == 1 ? "monomorphic" : "polymorphic (" + size + ")";
+  }
+
+  // Print the hit rate of every property access site that ran.
+  static void report(PrintStream out) {
+    out.println("Property access sites:");
+    for (PropertyCache site : sites) {
+      long total = site.hits + site.misses;
+      out.printf("  [line %d] %s .%s: %d/%d hits (%.1f%%), %s%n",
+          site.name.line, site.kind, site.name.lexeme, site.hits, total,
+          100.0 * site.hits / total, site.state());
+    }
+  }
+}
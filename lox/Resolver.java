@@ -1,18 +1,87 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Stack<Scope> scopes = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
   private ClassType currentClass = ClassType.NONE;
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  // A variable declared in a local scope. Each one gets the next free slot in
+  // the Environment its scope runs in.
+  private static class Local {
+    final Scope scope;
+    final int slot;
+    // The statement declaring the variable, or null for a parameter.
+    final Stmt declaration;
+    boolean defined = false;
+    // Whether a function declared inside the variable's own function uses
+    // it, whether it's assigned after its declaration, and whether closures
+    // can capture it before it has its value, as a function's closure does
+    // with the function's own name.
+    boolean captured = false;
+    boolean assigned = false;
+    boolean late = false;
+    // Every Variable and Assign expression that refers to it.
+    final List<Expr> uses = new ArrayList<>();
+
+    Local(Scope scope, int slot, Stmt declaration) {
+      this.scope = scope;
+      this.slot = slot;
+      this.declaration = declaration;
+    }
+  }
+
+  // A function whose body is being resolved. Each function value carries
+  // its own copy of just the variables from enclosing functions that it
+  // uses, instead of the whole chain of scopes it was declared in.
+  private static class FunctionScope {
+    final FunctionScope enclosing;
+    // Where the function's own scope is on the scope stack.
+    final int scopeIndex;
+    // The captured variables, and where to copy each one from when the
+    // function is declared. See Environment.capture.
+    final List<Local> captured = new ArrayList<>();
+    final List<Integer> depths = new ArrayList<>();
+    final List<Integer> slots = new ArrayList<>();
+    // Parameters that have to be put in a Cell when the function is called.
+    final List<Integer> cellParams = new ArrayList<>();
+
+    FunctionScope(FunctionScope enclosing, int scopeIndex) {
+      this.enclosing = enclosing;
+      this.scopeIndex = scopeIndex;
+    }
+  }
+
+  // A lexical scope. Functions and class bodies always get an Environment at
+  // runtime, but most blocks don't need one: their variables can live in the
+  // Environment of an enclosing scope instead, which is the scope's frame.
+  private static class Scope {
+    final Map<String, Local> locals = new HashMap<>();
+    // The function whose body the scope is in, or null at the top level.
+    final FunctionScope function;
+    final boolean hasEnvironment;
+    // The scope with the Environment this one's variables live in, or null
+    // for a block at the top level that declares nothing.
+    final Scope frame;
+    // For a scope with an Environment, the next free slot and the most slots
+    // it ever needs.
+    int nextSlot = 0;
+    int size = 0;
+
+    Scope(FunctionScope function, boolean hasEnvironment, Scope enclosing) {
+      this.function = function;
+      this.hasEnvironment = hasEnvironment;
+      if (hasEnvironment) {
+        this.frame = this;
+      } else {
+        this.frame = enclosing == null ? null : enclosing.frame;
+      }
+    }
   }
 
   private enum FunctionType {
@@ -30,19 +99,52 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    beginScope();
+    // A block only needs its own Environment if it declares variables and
+    // there's no enclosing Environment to put them in. Closures copy what
+    // they capture, and a variable shared through a Cell gets a new one each
+    // time its declaration runs, so closures declared on different
+    // iterations of a loop still see different variables. Otherwise the
+    // variables take slots in the enclosing frame, and running the block
+    // allocates nothing.
+    Scope enclosing = scopes.isEmpty() ? null : scopes.peek();
+    stmt.hasEnvironment = declaresVariables(stmt.statements)
+        && (enclosing == null || enclosing.frame == null);
+
+    Scope scope = beginScope(stmt.hasEnvironment);
+    // Once the block is done, its slots in the enclosing frame are free for
+    // whatever is declared after it.
+    int firstFree = scope.frame != null ? scope.frame.nextSlot : 0;
     resolve(stmt.statements);
+    if (stmt.hasEnvironment) {
+      stmt.frameSize = scope.size;
+    } else if (scope.frame != null) {
+      scope.frame.nextSlot = firstFree;
+    }
     endScope();
     return null;
   }
 
+  private static boolean declaresVariables(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Var || statement instanceof Stmt.Function
+          || statement instanceof Stmt.Class) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
   @Override
   public Void visitClassStmt(Stmt.Class stmt) {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
+    // The methods are created before the class is, so they can see the
+    // class's variable before it's set.
+    markLate(stmt.name);
 
     // Resolve the superclass of the class, if specified.
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
@@ -55,15 +157,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     if (stmt.superclass != null) {
-      beginScope();
-      scopes.peek().put("super", true);
+      beginScope(true);
+      declareKeyword("super");
     }
 
-    beginScope();
-    // Add the "this" keyword to the scope when declaring a new class.
-    // This allows methods to resolve it.
-    scopes.peek().put("this", true);
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
@@ -73,8 +170,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolveFunction(method, declaration);
     }
 
-    endScope();
-
     if (stmt.superclass != null) {
       endScope();
     }
@@ -94,8 +189,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   public Void visitFunctionStmt(Stmt.Function stmt) {
     // Declare the function name even before resolving the function body.
     // This allows functions to refer to themselves (recursion)!
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
+    markLate(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
@@ -134,6 +230,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         Lox.error(stmt.keyword, "Can't return from a value from an initializer.");
       }
 
+      // A call whose value is returned as is is the last thing the function
+      // does, so it can run in the caller's place. Parentheses around it
+      // don't change that.
+      Expr value = stmt.value;
+      while (value instanceof Expr.Grouping) {
+        value = ((Expr.Grouping) value).expression;
+      }
+      if (value instanceof Expr.Call) {
+        ((Expr.Call) value).isTailCall = true;
+      }
+
       resolve(stmt.value);
     }
 
@@ -143,7 +250,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
     // We split variable binding into two steps — declaration and definition.
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -230,6 +337,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     resolveLocal(expr, expr.keyword);
+
+    // The method is called on the "this" of the method the super expression
+    // is in.
+    expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+    resolveLocal(expr.receiver, expr.receiver.keyword);
     return null;
   }
 
@@ -257,7 +369,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // Prevent users from being able to define a variable referencing itself, e.g.
     // make an expression like var a = a; illegal. This corresponds to the case
     // where we've declared a variable but we haven't yet defined it.
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+    if (!scopes.isEmpty() && scopes.peek().locals.containsKey(expr.name.lexeme)
+        && !scopes.peek().locals.get(expr.name.lexeme).defined) {
       Lox.error(expr.name, "Can't read local variable in its own initializer.");
     }
 
@@ -265,8 +378,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
-  private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+  private Scope beginScope(boolean hasEnvironment) {
+    Scope enclosing = scopes.isEmpty() ? null : scopes.peek();
+    Scope scope = new Scope(enclosing == null ? null : enclosing.function, hasEnvironment,
+        enclosing);
+    scopes.push(scope);
+    return scope;
+  }
+
+  private Scope beginFunctionScope() {
+    FunctionScope enclosing = scopes.isEmpty() ? null : scopes.peek().function;
+    Scope scope = new Scope(new FunctionScope(enclosing, scopes.size()), true, null);
+    scopes.push(scope);
+    return scope;
   }
 
   void resolve(List<Stmt> statements) {
@@ -283,22 +407,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     expr.accept(this);
   }
 
-  private void declare(Token name) {
+  // Declare a variable in the innermost scope and return the slot it gets,
+  // or -1 for a global.
+  private int declare(Token name, Stmt declaration) {
     if (scopes.isEmpty()) {
-      return;
+      return -1;
     }
 
-    Map<String, Boolean> scope = scopes.peek();
+    Scope scope = scopes.peek();
     // Prevent users from declaring a variable with the same name as an
     // existing variable in a local scope.
-    if (scope.containsKey(name.lexeme)) {
+    if (scope.locals.containsKey(name.lexeme)) {
       Lox.error(name, "Already a variable with this name in this scope.");
     }
 
-    // Add the declared variable to the innermost scope, but mark it
-    // as "not ready yet" by mapping it to false. This indicates we
-    // have not yet finished resolving a variable's initializer.
-    scope.put(name.lexeme, false);
+    // Add the declared variable to the innermost scope in the next free slot
+    // of its frame, but mark it as "not ready yet". This indicates we have
+    // not yet finished resolving a variable's initializer.
+    int slot = allocateSlot(scope);
+    scope.locals.put(name.lexeme, new Local(scope, slot, declaration));
+    return slot;
+  }
+
+  private static int allocateSlot(Scope scope) {
+    Scope frame = scope.frame;
+    int slot = frame.nextSlot++;
+    frame.size = Math.max(frame.size, frame.nextSlot);
+    return slot;
+  }
+
+  // Declare an implicit variable like "this" or "super". These are always
+  // declared first in a scope with its own Environment, so they live in
+  // slot 0.
+  private void declareKeyword(String keyword) {
+    Local local = new Local(scopes.peek(), allocateSlot(scopes.peek()), null);
+    local.defined = true;
+    scopes.peek().locals.put(keyword, local);
   }
 
   private void define(Token name) {
@@ -306,24 +450,96 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return;
     }
 
-    Map<String, Boolean> scope = scopes.peek();
     // Indicate that the initializer expression has been evaluated and
     // that the variable is now fully initialized and available for use.
-    scope.put(name.lexeme, true);
+    scopes.peek().locals.get(name.lexeme).defined = true;
+  }
+
+  private void markLate(Token name) {
+    if (!scopes.isEmpty()) {
+      scopes.peek().locals.get(name.lexeme).late = true;
+    }
   }
 
   private void resolveLocal(Expr expr, Token name) {
     // Start at the innermost scope (top of the stack) and work our way
     // outwards (down the stack). At each scope, check for the variable of
     // interest. If we find it, resolve it and pass the number of scopes
-    // between the current innermost scope and the scope where we found it.
-    // Current scope = 0, immediately enclosing scope = 1, etc.
+    // between the current innermost scope and the scope where we found it,
+    // along with the variable's slot in that scope.
+    // Current scope = 0, immediately enclosing scope = 1, etc. Only scopes
+    // with their own Environment count, since the others don't exist at
+    // runtime. A variable from an enclosing function is instead found among
+    // the current function's captures.
+    // We write the result straight onto the node so the Interpreter doesn't
+    // need a side table. If we never find the variable, its depth stays -1
+    // and the Interpreter treats it as a global.
+    int depth = 0;
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
+      Local local = scopes.get(i).locals.get(name.lexeme);
+      if (local != null) {
+        int slot = local.slot;
+        FunctionScope function = scopes.peek().function;
+        if (local.scope.function != function) {
+          local.captured = true;
+          depth = Environment.CAPTURED;
+          slot = capture(function, local);
+        }
+
+        if (expr instanceof Expr.Variable) {
+          ((Expr.Variable) expr).depth = depth;
+          ((Expr.Variable) expr).slot = slot;
+          local.uses.add(expr);
+        } else if (expr instanceof Expr.Assign) {
+          ((Expr.Assign) expr).depth = depth;
+          ((Expr.Assign) expr).slot = slot;
+          local.uses.add(expr);
+          local.assigned = true;
+        } else if (expr instanceof Expr.This) {
+          ((Expr.This) expr).depth = depth;
+          ((Expr.This) expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+          ((Expr.Super) expr).depth = depth;
+          ((Expr.Super) expr).slot = slot;
+        }
         return;
       }
+
+      if (scopes.get(i).hasEnvironment) {
+        depth++;
+      }
+    }
+  }
+
+  // Add a variable from an enclosing function to the function's captures,
+  // and to those of every function in between, and return its index.
+  private int capture(FunctionScope function, Local local) {
+    int index = function.captured.indexOf(local);
+    if (index >= 0) {
+      return index;
+    }
+
+    int depth;
+    int slot;
+    if (local.scope.function == function.enclosing) {
+      // Count the scopes with an Environment between the one the function
+      // is declared in and the variable's.
+      depth = 0;
+      for (int i = function.scopeIndex - 1; scopes.get(i) != local.scope; i--) {
+        if (scopes.get(i).hasEnvironment) {
+          depth++;
+        }
+      }
+      slot = local.slot;
+    } else {
+      depth = Environment.CAPTURED;
+      slot = capture(function.enclosing, local);
     }
+
+    function.captured.add(local);
+    function.depths.add(depth);
+    function.slots.add(slot);
+    return function.captured.size() - 1;
   }
 
   private void resolveFunction(Stmt.Function function, FunctionType type) {
@@ -332,18 +548,68 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     // Create a new scope for a function's body. Declare and define all
     // parameters of the function within this scope.
-    beginScope();
+    Scope scope = beginFunctionScope();
+    // Methods get "this" in the first slot of their own scope, so calling a
+    // method only needs the receiver, not an extra scope to hold it.
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      function.isMethod = true;
+      declareKeyword("this");
+    }
+
     for (Token param : function.params) {
-      declare(param);
+      declare(param, null);
       define(param);
     }
 
     resolve(function.body);
+    function.frameSize = scope.size;
     endScope();
+
+    FunctionScope resolved = scope.function;
+    function.captureDepths = toArray(resolved.depths);
+    function.captureSlots = toArray(resolved.slots);
+    function.cellParams = toArray(resolved.cellParams);
     currentFunction = enclosingFunction;
   }
 
+  private static int[] toArray(List<Integer> values) {
+    int[] array = new int[values.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = values.get(i);
+    }
+    return array;
+  }
+
+  // Once a scope is done, every use of its variables has been seen. A
+  // captured variable that can change after a closure copies it has to live
+  // in a Cell the closures share. Everything else is copied by value.
   private void endScope() {
+    for (Local local : scopes.peek().locals.values()) {
+      if (local.captured && (local.assigned || local.late)) {
+        putInCell(local);
+      }
+    }
+
     scopes.pop();
   }
-}
\ No newline at end of file
+
+  private void putInCell(Local local) {
+    for (Expr use : local.uses) {
+      if (use instanceof Expr.Variable) {
+        ((Expr.Variable) use).inCell = true;
+      } else {
+        ((Expr.Assign) use).inCell = true;
+      }
+    }
+
+    if (local.declaration instanceof Stmt.Var) {
+      ((Stmt.Var) local.declaration).inCell = true;
+    } else if (local.declaration instanceof Stmt.Class) {
+      ((Stmt.Class) local.declaration).inCell = true;
+    } else if (local.declaration instanceof Stmt.Function) {
+      ((Stmt.Function) local.declaration).inCell = true;
+    } else {
+      local.scope.function.cellParams.add(local.slot);
+    }
+  }
+}
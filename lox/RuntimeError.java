@@ -2,9 +2,19 @@ package com.craftinginterpreters.lox;
 
 class RuntimeError extends RuntimeException {
   final Token token;
+  final int line;
 
   RuntimeError(Token token, String message) {
     super(message);
     this.token = token;
+    this.line = token.line;
+  }
+
+  // The bytecode VM doesn't keep tokens around at runtime, only the source
+  // line each instruction came from.
+  RuntimeError(int line, String message) {
+    super(message);
+    this.token = null;
+    this.line = line;
   }
 }
@@ -0,0 +1,56 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Describes the layout of a LoxInstance's fields: which slot of the instance's
+// field array holds each field. Instances that get the same fields in the
+// same order share one Shape, so the name-to-slot map is stored once per
+// layout instead of once per instance.
+//
+// Shapes are immutable. Adding a field moves an instance to a new Shape by
+// following a transition, which is created the first time any instance
+// takes it. Each class has its own root Shape, so a Shape also tells you
+// the class of the instances that have it.
+final class Shape {
+  final ShapedClass klass;
+  // The number of fields, which is also the slot the next field will get.
+  final int size;
+  private final Map<String, Integer> slots;
+  private Map<String, Shape> transitions;
+
+  // Create the empty root shape for a class.
+  Shape(ShapedClass klass) {
+    this(klass, new HashMap<>());
+  }
+
+  private Shape(ShapedClass klass, Map<String, Integer> slots) {
+    this.klass = klass;
+    this.slots = slots;
+    this.size = slots.size();
+  }
+
+  // Find the slot holding a field, or -1 if instances of this shape don't
+  // have it.
+  int slotOf(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  // The shape an instance moves to when it gains a field it doesn't have.
+  Shape withField(String name) {
+    if (transitions == null) {
+      transitions = new HashMap<>();
+    }
+
+    Shape next = transitions.get(name);
+    if (next == null) {
+      Map<String, Integer> nextSlots = new HashMap<>(slots);
+      nextSlots.put(name, size);
+      next = new Shape(klass, nextSlots);
+      transitions.put(name, next);
+    }
+
+    return next;
+  }
+}
@@ -0,0 +1,31 @@
+package com.craftinginterpreters.lox;
+
+// The part of a class its instances and their shapes rely on. Both engines'
+// classes extend this, the Interpreter's LoxClass and the bytecode VM's
+// ObjClass, so they share LoxInstance, Shape and PropertyCache. Only the
+// kind of method differs: a LoxFunction in the Interpreter and a compiled
+// closure in the VM.
+abstract class ShapedClass {
+  final String name;
+  // The shape every new instance starts out with.
+  final Shape rootShape = new Shape(this);
+  // The most fields any instance of this class has had, used to size the
+  // field array of new instances.
+  int fieldCount = 0;
+
+  ShapedClass(String name) {
+    this.name = name;
+  }
+
+  // The method with the given name, or null if there isn't one.
+  abstract Object findMethod(String name);
+
+  // The value of getting a method as a property: the method bound to the
+  // instance.
+  abstract Object bind(Object method, LoxInstance instance);
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+// A property get whose value the SsaOptimizer keeps in a slot of its
+// function's frame. The get that computes the value first stores it there.
+// The gets the optimizer found to compute the same value read the slot
+// instead of looking the property up. When the first get was hoisted out of
+// a loop, it reads the slot too, and whichever of them runs first in each
+// run of the loop stores the value.
+//
+// A slot holds UNSET until its get has run: the loop a get was hoisted out
+// of clears it each time the loop starts. A get that finds a method binds a
+// new bound method every time, and two of those aren't equal, so only other
+// values are shared. Whenever the slot is UNSET, a get just evaluates as
+// written.
+final class SharedGet {
+  static final Object UNSET = new Object();
+
+  // Set by the --stats option.
+  static boolean collectStats = false;
+  private static long installed = 0;
+  private static long hoisted = 0;
+  private static long reused = 0;
+
+  private final int slot;
+  // Whether the get stores its value in the slot, and whether it reads the
+  // value from there when the slot has one.
+  private final boolean stores;
+  private final boolean reads;
+
+  SharedGet(int slot, boolean stores, boolean reads) {
+    this.slot = slot;
+    this.stores = stores;
+    this.reads = reads;
+  }
+
+  Object execute(Interpreter interpreter, Expr.Get expr) {
+    if (reads) {
+      Object value = interpreter.getLocal(0, slot);
+      if (value != UNSET) {
+        if (collectStats) {
+          reused++;
+        }
+        return value;
+      }
+    }
+
+    Object value = interpreter.executeGet(expr);
+    if (stores) {
+      interpreter.setLocal(0, slot, value instanceof LoxFunction ? UNSET : value);
+    }
+    return value;
+  }
+
+  // Count a get the SsaOptimizer gave a slot to.
+  static void installed(boolean hoistedOutOfLoop) {
+    installed++;
+    if (hoistedOutOfLoop) {
+      hoisted++;
+    }
+  }
+
+  static void report(PrintStream out) {
+    out.printf("Shared gets: %d installed, %d of them hoisted out of loops, "
+        + "%d property lookups skipped%n", installed, hoisted, reused);
+  }
+}
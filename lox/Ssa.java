@@ -0,0 +1,365 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// The intermediate representation the SsaOptimizer works on: the body of one
+// function as a control-flow graph of basic blocks, in static single
+// assignment form. Every Value is defined exactly once, by the instruction
+// that computes it, and names the Values it uses directly, so passes don't
+// have to track which assignment a variable read sees. Where control flow
+// joins and a variable can hold different Values, a phi picks the one for
+// the predecessor control came from.
+//
+// Local variables in slots of the function's own frame become Values
+// outright. What can change behind the function's back, the properties of
+// objects, globals and variables in Cells, is modeled as memory instead:
+// each property name, global and Cell variable is a location, and every
+// instruction that can write a location defines a new Value for its state.
+// A read takes the state it sees as an operand. Two reads with the same
+// operands therefore see the same value, and a read in a loop whose state
+// operand comes from before the loop sees nothing the loop does.
+//
+// SsaBuilder makes a Graph from a resolved Stmt.Function. Each Value keeps
+// the node it came from, so the SsaOptimizer can annotate the tree with
+// what it finds.
+final class Ssa {
+  enum Op {
+    // The value a slot holds when the function is called: a parameter, or
+    // "this" in a method.
+    PARAMETER,
+    // The state of a memory location when the function is called.
+    MEMORY,
+    CONSTANT,
+    PHI,
+    // An assignment to a local, or a variable's initializer.
+    COPY,
+    BINARY,
+    UNARY,
+    // A variable captured from an enclosing function that isn't in a Cell,
+    // which can't change for as long as the function runs.
+    CAPTURED,
+    LOAD_GLOBAL,
+    LOAD_CELL,
+    GET,
+    // A method looked up in the superclass, bound to "this".
+    SUPER,
+    FUNCTION,
+    CLASS,
+    STORE_GLOBAL,
+    STORE_CELL,
+    SET,
+    CALL,
+    PRINT,
+    // The instructions that end a block.
+    JUMP,
+    BRANCH,
+    RETURN
+  }
+
+  static final class Value {
+    final int id;
+    final Op op;
+    final List<Value> operands = new ArrayList<>();
+    // The node the Value was made from, or null.
+    final Object origin;
+    Block block;
+
+    // What the instruction works with, depending on its op: a literal's
+    // value, the slot of a parameter or variable, the name of a property,
+    // variable, function or class, or the operator.
+    Object constant;
+    int slot;
+    String name;
+    Token operator;
+    // For an instruction that writes memory, the locations it writes.
+    List<String> writes;
+    // For a memory state or a phi of one, the location it's the state of.
+    String location;
+
+    // Set once a pass has found the Value to be the same as another one, and
+    // removed it from its block.
+    Value replacement;
+    // The gets the SsaOptimizer found to compute the same value as this one,
+    // and removed.
+    final List<Expr.Get> equivalents = new ArrayList<>();
+    // The outermost loop the SsaOptimizer hoisted the Value out of, or null.
+    Stmt.While hoistedFrom;
+
+    Value(int id, Op op, Object origin) {
+      this.id = id;
+      this.op = op;
+      this.origin = origin;
+    }
+
+    // The Value this one stands for, after every replacement.
+    Value resolve() {
+      Value value = this;
+      while (value.replacement != null) {
+        value = value.replacement;
+      }
+      return value;
+    }
+
+    // Point the operands at the Values they stand for.
+    void resolveOperands() {
+      for (int i = 0; i < operands.size(); i++) {
+        operands.set(i, operands.get(i).resolve());
+      }
+    }
+
+    boolean isTerminator() {
+      return op == Op.JUMP || op == Op.BRANCH || op == Op.RETURN;
+    }
+
+    // Whether evaluating the instruction can report a runtime error. An
+    // operator can't when TypeInference proved its operands are numbers.
+    boolean canFail() {
+      switch (op) {
+        case BINARY: {
+          Expr.Binary binary = (Expr.Binary) origin;
+          TokenType type = binary.operator.type;
+          return type != TokenType.BANG_EQUAL && type != TokenType.EQUAL_EQUAL
+              && !TypeInference.isProven(binary);
+        }
+        case UNARY: {
+          Expr.Unary unary = (Expr.Unary) origin;
+          return unary.operator.type == TokenType.MINUS
+              && unary.right.type != TypeInference.NUMBER;
+        }
+        case LOAD_GLOBAL:
+        case GET:
+        case SUPER:
+        case CLASS:
+        case SET:
+        case CALL:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "v" + id;
+    }
+  }
+
+  static final class Block {
+    final int id;
+    // Phis first, then the other instructions, with a terminator at the end.
+    final List<Value> values = new ArrayList<>();
+    final List<Block> predecessors = new ArrayList<>();
+    final List<Block> successors = new ArrayList<>();
+    // For the header of a loop, the loop.
+    Stmt.While loop;
+
+    Block(int id) {
+      this.id = id;
+    }
+
+    Value terminator() {
+      if (values.isEmpty()) {
+        return null;
+      }
+
+      Value last = values.get(values.size() - 1);
+      return last.isTerminator() ? last : null;
+    }
+
+    @Override
+    public String toString() {
+      return "b" + id;
+    }
+  }
+
+  static final class Graph {
+    final Stmt.Function function;
+    // The entry block comes first.
+    final List<Block> blocks = new ArrayList<>();
+    private int nextBlock = 0;
+    private int nextValue = 0;
+
+    Graph(Stmt.Function function) {
+      this.function = function;
+    }
+
+    Block entry() {
+      return blocks.get(0);
+    }
+
+    Block newBlock() {
+      Block block = new Block(nextBlock++);
+      blocks.add(block);
+      return block;
+    }
+
+    Value newValue(Op op, Object origin) {
+      return new Value(nextValue++, op, origin);
+    }
+
+    // Print the graph in a readable form, as the --dump-ssa option does.
+    void print(PrintStream out) {
+      out.printf("fun %s (line %d)%n", function.name.lexeme, function.name.line);
+      for (Block block : blocks) {
+        out.print("  " + block + ":");
+        if (!block.predecessors.isEmpty()) {
+          out.print(" <-");
+          for (Block predecessor : block.predecessors) {
+            out.print(" " + predecessor);
+          }
+        }
+        if (block.loop != null) {
+          out.print("  (header of " + describe(block.loop) + ")");
+        }
+        out.println();
+
+        for (Value value : block.values) {
+          out.println("    " + describe(value));
+        }
+      }
+    }
+  }
+
+  private static String describe(Value value) {
+    StringBuilder text = new StringBuilder();
+    if (!value.isTerminator() && value.op != Op.PRINT) {
+      text.append(value).append(" = ");
+    }
+
+    switch (value.op) {
+      case PARAMETER:
+        text.append("parameter ").append(value.slot);
+        break;
+      case MEMORY:
+        text.append("memory ").append(value.location);
+        break;
+      case CONSTANT:
+        text.append(value.constant instanceof String
+            ? "\"" + value.constant + "\""
+            : Interpreter.stringify(value.constant));
+        break;
+      case PHI:
+        text.append("phi");
+        if (value.location != null) {
+          text.append(" ").append(value.location);
+        }
+        appendOperands(text, value.operands);
+        break;
+      case BINARY:
+        text.append(value.operands.get(0)).append(" ").append(value.operator.lexeme)
+            .append(" ").append(value.operands.get(1));
+        break;
+      case UNARY:
+        text.append(value.operator.lexeme).append(value.operands.get(0));
+        break;
+      case CAPTURED:
+        text.append("captured ").append(value.slot);
+        break;
+      case LOAD_GLOBAL:
+      case LOAD_CELL:
+        text.append(value.op.name().toLowerCase()).append(" ").append(value.name)
+            .append(" [").append(value.operands.get(0)).append("]");
+        break;
+      case GET:
+        text.append("get ").append(value.operands.get(0)).append(".").append(value.name)
+            .append(" [").append(value.operands.get(1)).append("]");
+        break;
+      case SUPER:
+        text.append("super.").append(value.name).append(" of ").append(value.operands.get(0));
+        break;
+      case FUNCTION:
+      case CLASS:
+        text.append(value.op.name().toLowerCase()).append(" ").append(value.name);
+        appendOperands(text, value.operands);
+        break;
+      case STORE_GLOBAL:
+      case STORE_CELL:
+        text.append(value.op.name().toLowerCase()).append(" ").append(value.name);
+        appendOperands(text, value.operands);
+        break;
+      case SET:
+        text.append("set ").append(value.operands.get(0)).append(".").append(value.name)
+            .append(" ").append(value.operands.get(1));
+        break;
+      case CALL:
+        if (value.name != null) {
+          text.append("invoke ").append(value.operands.get(0)).append(".").append(value.name);
+        } else {
+          text.append("call ").append(value.operands.get(0));
+        }
+        text.append("(");
+        for (int i = 1; i < value.operands.size(); i++) {
+          text.append(i > 1 ? ", " : "").append(value.operands.get(i));
+        }
+        text.append(")");
+        break;
+      case BRANCH:
+        text.append("branch ").append(value.operands.get(0)).append(" ")
+            .append(value.block.successors.get(0)).append(" ")
+            .append(value.block.successors.get(1));
+        break;
+      case JUMP:
+        text.append("jump ").append(value.block.successors.get(0));
+        break;
+      default:
+        text.append(value.op.name().toLowerCase());
+        appendOperands(text, value.operands);
+        break;
+    }
+
+    if (value.writes != null && !value.writes.isEmpty()) {
+      text.append("  writes ").append(String.join(" ", value.writes));
+    }
+    if (value.hoistedFrom != null) {
+      text.append("  hoisted out of ").append(describe(value.hoistedFrom));
+      if (value.canFail()) {
+        text.append(", runs where it was the first time");
+      }
+    }
+    return text.toString();
+  }
+
+  private static String describe(Stmt.While loop) {
+    int line = line(loop.condition);
+    return line > 0 ? "the loop at line " + line : "a loop";
+  }
+
+  private static void appendOperands(StringBuilder text, List<Value> operands) {
+    for (Value operand : operands) {
+      text.append(" ").append(operand);
+    }
+  }
+
+  // The line an expression starts on, for messages.
+  static int line(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return ((Expr.Assign) expr).name.line;
+      case Expr.BINARY:
+        return ((Expr.Binary) expr).operator.line;
+      case Expr.CALL:
+        return ((Expr.Call) expr).paren.line;
+      case Expr.GET:
+        return ((Expr.Get) expr).name.line;
+      case Expr.GROUPING:
+        return line(((Expr.Grouping) expr).expression);
+      case Expr.LOGICAL:
+        return ((Expr.Logical) expr).operator.line;
+      case Expr.SET:
+        return ((Expr.Set) expr).name.line;
+      case Expr.SUPER:
+        return ((Expr.Super) expr).keyword.line;
+      case Expr.THIS:
+        return ((Expr.This) expr).keyword.line;
+      case Expr.UNARY:
+        return ((Expr.Unary) expr).operator.line;
+      case Expr.VARIABLE:
+        return ((Expr.Variable) expr).name.line;
+      default:
+        // A literal knows no line.
+        return 0;
+    }
+  }
+}
@@ -0,0 +1,672 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Lowers the body of a resolved function into an Ssa.Graph. SSA form is built
+// on the fly, as in "Simple and Efficient Construction of Static Single
+// Assignment Form" by Braun et al.: every variable, whether a slot or a
+// memory location, remembers the Value it was last given in each block, and
+// a read in a block that didn't give it one looks in the predecessors,
+// placing a phi where they can disagree. A block is sealed once all its
+// predecessors are known. Until then, a read puts an empty phi in it, and
+// sealing fills the phi in. Phis that turn out to pick the same Value from
+// every predecessor are removed again.
+//
+// Each function gets a builder of its own. Nested functions and methods are
+// lowered separately, so here their declarations are just Values.
+class SsaBuilder {
+  // Thrown to give up on a function the builder can't represent.
+  private static class Unsupported extends RuntimeException {
+  }
+
+  // The memory locations a call can write to, across the whole program.
+  private final Set<String> clobbered;
+
+  private Ssa.Graph graph;
+  private Ssa.Block current;
+  // How many of the function's slots hold its parameters and "this" when
+  // it's called.
+  private int parameters;
+  // The memory locations the function reads, in the order it first does.
+  private final Set<String> locations = new LinkedHashSet<>();
+  // The ones a call in the function has to be assumed to write.
+  private final List<String> callWrites = new ArrayList<>();
+
+  // The Value of each variable, by slot or location, at the end of each
+  // block that gives it one.
+  private final Map<Object, Map<Ssa.Block, Ssa.Value>> definitions = new HashMap<>();
+  // Phis placed in blocks that weren't sealed yet, which still need their
+  // operands.
+  private final Map<Ssa.Block, Map<Object, Ssa.Value>> incompletePhis = new HashMap<>();
+  private final Set<Ssa.Block> sealed = new HashSet<>();
+  // How many PARAMETER and MEMORY Values are at the top of the entry block.
+  private int entryValues = 0;
+
+  SsaBuilder(Set<String> clobbered) {
+    this.clobbered = clobbered;
+  }
+
+  // Lower the function, or return null if it uses something that can't be
+  // lowered.
+  Ssa.Graph build(Stmt.Function function) {
+    graph = new Ssa.Graph(function);
+    parameters = function.params.size() + (function.isMethod ? 1 : 0);
+
+    scanAll(function.body);
+    for (String location : locations) {
+      if (clobbered.contains(location)) {
+        callWrites.add(location);
+      }
+    }
+
+    current = graph.newBlock();
+    sealed.add(current);
+    try {
+      lowerAll(function.body);
+    } catch (Unsupported unsupported) {
+      return null;
+    }
+
+    // Falling off the end returns nil.
+    emit(Ssa.Op.RETURN, null, constant(null, null));
+
+    // Operands can still name phis that were removed after they were used.
+    for (Ssa.Block block : graph.blocks) {
+      for (Ssa.Value value : block.values) {
+        value.resolveOperands();
+      }
+    }
+    return graph;
+  }
+
+  // Find the memory locations the function reads.
+  private void scanAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      scan(statement);
+    }
+  }
+
+  private void scan(Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        scanAll(((Stmt.Block) stmt).statements);
+        break;
+      case Stmt.CLASS: {
+        Stmt.Class klass = (Stmt.Class) stmt;
+        if (klass.superclass != null) {
+          scan(klass.superclass);
+        }
+        break;
+      }
+      case Stmt.EXPRESSION:
+        scan(((Stmt.Expression) stmt).expression);
+        break;
+      case Stmt.FUNCTION:
+        break;
+      case Stmt.IF: {
+        Stmt.If ifStmt = (Stmt.If) stmt;
+        scan(ifStmt.condition);
+        scan(ifStmt.thenBranch);
+        if (ifStmt.elseBranch != null) {
+          scan(ifStmt.elseBranch);
+        }
+        break;
+      }
+      case Stmt.PRINT:
+        scan(((Stmt.Print) stmt).expression);
+        break;
+      case Stmt.RETURN: {
+        Stmt.Return returnStmt = (Stmt.Return) stmt;
+        if (returnStmt.value != null) {
+          scan(returnStmt.value);
+        }
+        break;
+      }
+      case Stmt.VAR: {
+        Stmt.Var var = (Stmt.Var) stmt;
+        if (var.initializer != null) {
+          scan(var.initializer);
+        }
+        break;
+      }
+      case Stmt.WHILE: {
+        Stmt.While loop = (Stmt.While) stmt;
+        scan(loop.condition);
+        scan(loop.body);
+        break;
+      }
+    }
+  }
+
+  private void scan(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        scan(((Expr.Assign) expr).value);
+        break;
+      case Expr.BINARY:
+        scan(((Expr.Binary) expr).left);
+        scan(((Expr.Binary) expr).right);
+        break;
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        scan(call.callee instanceof Expr.Get ? ((Expr.Get) call.callee).object : call.callee);
+        for (Expr argument : call.arguments) {
+          scan(argument);
+        }
+        break;
+      }
+      case Expr.GET:
+        locations.add(property(((Expr.Get) expr).name));
+        scan(((Expr.Get) expr).object);
+        break;
+      case Expr.GROUPING:
+        scan(((Expr.Grouping) expr).expression);
+        break;
+      case Expr.LOGICAL:
+        scan(((Expr.Logical) expr).left);
+        scan(((Expr.Logical) expr).right);
+        break;
+      case Expr.SET:
+        scan(((Expr.Set) expr).object);
+        scan(((Expr.Set) expr).value);
+        break;
+      case Expr.UNARY:
+        scan(((Expr.Unary) expr).right);
+        break;
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable) expr;
+        if (variable.depth == -1) {
+          locations.add(global(variable.name));
+        } else if (variable.inCell) {
+          locations.add(cell(variable.name));
+        }
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  // The names of memory locations. A location stands for every variable or
+  // property with its name, which only ever makes the analysis assume more
+  // writes than there are.
+  static String property(Token name) {
+    return ".".concat(name.lexeme);
+  }
+
+  static String global(Token name) {
+    return "global ".concat(name.lexeme);
+  }
+
+  static String cell(Token name) {
+    return "cell ".concat(name.lexeme);
+  }
+
+  private void lowerAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      lower(statement);
+    }
+  }
+
+  private void lower(Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        // Blocks inside a function never have an Environment of their own.
+        lowerAll(((Stmt.Block) stmt).statements);
+        break;
+      case Stmt.CLASS: {
+        Stmt.Class klass = (Stmt.Class) stmt;
+        Ssa.Value value = klass.superclass == null
+            ? emit(Ssa.Op.CLASS, klass)
+            : emit(Ssa.Op.CLASS, klass, lower(klass.superclass));
+        value.name = klass.name.lexeme;
+        declare(klass.name, klass.slot, klass.inCell, value, klass);
+        break;
+      }
+      case Stmt.EXPRESSION:
+        lower(((Stmt.Expression) stmt).expression);
+        break;
+      case Stmt.FUNCTION: {
+        Stmt.Function function = (Stmt.Function) stmt;
+        Ssa.Value value = emit(Ssa.Op.FUNCTION, function);
+        value.name = function.name.lexeme;
+        declare(function.name, function.slot, function.inCell, value, function);
+        break;
+      }
+      case Stmt.IF:
+        lowerIf((Stmt.If) stmt);
+        break;
+      case Stmt.PRINT:
+        emit(Ssa.Op.PRINT, stmt, lower(((Stmt.Print) stmt).expression));
+        break;
+      case Stmt.RETURN: {
+        Stmt.Return returnStmt = (Stmt.Return) stmt;
+        Ssa.Value value = returnStmt.value == null
+            ? constant(null, null)
+            : lower(returnStmt.value);
+        emit(Ssa.Op.RETURN, returnStmt, value);
+
+        // Anything after the return can't run, but still gets lowered, into
+        // a block nothing jumps to.
+        current = graph.newBlock();
+        sealed.add(current);
+        break;
+      }
+      case Stmt.VAR: {
+        Stmt.Var var = (Stmt.Var) stmt;
+        Ssa.Value value = var.initializer == null
+            ? constant(null, null)
+            : lower(var.initializer);
+        declare(var.name, var.slot, var.inCell, value, var);
+        break;
+      }
+      case Stmt.WHILE:
+        lowerWhile((Stmt.While) stmt);
+        break;
+    }
+  }
+
+  // Give a newly declared variable its value. A variable in a Cell gets a
+  // new Cell, which is a write to its location.
+  private void declare(Token name, int slot, boolean inCell, Ssa.Value value, Stmt origin) {
+    if (inCell) {
+      Ssa.Value store = emit(Ssa.Op.STORE_CELL, origin, value);
+      store.name = name.lexeme;
+      store.slot = slot;
+      write(cell(name), store);
+      return;
+    }
+
+    writeVariable(slot, current, emit(Ssa.Op.COPY, origin, value));
+  }
+
+  private void lowerIf(Stmt.If stmt) {
+    Ssa.Value condition = lower(stmt.condition);
+    Ssa.Block thenBlock = graph.newBlock();
+    Ssa.Block elseBlock = stmt.elseBranch == null ? null : graph.newBlock();
+    Ssa.Block join = graph.newBlock();
+    branch(condition, thenBlock, elseBlock == null ? join : elseBlock);
+
+    seal(thenBlock);
+    current = thenBlock;
+    lower(stmt.thenBranch);
+    jump(join);
+
+    if (elseBlock != null) {
+      seal(elseBlock);
+      current = elseBlock;
+      lower(stmt.elseBranch);
+      jump(join);
+    }
+
+    seal(join);
+    current = join;
+  }
+
+  // A loop's header can't be sealed until the end of its body, which jumps
+  // back to it, has been lowered.
+  private void lowerWhile(Stmt.While stmt) {
+    Ssa.Block header = graph.newBlock();
+    header.loop = stmt;
+    jump(header);
+
+    current = header;
+    Ssa.Value condition = lower(stmt.condition);
+    Ssa.Block body = graph.newBlock();
+    Ssa.Block exit = graph.newBlock();
+    branch(condition, body, exit);
+
+    seal(body);
+    current = body;
+    lower(stmt.body);
+    jump(header);
+    seal(header);
+
+    seal(exit);
+    current = exit;
+  }
+
+  private Ssa.Value lower(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN:
+        return lowerAssign((Expr.Assign) expr);
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary) expr;
+        Ssa.Value left = lower(binary.left);
+        Ssa.Value right = lower(binary.right);
+        Ssa.Value value = emit(Ssa.Op.BINARY, binary, left, right);
+        value.operator = binary.operator;
+        return value;
+      }
+      case Expr.CALL:
+        return lowerCall((Expr.Call) expr);
+      case Expr.GET: {
+        Expr.Get get = (Expr.Get) expr;
+        Ssa.Value object = lower(get.object);
+        String location = property(get.name);
+        Ssa.Value value = emit(Ssa.Op.GET, get, object, readVariable(location, current));
+        value.name = get.name.lexeme;
+        return value;
+      }
+      case Expr.GROUPING:
+        return lower(((Expr.Grouping) expr).expression);
+      case Expr.LITERAL:
+        return constant(((Expr.Literal) expr).value, expr);
+      case Expr.LOGICAL:
+        return lowerLogical((Expr.Logical) expr);
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        Ssa.Value object = lower(set.object);
+        Ssa.Value value = lower(set.value);
+        Ssa.Value store = emit(Ssa.Op.SET, set, object, value);
+        store.name = set.name.lexeme;
+        write(property(set.name), store);
+        return value;
+      }
+      case Expr.SUPER: {
+        Expr.Super superExpr = (Expr.Super) expr;
+        Ssa.Value value = emit(Ssa.Op.SUPER, superExpr, lower(superExpr.receiver));
+        value.name = superExpr.method.lexeme;
+        return value;
+      }
+      case Expr.THIS: {
+        Expr.This thisExpr = (Expr.This) expr;
+        return local(thisExpr.depth, thisExpr.slot, expr);
+      }
+      case Expr.UNARY: {
+        Expr.Unary unary = (Expr.Unary) expr;
+        Ssa.Value value = emit(Ssa.Op.UNARY, unary, lower(unary.right));
+        value.operator = unary.operator;
+        return value;
+      }
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable) expr;
+        if (variable.depth == -1) {
+          String location = global(variable.name);
+          Ssa.Value value = emit(Ssa.Op.LOAD_GLOBAL, variable, readVariable(location, current));
+          value.name = variable.name.lexeme;
+          return value;
+        }
+
+        if (variable.inCell) {
+          String location = cell(variable.name);
+          Ssa.Value value = emit(Ssa.Op.LOAD_CELL, variable, readVariable(location, current));
+          value.name = variable.name.lexeme;
+          value.slot = variable.slot;
+          return value;
+        }
+
+        return local(variable.depth, variable.slot, expr);
+      }
+    }
+
+    throw new Unsupported();
+  }
+
+  // Read a variable that isn't global or in a Cell: one in a slot of the
+  // function's frame, or a copy captured from an enclosing function.
+  private Ssa.Value local(int depth, int slot, Expr origin) {
+    if (depth == Environment.CAPTURED) {
+      Ssa.Value value = emit(Ssa.Op.CAPTURED, origin);
+      value.slot = slot;
+      return value;
+    }
+
+    if (depth != 0) {
+      throw new Unsupported();
+    }
+
+    return readVariable(slot, current);
+  }
+
+  private Ssa.Value lowerAssign(Expr.Assign expr) {
+    Ssa.Value value = lower(expr.value);
+    if (expr.depth == -1) {
+      Ssa.Value store = emit(Ssa.Op.STORE_GLOBAL, expr, value);
+      store.name = expr.name.lexeme;
+      write(global(expr.name), store);
+      return value;
+    }
+
+    if (expr.inCell) {
+      Ssa.Value store = emit(Ssa.Op.STORE_CELL, expr, value);
+      store.name = expr.name.lexeme;
+      store.slot = expr.slot;
+      write(cell(expr.name), store);
+      return value;
+    }
+
+    if (expr.depth != 0) {
+      throw new Unsupported();
+    }
+
+    Ssa.Value copy = emit(Ssa.Op.COPY, expr, value);
+    writeVariable(expr.slot, current, copy);
+    return copy;
+  }
+
+  // A call can run any code, so it writes every location that anything
+  // called could. A call through "super" may be to the superclass's
+  // initializer, which sets fields on "this" that nothing else would, so it
+  // writes every location the function reads.
+  private Ssa.Value lowerCall(Expr.Call expr) {
+    List<Ssa.Value> operands = new ArrayList<>();
+    String method = null;
+    if (expr.callee instanceof Expr.Get) {
+      // The Interpreter looks a called method up on the receiver itself.
+      Expr.Get get = (Expr.Get) expr.callee;
+      operands.add(lower(get.object));
+      method = get.name.lexeme;
+    } else {
+      operands.add(lower(expr.callee));
+    }
+
+    for (Expr argument : expr.arguments) {
+      operands.add(lower(argument));
+    }
+
+    Ssa.Value call = emit(Ssa.Op.CALL, expr, operands.toArray(new Ssa.Value[0]));
+    call.name = method;
+    call.writes = expr.callee instanceof Expr.Super ? new ArrayList<>(locations) : callWrites;
+    for (String location : call.writes) {
+      writeVariable(location, current, call);
+    }
+    return call;
+  }
+
+  private Ssa.Value lowerLogical(Expr.Logical expr) {
+    Ssa.Value left = lower(expr.left);
+    Ssa.Block leftEnd = current;
+    Ssa.Block right = graph.newBlock();
+    Ssa.Block join = graph.newBlock();
+    if (expr.operator.type == TokenType.OR) {
+      branch(left, join, right);
+    } else {
+      branch(left, right, join);
+    }
+
+    seal(right);
+    current = right;
+    Ssa.Value value = lower(expr.right);
+    Ssa.Block rightEnd = current;
+    jump(join);
+
+    seal(join);
+    current = join;
+    Ssa.Value phi = newPhi(join, null);
+    for (Ssa.Block predecessor : join.predecessors) {
+      phi.operands.add(predecessor == leftEnd ? left : value);
+    }
+    return tryRemoveTrivialPhi(phi);
+  }
+
+  private Ssa.Value emit(Ssa.Op op, Object origin, Ssa.Value... operands) {
+    Ssa.Value value = graph.newValue(op, origin);
+    for (Ssa.Value operand : operands) {
+      value.operands.add(operand);
+    }
+    value.block = current;
+    current.values.add(value);
+    return value;
+  }
+
+  private Ssa.Value constant(Object constant, Expr origin) {
+    Ssa.Value value = emit(Ssa.Op.CONSTANT, origin);
+    value.constant = constant;
+    return value;
+  }
+
+  private void write(String location, Ssa.Value store) {
+    store.writes = List.of(location);
+    writeVariable(location, current, store);
+  }
+
+  private void jump(Ssa.Block target) {
+    emit(Ssa.Op.JUMP, null);
+    link(current, target);
+  }
+
+  private void branch(Ssa.Value condition, Ssa.Block thenBlock, Ssa.Block elseBlock) {
+    emit(Ssa.Op.BRANCH, null, condition);
+    link(current, thenBlock);
+    link(current, elseBlock);
+  }
+
+  private static void link(Ssa.Block from, Ssa.Block to) {
+    from.successors.add(to);
+    to.predecessors.add(from);
+  }
+
+  private void writeVariable(Object variable, Ssa.Block block, Ssa.Value value) {
+    Map<Ssa.Block, Ssa.Value> values = definitions.get(variable);
+    if (values == null) {
+      values = new HashMap<>();
+      definitions.put(variable, values);
+    }
+    values.put(block, value);
+  }
+
+  private Ssa.Value readVariable(Object variable, Ssa.Block block) {
+    Map<Ssa.Block, Ssa.Value> values = definitions.get(variable);
+    if (values != null && values.containsKey(block)) {
+      return values.get(block).resolve();
+    }
+
+    return readVariableRecursive(variable, block);
+  }
+
+  private Ssa.Value readVariableRecursive(Object variable, Ssa.Block block) {
+    Ssa.Value value;
+    if (!sealed.contains(block)) {
+      value = newPhi(block, variable);
+      Map<Object, Ssa.Value> phis = incompletePhis.get(block);
+      if (phis == null) {
+        phis = new HashMap<>();
+        incompletePhis.put(block, phis);
+      }
+      phis.put(variable, value);
+    } else if (block.predecessors.isEmpty()) {
+      value = initial(variable, block);
+    } else if (block.predecessors.size() == 1) {
+      value = readVariable(variable, block.predecessors.get(0));
+    } else {
+      // Write the phi first, so a loop that leads back here finds it
+      // instead of placing another one.
+      Ssa.Value phi = newPhi(block, variable);
+      writeVariable(variable, block, phi);
+      value = addPhiOperands(variable, phi);
+    }
+
+    writeVariable(variable, block, value);
+    return value;
+  }
+
+  // The Value of a variable in a block nothing jumps to: what the function
+  // starts with in the entry block, and nil in code that can't run.
+  private Ssa.Value initial(Object variable, Ssa.Block block) {
+    Ssa.Value value;
+    if (block != graph.entry()) {
+      value = graph.newValue(Ssa.Op.CONSTANT, null);
+      block.values.add(0, value);
+    } else if (variable instanceof String) {
+      value = graph.newValue(Ssa.Op.MEMORY, null);
+      value.location = (String) variable;
+      block.values.add(entryValues++, value);
+    } else if ((int) variable < parameters) {
+      value = graph.newValue(Ssa.Op.PARAMETER, null);
+      value.slot = (int) variable;
+      block.values.add(entryValues++, value);
+    } else {
+      value = graph.newValue(Ssa.Op.CONSTANT, null);
+      block.values.add(entryValues++, value);
+    }
+
+    value.block = block;
+    return value;
+  }
+
+  private Ssa.Value newPhi(Ssa.Block block, Object variable) {
+    Ssa.Value phi = graph.newValue(Ssa.Op.PHI, null);
+    if (variable instanceof String) {
+      phi.location = (String) variable;
+    }
+    phi.block = block;
+
+    int index = 0;
+    while (index < block.values.size() && block.values.get(index).op == Ssa.Op.PHI) {
+      index++;
+    }
+    block.values.add(index, phi);
+    return phi;
+  }
+
+  private Ssa.Value addPhiOperands(Object variable, Ssa.Value phi) {
+    for (Ssa.Block predecessor : phi.block.predecessors) {
+      phi.operands.add(readVariable(variable, predecessor));
+    }
+    return tryRemoveTrivialPhi(phi);
+  }
+
+  // A phi whose operands are all the same Value, or the phi itself, is just
+  // that Value.
+  static Ssa.Value tryRemoveTrivialPhi(Ssa.Value phi) {
+    Ssa.Value same = null;
+    for (Ssa.Value operand : phi.operands) {
+      Ssa.Value value = operand.resolve();
+      if (value == same || value == phi) {
+        continue;
+      }
+
+      if (same != null) {
+        return phi;
+      }
+      same = value;
+    }
+
+    if (same == null) {
+      // Only code that can't run reads a variable that was never given a
+      // value.
+      return phi;
+    }
+
+    phi.replacement = same;
+    phi.block.values.remove(phi);
+    return same;
+  }
+
+  private void seal(Ssa.Block block) {
+    Map<Object, Ssa.Value> phis = incompletePhis.remove(block);
+    if (phis != null) {
+      for (Map.Entry<Object, Ssa.Value> entry : phis.entrySet()) {
+        addPhiOperands(entry.getKey(), entry.getValue());
+      }
+    }
+    sealed.add(block);
+  }
+}
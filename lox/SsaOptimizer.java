@@ -0,0 +1,663 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The middle end for the tree-walking Interpreter. Every function in the
+// program is lowered into an Ssa.Graph, where these passes run over it:
+//
+// - Copy propagation replaces each assignment to a local with the value
+//   assigned, and removes the phis that leaves with only one input.
+// - Global value numbering finds gets that compute what a get dominating
+//   them already computed, like the second "p.x" in "p.x * p.x", and
+//   removes them.
+// - Loop-invariant code motion moves gets whose operands all come from
+//   outside a loop into the block before it, like "obj.config.size" in a
+//   loop that doesn't set either property or call anything that could.
+//
+// The back end takes what the passes found about property gets back to the
+// tree. A get that others compute the same value as, or that was hoisted
+// out of a loop, gets a new slot in its function's frame and a SharedGet
+// annotation: it keeps its value in the slot, and the gets found equal to
+// it read the slot instead of looking the property up. A hoisted get also
+// reads its own slot, so only the first evaluation in each run of the loop
+// looks the property up, at the place in the loop it always did, where any
+// error it reports still comes from. The loop clears the slot each time it
+// starts.
+//
+// Only gets go back into the tree: arithmetic already specializes itself in
+// BinaryNode, and a slot read costs about as much as the operation it would
+// replace. So the last two passes only look at gets and at the loads of
+// variables that a get's object can come from. Nothing else could make two
+// gets equal or keep one inside a loop.
+//
+// Which locations a call can write depends on the code it might run, which
+// can be anywhere, so this only runs on whole programs, not a line at a
+// time in the REPL.
+class SsaOptimizer {
+  // Set by the --dump-ssa option.
+  static boolean dump = false;
+
+  // Across every program optimized, for the --stats report.
+  private static long lowered = 0;
+  private static long copies = 0;
+  private static long numbered = 0;
+  private static long hoisted = 0;
+
+  // Every function and method in the program.
+  private final List<Stmt.Function> functions = new ArrayList<>();
+  // The memory locations some function writes, which a call might.
+  // Initializers are handled apart: while one runs, "this" is a new
+  // instance nothing else refers to yet, so the fields it sets on "this"
+  // only count if something calls an initializer directly.
+  private final Set<String> clobbered = new HashSet<>();
+  private final Set<String> initializerFields = new HashSet<>();
+  private boolean initializerCalled = false;
+  private boolean inFunction = false;
+  private boolean inInitializer = false;
+
+  // The dominator tree of the graph being optimized.
+  private final Map<Ssa.Block, Ssa.Block> dominators = new HashMap<>();
+  private final Map<Ssa.Block, List<Ssa.Block>> dominated = new HashMap<>();
+  private List<Ssa.Block> order;
+
+  void optimize(List<Stmt> statements) {
+    analyzeAll(statements);
+    if (initializerCalled) {
+      clobbered.addAll(initializerFields);
+    }
+
+    for (Stmt.Function function : functions) {
+      Ssa.Graph graph = new SsaBuilder(clobbered).build(function);
+      if (graph == null) {
+        continue;
+      }
+
+      lowered++;
+      if (dump) {
+        System.err.println("Before SSA optimization:");
+        graph.print(System.err);
+      }
+
+      optimize(graph);
+
+      if (dump) {
+        System.err.println("After SSA optimization:");
+        graph.print(System.err);
+      }
+
+      install(graph);
+    }
+  }
+
+  private void optimize(Ssa.Graph graph) {
+    removeUnreachable(graph);
+    propagateCopies(graph);
+    findDominators(graph);
+    numberValues(graph.entry(), new HashMap<>());
+    rewriteOperands(graph);
+    hoistInvariants(graph);
+    // Gets hoisted out of different branches of a loop now sit side by side.
+    numberValues(graph.entry(), new HashMap<>());
+    rewriteOperands(graph);
+  }
+
+  static void report(PrintStream out) {
+    out.printf("SSA: %d functions, %d copies propagated, %d values numbered, "
+        + "%d hoisted out of loops%n",
+        lowered, copies, numbered, hoisted);
+    SharedGet.report(out);
+  }
+
+  // Find every function, and every location a function writes.
+  private void analyzeAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      analyze(statement);
+    }
+  }
+
+  private void analyze(Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK:
+        analyzeAll(((Stmt.Block) stmt).statements);
+        break;
+      case Stmt.CLASS: {
+        Stmt.Class klass = (Stmt.Class) stmt;
+        if (klass.superclass != null) {
+          analyze(klass.superclass);
+        }
+        for (Stmt.Function method : klass.methods) {
+          analyzeFunction(method, method.name.lexeme.equals("init"));
+        }
+        break;
+      }
+      case Stmt.EXPRESSION:
+        analyze(((Stmt.Expression) stmt).expression);
+        break;
+      case Stmt.FUNCTION:
+        analyzeFunction((Stmt.Function) stmt, false);
+        break;
+      case Stmt.IF: {
+        Stmt.If ifStmt = (Stmt.If) stmt;
+        analyze(ifStmt.condition);
+        analyze(ifStmt.thenBranch);
+        if (ifStmt.elseBranch != null) {
+          analyze(ifStmt.elseBranch);
+        }
+        break;
+      }
+      case Stmt.PRINT:
+        analyze(((Stmt.Print) stmt).expression);
+        break;
+      case Stmt.RETURN: {
+        Stmt.Return returnStmt = (Stmt.Return) stmt;
+        if (returnStmt.value != null) {
+          analyze(returnStmt.value);
+        }
+        break;
+      }
+      case Stmt.VAR: {
+        Stmt.Var var = (Stmt.Var) stmt;
+        if (var.initializer != null) {
+          analyze(var.initializer);
+        }
+        break;
+      }
+      case Stmt.WHILE: {
+        Stmt.While loop = (Stmt.While) stmt;
+        analyze(loop.condition);
+        analyze(loop.body);
+        break;
+      }
+    }
+  }
+
+  private void analyzeFunction(Stmt.Function function, boolean initializer) {
+    functions.add(function);
+
+    boolean enclosingFunction = inFunction;
+    boolean enclosingInitializer = inInitializer;
+    inFunction = true;
+    inInitializer = initializer;
+    analyzeAll(function.body);
+    inFunction = enclosingFunction;
+    inInitializer = enclosingInitializer;
+  }
+
+  private void analyze(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        Expr.Assign assign = (Expr.Assign) expr;
+        if (inFunction && assign.depth == -1) {
+          clobbered.add(SsaBuilder.global(assign.name));
+        } else if (inFunction && assign.inCell) {
+          clobbered.add(SsaBuilder.cell(assign.name));
+        }
+        analyze(assign.value);
+        break;
+      }
+      case Expr.BINARY:
+        analyze(((Expr.Binary) expr).left);
+        analyze(((Expr.Binary) expr).right);
+        break;
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        analyze(call.callee);
+        for (Expr argument : call.arguments) {
+          analyze(argument);
+        }
+        break;
+      }
+      case Expr.GET: {
+        Expr.Get get = (Expr.Get) expr;
+        if (get.name.lexeme.equals("init")) {
+          initializerCalled = true;
+        }
+        analyze(get.object);
+        break;
+      }
+      case Expr.GROUPING:
+        analyze(((Expr.Grouping) expr).expression);
+        break;
+      case Expr.LOGICAL:
+        analyze(((Expr.Logical) expr).left);
+        analyze(((Expr.Logical) expr).right);
+        break;
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        if (inInitializer && set.object instanceof Expr.This) {
+          initializerFields.add(SsaBuilder.property(set.name));
+        } else if (inFunction) {
+          clobbered.add(SsaBuilder.property(set.name));
+        }
+        analyze(set.object);
+        analyze(set.value);
+        break;
+      }
+      case Expr.SUPER:
+        // Only an initializer may call its superclass's, on its own new
+        // instance.
+        if (((Expr.Super) expr).method.lexeme.equals("init") && !inInitializer) {
+          initializerCalled = true;
+        }
+        break;
+      case Expr.UNARY:
+        analyze(((Expr.Unary) expr).right);
+        break;
+      default:
+        break;
+    }
+  }
+
+  // Remove the blocks that only code after a return leads to.
+  private static void removeUnreachable(Ssa.Graph graph) {
+    Set<Ssa.Block> reachable = new HashSet<>();
+    Deque<Ssa.Block> work = new ArrayDeque<>();
+    work.push(graph.entry());
+    while (!work.isEmpty()) {
+      Ssa.Block block = work.pop();
+      if (reachable.add(block)) {
+        for (Ssa.Block successor : block.successors) {
+          work.push(successor);
+        }
+      }
+    }
+
+    for (Ssa.Block block : reachable) {
+      for (int i = block.predecessors.size() - 1; i >= 0; i--) {
+        if (reachable.contains(block.predecessors.get(i))) {
+          continue;
+        }
+
+        block.predecessors.remove(i);
+        for (Ssa.Value value : block.values) {
+          if (value.op == Ssa.Op.PHI) {
+            value.operands.remove(i);
+          }
+        }
+      }
+    }
+
+    graph.blocks.retainAll(reachable);
+  }
+
+  // Remove every copy, and every phi that only ever has one value, until
+  // there are none left. Removing one can make another phi trivial.
+  private static void propagateCopies(Ssa.Graph graph) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Ssa.Block block : graph.blocks) {
+        for (Ssa.Value value : new ArrayList<>(block.values)) {
+          if (value.op == Ssa.Op.COPY) {
+            value.replacement = value.operands.get(0);
+            block.values.remove(value);
+          } else if (value.op != Ssa.Op.PHI
+              || SsaBuilder.tryRemoveTrivialPhi(value) == value) {
+            continue;
+          }
+
+          copies++;
+          changed = true;
+        }
+      }
+    }
+
+    rewriteOperands(graph);
+  }
+
+  private static void rewriteOperands(Ssa.Graph graph) {
+    for (Ssa.Block block : graph.blocks) {
+      for (Ssa.Value value : block.values) {
+        value.resolveOperands();
+      }
+    }
+  }
+
+  // Work out each block's immediate dominator, with the algorithm from "A
+  // Simple, Fast Dominance Algorithm" by Cooper, Harvey and Kennedy.
+  private void findDominators(Ssa.Graph graph) {
+    order = reversePostorder(graph);
+    Map<Ssa.Block, Integer> index = new HashMap<>();
+    for (int i = 0; i < order.size(); i++) {
+      index.put(order.get(i), i);
+    }
+
+    dominators.clear();
+    dominators.put(graph.entry(), graph.entry());
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Ssa.Block block : order) {
+        if (block == graph.entry()) {
+          continue;
+        }
+
+        Ssa.Block dominator = null;
+        for (Ssa.Block predecessor : block.predecessors) {
+          if (!dominators.containsKey(predecessor)) {
+            continue;
+          }
+
+          dominator = dominator == null
+              ? predecessor
+              : intersect(predecessor, dominator, index);
+        }
+
+        if (dominators.get(block) != dominator) {
+          dominators.put(block, dominator);
+          changed = true;
+        }
+      }
+    }
+
+    dominated.clear();
+    for (Ssa.Block block : order) {
+      dominated.put(block, new ArrayList<>());
+      if (block != graph.entry()) {
+        dominated.get(dominators.get(block)).add(block);
+      }
+    }
+  }
+
+  private Ssa.Block intersect(Ssa.Block a, Ssa.Block b, Map<Ssa.Block, Integer> index) {
+    while (a != b) {
+      while (index.get(a) > index.get(b)) {
+        a = dominators.get(a);
+      }
+      while (index.get(b) > index.get(a)) {
+        b = dominators.get(b);
+      }
+    }
+    return a;
+  }
+
+  private boolean dominates(Ssa.Block a, Ssa.Block b) {
+    while (b != a) {
+      Ssa.Block dominator = dominators.get(b);
+      if (dominator == b) {
+        return false;
+      }
+      b = dominator;
+    }
+    return true;
+  }
+
+  private static List<Ssa.Block> reversePostorder(Ssa.Graph graph) {
+    List<Ssa.Block> postorder = new ArrayList<>();
+    Set<Ssa.Block> visited = new HashSet<>();
+    // Each entry is a block and the index of the next successor to visit.
+    Deque<Object[]> stack = new ArrayDeque<>();
+    visited.add(graph.entry());
+    stack.push(new Object[] {graph.entry(), 0});
+    while (!stack.isEmpty()) {
+      Object[] top = stack.peek();
+      Ssa.Block block = (Ssa.Block) top[0];
+      int next = (int) top[1];
+      if (next < block.successors.size()) {
+        top[1] = next + 1;
+        Ssa.Block successor = block.successors.get(next);
+        if (visited.add(successor)) {
+          stack.push(new Object[] {successor, 0});
+        }
+      } else {
+        stack.pop();
+        postorder.add(block);
+      }
+    }
+
+    List<Ssa.Block> order = new ArrayList<>();
+    for (int i = postorder.size() - 1; i >= 0; i--) {
+      order.add(postorder.get(i));
+    }
+    return order;
+  }
+
+  // Walk the dominator tree, keeping a table of the instructions in the
+  // blocks above. An instruction with the same op and operands as one in
+  // the table computes the same value, since the one in the table has always
+  // run first.
+  private void numberValues(Ssa.Block block, Map<List<Object>, Ssa.Value> table) {
+    List<List<Object>> added = new ArrayList<>();
+    for (Ssa.Value value : new ArrayList<>(block.values)) {
+      value.resolveOperands();
+      List<Object> key = valueNumber(value);
+      if (key == null) {
+        continue;
+      }
+
+      Ssa.Value leader = table.get(key);
+      if (leader == null) {
+        table.put(key, value);
+        added.add(key);
+        continue;
+      }
+
+      value.replacement = leader;
+      block.values.remove(value);
+      if (value.origin instanceof Expr.Get) {
+        leader.equivalents.add((Expr.Get) value.origin);
+        leader.equivalents.addAll(value.equivalents);
+      }
+      numbered++;
+    }
+
+    for (Ssa.Block child : dominated.get(block)) {
+      numberValues(child, table);
+    }
+
+    for (List<Object> key : added) {
+      table.remove(key);
+    }
+  }
+
+  // A key that's the same for two instructions exactly when they compute the
+  // same value, or null for one that isn't numbered. Only gets and the
+  // variable loads their objects come from are: constants and operators
+  // never produce an instance, so a get on one has nothing to share. A read
+  // of memory includes the state it reads. Operands compare by identity.
+  private static List<Object> valueNumber(Ssa.Value value) {
+    List<Ssa.Value> operands = value.operands;
+    switch (value.op) {
+      case CAPTURED:
+        return Arrays.asList(value.op, value.slot);
+      case LOAD_GLOBAL:
+        return Arrays.asList(value.op, value.name, operands.get(0));
+      case LOAD_CELL: {
+        Expr.Variable variable = (Expr.Variable) value.origin;
+        return Arrays.asList(value.op, variable.depth, value.slot, operands.get(0));
+      }
+      case GET:
+        return Arrays.asList(value.op, operands.get(0), value.name, operands.get(1));
+      default:
+        return null;
+    }
+  }
+
+  // Find each loop, from the innermost out, and move the instructions in it
+  // that compute the same value on every iteration to the end of the block
+  // before it.
+  private void hoistInvariants(Ssa.Graph graph) {
+    Map<Ssa.Block, Set<Ssa.Block>> loops = new LinkedHashMap<>();
+    for (Ssa.Block header : order) {
+      for (Ssa.Block predecessor : header.predecessors) {
+        if (header.loop != null && dominates(header, predecessor)) {
+          Set<Ssa.Block> loop = loops.get(header);
+          if (loop == null) {
+            loop = new HashSet<>();
+            loop.add(header);
+            loops.put(header, loop);
+          }
+          addToLoop(loop, predecessor);
+        }
+      }
+    }
+
+    // A loop's header dominates the headers of the loops inside it, so comes
+    // before them in reverse postorder. Going backwards handles inner loops
+    // first.
+    List<Ssa.Block> headers = new ArrayList<>(loops.keySet());
+    for (int i = headers.size() - 1; i >= 0; i--) {
+      Ssa.Block header = headers.get(i);
+      Set<Ssa.Block> loop = loops.get(header);
+      Ssa.Block preheader = null;
+      for (Ssa.Block predecessor : header.predecessors) {
+        if (!loop.contains(predecessor)) {
+          preheader = predecessor;
+        }
+      }
+
+      for (Ssa.Block block : order) {
+        if (!loop.contains(block)) {
+          continue;
+        }
+
+        for (Ssa.Value value : new ArrayList<>(block.values)) {
+          if (!isMovable(value) || !isInvariant(value, loop)) {
+            continue;
+          }
+
+          block.values.remove(value);
+          List<Ssa.Value> values = preheader.values;
+          values.add(values.size() - 1, value);
+          value.block = preheader;
+          if (value.hoistedFrom == null) {
+            hoisted++;
+          }
+          value.hoistedFrom = header.loop;
+        }
+      }
+    }
+  }
+
+  // Add the blocks that reach the end of a loop's body without going through
+  // its header.
+  private static void addToLoop(Set<Ssa.Block> loop, Ssa.Block end) {
+    Deque<Ssa.Block> work = new ArrayDeque<>();
+    work.push(end);
+    while (!work.isEmpty()) {
+      Ssa.Block block = work.pop();
+      if (loop.add(block)) {
+        for (Ssa.Block predecessor : block.predecessors) {
+          work.push(predecessor);
+        }
+      }
+    }
+  }
+
+  // Whether an instruction is a get, or a load a get's object can come from,
+  // whose value only depends on its operands. Ones that can fail are still
+  // moved in the graph: the back end evaluates them where they were the
+  // first time.
+  private static boolean isMovable(Ssa.Value value) {
+    switch (value.op) {
+      case CAPTURED:
+      case LOAD_GLOBAL:
+      case LOAD_CELL:
+      case GET:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isInvariant(Ssa.Value value, Set<Ssa.Block> loop) {
+    for (Ssa.Value operand : value.operands) {
+      if (loop.contains(operand.block)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Annotate the gets that share a value, and tell each loop which slots to
+  // clear when it starts.
+  //
+  // Where a get is in the graph dominates every get found equal to it, and
+  // the slot gets its value there: the get itself stores it, or for a get
+  // hoisted out of a loop, the loop clears the slot where it starts and the
+  // first of them to run stores it. Either way, a get that reads the slot
+  // finds the value computed since the operands last changed, or UNSET.
+  private static void install(Ssa.Graph graph) {
+    // The gets that are the object of a hoisted get. Once the outer one
+    // has its value, they don't run again anyway.
+    Set<Expr> objects = new HashSet<>();
+    for (Ssa.Block block : graph.blocks) {
+      for (Ssa.Value value : block.values) {
+        if (value.op == Ssa.Op.GET && value.hoistedFrom != null
+            && isPure((Expr.Get) value.origin)) {
+          objects.add(unwrap(((Expr.Get) value.origin).object));
+        }
+      }
+    }
+
+    for (Ssa.Block block : graph.blocks) {
+      for (Ssa.Value value : block.values) {
+        if (value.op != Ssa.Op.GET) {
+          continue;
+        }
+
+        Expr.Get get = (Expr.Get) value.origin;
+        Stmt.While loop = value.hoistedFrom;
+        List<Expr.Get> equivalents = new ArrayList<>();
+        for (Expr.Get equivalent : value.equivalents) {
+          if (isPure(equivalent)) {
+            equivalents.add(equivalent);
+          }
+        }
+
+        if (equivalents.isEmpty() && (loop == null || !isPure(get) || objects.contains(get))) {
+          continue;
+        }
+
+        int slot = graph.function.frameSize++;
+        get.shared = new SharedGet(slot, true, loop != null && isPure(get));
+        for (Expr.Get equivalent : equivalents) {
+          equivalent.shared = new SharedGet(slot, loop != null, true);
+        }
+
+        if (loop != null) {
+          int[] slots = loop.hoisted == null ? new int[0] : loop.hoisted;
+          slots = Arrays.copyOf(slots, slots.length + 1);
+          slots[slots.length - 1] = slot;
+          loop.hoisted = slots;
+        }
+        SharedGet.installed(loop != null && isPure(get));
+      }
+    }
+  }
+
+  // Whether an expression has no effects, so reading its value from a slot
+  // instead of evaluating it skips nothing. Equal values can still come
+  // from different code, as "(a = b).c" does with "b.c".
+  private static boolean isPure(Expr expr) {
+    switch (expr.kind) {
+      case Expr.GET:
+        return isPure(((Expr.Get) expr).object);
+      case Expr.GROUPING:
+        return isPure(((Expr.Grouping) expr).expression);
+      case Expr.LITERAL:
+      case Expr.THIS:
+      case Expr.VARIABLE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static Expr unwrap(Expr expr) {
+    while (expr instanceof Expr.Grouping) {
+      expr = ((Expr.Grouping) expr).expression;
+    }
+    return expr;
+  }
+}
@@ -2,7 +2,17 @@ package com.craftinginterpreters.lox;
 
 import java.util.List;
 
-abstract class Stmt {
+abstract sealed class Stmt {
+  static final int BLOCK = 0;
+  static final int CLASS = 1;
+  static final int EXPRESSION = 2;
+  static final int FUNCTION = 3;
+  static final int IF = 4;
+  static final int PRINT = 5;
+  static final int RETURN = 6;
+  static final int VAR = 7;
+  static final int WHILE = 8;
+
   interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
@@ -15,8 +25,9 @@ abstract class Stmt {
     R visitWhileStmt(While stmt);
   }
 
-  static class Block extends Stmt {
+  static final class Block extends Stmt {
     Block(List<Stmt> statements) {
+      super(BLOCK);
       this.statements = statements;
     }
 
@@ -26,10 +37,14 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    boolean hasEnvironment;
+    int frameSize;
   }
 
-  static class Class extends Stmt {
+  static final class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+      super(CLASS);
       this.name = name;
       this.superclass = superclass;
       this.methods = methods;
@@ -43,10 +58,14 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int slot;
+    boolean inCell;
   }
 
-  static class Expression extends Stmt {
+  static final class Expression extends Stmt {
     Expression(Expr expression) {
+      super(EXPRESSION);
       this.expression = expression;
     }
 
@@ -58,8 +77,9 @@ abstract class Stmt {
     final Expr expression;
   }
 
-  static class Function extends Stmt {
+  static final class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
+      super(FUNCTION);
       this.name = name;
       this.params = params;
       this.body = body;
@@ -73,10 +93,21 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    boolean isMethod;
+    int slot;
+    boolean inCell;
+    int frameSize;
+    int[] captureDepths;
+    int[] captureSlots;
+    int[] cellParams;
+    int calls;
+    Jit.Code jitCode;
   }
 
-  static class If extends Stmt {
+  static final class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+      super(IF);
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
@@ -92,8 +123,9 @@ abstract class Stmt {
     final Stmt elseBranch;
   }
 
-  static class Print extends Stmt {
+  static final class Print extends Stmt {
     Print(Expr expression) {
+      super(PRINT);
       this.expression = expression;
     }
 
@@ -105,8 +137,9 @@ abstract class Stmt {
     final Expr expression;
   }
 
-  static class Return extends Stmt {
+  static final class Return extends Stmt {
     Return(Token keyword, Expr value) {
+      super(RETURN);
       this.keyword = keyword;
       this.value = value;
     }
@@ -120,8 +153,9 @@ abstract class Stmt {
     final Expr value;
   }
 
-  static class Var extends Stmt {
+  static final class Var extends Stmt {
     Var(Token name, Expr initializer) {
+      super(VAR);
       this.name = name;
       this.initializer = initializer;
     }
@@ -133,10 +167,14 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int slot;
+    boolean inCell;
   }
 
-  static class While extends Stmt {
+  static final class While extends Stmt {
     While(Expr condition, Stmt body) {
+      super(WHILE);
       this.condition = condition;
       this.body = body;
     }
@@ -148,6 +186,15 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    CountedLoop counted;
+    int[] hoisted;
+  }
+
+  final int kind;
+
+  private Stmt(int kind) {
+    this.kind = kind;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,330 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// Works out what kinds of value each expression in a resolved program can
+// produce, and records it in the expression's type. A type is a set of the
+// kinds below, so NUMBER means the expression always produces a number, and
+// ANY means nothing is known about it. Operators whose operands are proven
+// numbers can then skip checking them: the Interpreter, the ClosureCompiler
+// and the Jit all have paths without the checks.
+//
+// The analysis follows the flow of each function, tracking the type of every
+// variable in the function's own frame as it goes: a declaration or an
+// assignment sets it, and where two paths meet, as after an if or at the top
+// of a loop, the types from both are joined. Only variables in slots of the
+// current frame are tracked. Nothing else can change them: a closure only
+// ever gets a copy of a variable, unless the variable lives in a Cell, and
+// variables in Cells are left as ANY, just like globals, parameters and
+// properties.
+//
+// An operator that fails on the wrong operands, like "-", still tells us the
+// type of its result: if evaluation gets past it, it produced a number.
+class TypeInference {
+  static final int NUMBER = 1;
+  static final int STRING = 2;
+  static final int BOOLEAN = 4;
+  static final int NIL = 8;
+  // Functions, classes and instances.
+  static final int OBJECT = 16;
+  static final int ANY = NUMBER | STRING | BOOLEAN | NIL | OBJECT;
+
+  // Across every program inferred, how many operators check that their
+  // operands are numbers, and how many of those checks the types proved
+  // unnecessary. Printed by the --stats option.
+  private static long checks = 0;
+  private static long removed = 0;
+
+  // The type of the variable in each slot of the frame the code runs in, at
+  // the point the analysis has reached. Null in the global scope, which has
+  // no slots.
+  private int[] locals = null;
+  // Every operator that checks its operands. Loops are analyzed more than
+  // once, so they're only counted when their types have settled.
+  private final Set<Expr> checked = new LinkedHashSet<>();
+
+  void infer(List<Stmt> statements) {
+    inferAll(statements);
+
+    for (Expr expr : checked) {
+      checks++;
+      if (isProven(expr)) {
+        removed++;
+      }
+    }
+  }
+
+  // Whether both operands of a binary operator are known to be numbers.
+  static boolean isProven(Expr.Binary expr) {
+    return expr.left.type == NUMBER && expr.right.type == NUMBER;
+  }
+
+  private static boolean isProven(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      return isProven((Expr.Binary) expr);
+    }
+
+    return ((Expr.Unary) expr).right.type == NUMBER;
+  }
+
+  static void report(PrintStream out) {
+    out.printf("Type checks: %d of %d operand checks removed%n", removed, checks);
+  }
+
+  private void inferAll(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      infer(statement);
+    }
+  }
+
+  private void infer(Stmt stmt) {
+    switch (stmt.kind) {
+      case Stmt.BLOCK: {
+        Stmt.Block block = (Stmt.Block) stmt;
+        if (!block.hasEnvironment) {
+          inferAll(block.statements);
+          break;
+        }
+
+        int[] enclosing = locals;
+        locals = frame(block.frameSize);
+        inferAll(block.statements);
+        locals = enclosing;
+        break;
+      }
+      case Stmt.CLASS: {
+        Stmt.Class klass = (Stmt.Class) stmt;
+        if (klass.superclass != null) {
+          infer(klass.superclass);
+        }
+
+        for (Stmt.Function method : klass.methods) {
+          inferFunction(method);
+        }
+        declare(klass.slot, klass.inCell, OBJECT);
+        break;
+      }
+      case Stmt.EXPRESSION:
+        infer(((Stmt.Expression) stmt).expression);
+        break;
+      case Stmt.FUNCTION: {
+        Stmt.Function function = (Stmt.Function) stmt;
+        declare(function.slot, function.inCell, OBJECT);
+        inferFunction(function);
+        break;
+      }
+      case Stmt.IF: {
+        Stmt.If ifStmt = (Stmt.If) stmt;
+        infer(ifStmt.condition);
+        int[] skipped = copy(locals);
+        infer(ifStmt.thenBranch);
+        if (ifStmt.elseBranch != null) {
+          int[] afterThen = locals;
+          locals = skipped;
+          infer(ifStmt.elseBranch);
+          skipped = afterThen;
+        }
+        locals = join(locals, skipped);
+        break;
+      }
+      case Stmt.PRINT:
+        infer(((Stmt.Print) stmt).expression);
+        break;
+      case Stmt.RETURN: {
+        Stmt.Return returnStmt = (Stmt.Return) stmt;
+        if (returnStmt.value != null) {
+          infer(returnStmt.value);
+        }
+        break;
+      }
+      case Stmt.VAR: {
+        Stmt.Var var = (Stmt.Var) stmt;
+        int type = var.initializer == null ? NIL : infer(var.initializer);
+        declare(var.slot, var.inCell, type);
+        break;
+      }
+      case Stmt.WHILE: {
+        // Go over the loop until the types at its start stop changing. Each
+        // time around can only add to them, so that doesn't take long. The
+        // loop exits right after testing its condition.
+        Stmt.While loop = (Stmt.While) stmt;
+        int[] start = copy(locals);
+        while (true) {
+          infer(loop.condition);
+          int[] exit = copy(locals);
+          infer(loop.body);
+
+          int[] next = join(start, locals);
+          if (Arrays.equals(next, start)) {
+            locals = exit;
+            break;
+          }
+
+          start = next;
+          locals = copy(start);
+        }
+        break;
+      }
+    }
+  }
+
+  // A function's body runs in a frame of its own, where nothing is known
+  // about the parameters.
+  private void inferFunction(Stmt.Function function) {
+    int[] enclosing = locals;
+    locals = frame(function.frameSize);
+    inferAll(function.body);
+    locals = enclosing;
+  }
+
+  private void declare(int slot, boolean inCell, int type) {
+    if (locals != null && !inCell) {
+      locals[slot] = type;
+    }
+  }
+
+  // Whether a variable lives in a slot of the current frame.
+  private boolean isTracked(int depth, boolean inCell) {
+    return locals != null && depth == 0 && !inCell;
+  }
+
+  private static int[] frame(int size) {
+    int[] frame = new int[size];
+    Arrays.fill(frame, ANY);
+    return frame;
+  }
+
+  private static int[] copy(int[] types) {
+    return types == null ? null : types.clone();
+  }
+
+  private static int[] join(int[] a, int[] b) {
+    if (a == null) {
+      return null;
+    }
+
+    int[] joined = new int[a.length];
+    for (int i = 0; i < a.length; i++) {
+      joined[i] = a[i] | b[i];
+    }
+    return joined;
+  }
+
+  private int infer(Expr expr) {
+    int type = typeOf(expr);
+    expr.type = type;
+    return type;
+  }
+
+  private int typeOf(Expr expr) {
+    switch (expr.kind) {
+      case Expr.ASSIGN: {
+        Expr.Assign assign = (Expr.Assign) expr;
+        int type = infer(assign.value);
+        if (isTracked(assign.depth, assign.inCell)) {
+          locals[assign.slot] = type;
+        }
+        return type;
+      }
+      case Expr.BINARY: {
+        Expr.Binary binary = (Expr.Binary) expr;
+        int left = infer(binary.left);
+        int right = infer(binary.right);
+        switch (binary.operator.type) {
+          case BANG_EQUAL:
+          case EQUAL_EQUAL:
+            return BOOLEAN;
+          case GREATER:
+          case GREATER_EQUAL:
+          case LESS:
+          case LESS_EQUAL:
+            checked.add(binary);
+            return BOOLEAN;
+          case PLUS:
+            checked.add(binary);
+            // Adding to a number only works if the other one is a number as
+            // well, and the same goes for strings.
+            if (left == NUMBER || right == NUMBER) {
+              return NUMBER;
+            }
+            if (left == STRING || right == STRING) {
+              return STRING;
+            }
+            return NUMBER | STRING;
+          default:
+            checked.add(binary);
+            return NUMBER;
+        }
+      }
+      case Expr.CALL: {
+        Expr.Call call = (Expr.Call) expr;
+        infer(call.callee);
+        for (Expr argument : call.arguments) {
+          infer(argument);
+        }
+        return ANY;
+      }
+      case Expr.GET:
+        infer(((Expr.Get) expr).object);
+        return ANY;
+      case Expr.GROUPING:
+        return infer(((Expr.Grouping) expr).expression);
+      case Expr.LITERAL: {
+        Object value = ((Expr.Literal) expr).value;
+        if (value instanceof Double) {
+          return NUMBER;
+        }
+        if (value instanceof String) {
+          return STRING;
+        }
+        return value == null ? NIL : BOOLEAN;
+      }
+      case Expr.LOGICAL: {
+        // The right operand may not run at all. "or" only produces its left
+        // operand if it's truthy, "and" only if it's falsey.
+        Expr.Logical logical = (Expr.Logical) expr;
+        int left = infer(logical.left);
+        int[] skipped = copy(locals);
+        int right = infer(logical.right);
+        locals = join(locals, skipped);
+        if (logical.operator.type == TokenType.OR) {
+          return (left & ~NIL) | right;
+        }
+        return (left & (BOOLEAN | NIL)) | right;
+      }
+      case Expr.SET: {
+        Expr.Set set = (Expr.Set) expr;
+        infer(set.object);
+        return infer(set.value);
+      }
+      case Expr.SUPER:
+        return OBJECT;
+      case Expr.THIS:
+        return OBJECT;
+      case Expr.UNARY: {
+        Expr.Unary unary = (Expr.Unary) expr;
+        infer(unary.right);
+        if (unary.operator.type == TokenType.BANG) {
+          return BOOLEAN;
+        }
+
+        checked.add(unary);
+        return NUMBER;
+      }
+      case Expr.VARIABLE: {
+        Expr.Variable variable = (Expr.Variable) expr;
+        if (isTracked(variable.depth, variable.inCell)) {
+          return locals[variable.slot];
+        }
+        return ANY;
+      }
+    }
+
+    // Unreachable.
+    return ANY;
+  }
+}
@@ -0,0 +1,22 @@
+package com.craftinginterpreters.lox;
+
+// Thrown by the primitive evaluation methods, like
+// Interpreter.evaluateDouble, when the value turns out not to have the
+// primitive type asked for. It carries the value, boxed, so the caller can
+// carry on with the generic path without evaluating anything twice.
+class UnexpectedResult extends Exception {
+  final Object result;
+
+  UnexpectedResult(Object result) {
+    super(null, null, false, false);
+    this.result = result;
+  }
+
+  static double expectDouble(Object value) throws UnexpectedResult {
+    if (value instanceof Double) {
+      return (double) value;
+    }
+
+    throw new UnexpectedResult(value);
+  }
+}
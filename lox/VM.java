@@ -0,0 +1,1048 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// A stack-based virtual machine that runs the bytecode produced by
+// BytecodeCompiler. Locals live directly on the value stack, closures reach
+// variables of enclosing functions through upvalues, and each active call gets
+// a CallFrame pointing at its window of the stack.
+class VM {
+  // The tree-walker recurses on the Java stack, so it's limited by that. The
+  // VM keeps its frames on the heap, so we pick a generous limit of our own.
+  private static final int FRAMES_MAX = 1 << 16;
+
+  static class ObjFunction {
+    // The top-level script has no name.
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+    // The most stack slots, counting slot 0 and locals, this function's code
+    // ever uses at once. The VM reserves this much space on each call.
+    int maxStack = 0;
+
+    ObjFunction(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      if (name == null) {
+        return "<script>";
+      }
+
+      return "<fn " + name + ">";
+    }
+  }
+
+  static class ObjClosure {
+    final ObjFunction function;
+    final ObjUpvalue[] upvalues;
+
+    ObjClosure(ObjFunction function) {
+      this.function = function;
+      this.upvalues = new ObjUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  // A reference to a variable captured by a closure. While the variable is
+  // still on the stack the upvalue is "open" and points at its slot. Once the
+  // variable goes out of scope we "close" it by moving the value in here.
+  static class ObjUpvalue {
+    int slot;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  static class ObjClass extends ShapedClass {
+    final Map<String, ObjClosure> methods = new HashMap<>();
+    // Cached so constructing an instance doesn't need to look up "init".
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+      super(name);
+    }
+
+    @Override
+    ObjClosure findMethod(String name) {
+      return methods.get(name);
+    }
+
+    @Override
+    Object bind(Object method, LoxInstance instance) {
+      return new ObjBoundMethod(instance, (ObjClosure) method);
+    }
+  }
+
+  static class ObjBoundMethod {
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+
+  abstract static class ObjNative {
+    final int arity;
+
+    ObjNative(int arity) {
+      this.arity = arity;
+    }
+
+    // Arguments are read in place, starting at stack[first].
+    abstract Object call(Object[] stack, int first);
+
+    @Override
+    public String toString() {
+      return "<native fn>";
+    }
+  }
+
+  private static class CallFrame {
+    ObjClosure closure;
+    // The closure's code and constants, to save a few loads on every
+    // return.
+    byte[] code;
+    Object[] constants;
+    int ip;
+    // Stack index of slot 0, which holds the callee or, for methods, "this".
+    int base;
+  }
+
+  // Numbers live on the stack unboxed. A slot holding NUMBER has its value
+  // in the same slot of the numbers array, and a Double never sits on the
+  // stack itself: values are unboxed as they're loaded from constants,
+  // globals, fields and closed upvalues, and boxed again only as they're
+  // stored to one of those or printed. Arithmetic on locals and arguments
+  // therefore never allocates.
+  private static final Object NUMBER = new Object();
+
+  // Slots above stackTop may still hold stale values. We don't bother clearing
+  // them in the hot paths since they're overwritten as soon as the stack grows.
+  private Object[] stack = new Object[256];
+  private double[] numbers = new double[256];
+  private int stackTop = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  // Globals live in slots the compiler numbers by name, so the code reads
+  // them by index. The table persists across REPL lines, and a slot holds
+  // UNDEFINED until its variable is defined.
+  private static final Object UNDEFINED = new Object();
+  private final Map<String, Integer> globalSlots = new HashMap<>();
+  private final List<String> globalNames = new ArrayList<>();
+  private Object[] globals = new Object[64];
+  // Open upvalues, sorted so the one pointing highest up the stack is first.
+  private ObjUpvalue openUpvalues = null;
+
+  VM() {
+    for (int i = 0; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+
+    Arrays.fill(globals, UNDEFINED);
+    globals[globalSlot("clock")] = new ObjNative(0) {
+      @Override
+      Object call(Object[] stack, int first) {
+        return (double) System.currentTimeMillis() / 1000.0;
+      }
+    };
+  }
+
+  // The slot of the global with the given name, adding one if it's new.
+  int globalSlot(String name) {
+    Integer slot = globalSlots.get(name);
+    if (slot != null) {
+      return slot;
+    }
+
+    slot = globalNames.size();
+    globalSlots.put(name, slot);
+    globalNames.add(name);
+    if (slot == globals.length) {
+      globals = Arrays.copyOf(globals, globals.length * 2);
+      Arrays.fill(globals, slot, globals.length, UNDEFINED);
+    }
+    return slot;
+  }
+
+  void interpret(ObjFunction script) {
+    try {
+      ObjClosure closure = new ObjClosure(script);
+      stack[stackTop++] = closure;
+      call(closure, 0, 0);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+
+      // Throw away whatever the failed script left behind so the next line
+      // in a REPL session starts fresh.
+      Arrays.fill(stack, null);
+      stackTop = 0;
+      frameCount = 0;
+      openUpvalues = null;
+    }
+  }
+
+  private void run() {
+    // Keep the stacks and stack pointer in locals so the JIT can hold them in
+    // registers. They're written back to the fields around anything that
+    // might use or grow the stack, like calls.
+    Object[] stack = this.stack;
+    double[] numbers = this.numbers;
+    int sp = stackTop;
+    // Only compiling adds globals, so the table can't grow while this runs.
+    Object[] globals = this.globals;
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.code;
+    Object[] constants = frame.constants;
+    int ip = frame.ip;
+    int base = frame.base;
+
+    for (;;) {
+      switch (code[ip++]) {
+        case CONSTANT: {
+          load(stack, numbers, sp++, constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+          ip += 2;
+          break;
+        }
+        case NIL:
+          stack[sp++] = null;
+          break;
+        case TRUE:
+          stack[sp++] = true;
+          break;
+        case FALSE:
+          stack[sp++] = false;
+          break;
+        case POP:
+          sp--;
+          break;
+        case GET_LOCAL: {
+          int slot = base + (code[ip++] & 0xff);
+          stack[sp] = stack[slot];
+          numbers[sp++] = numbers[slot];
+          break;
+        }
+        case SET_LOCAL: {
+          // Assignment is an expression, so leave the value on the stack.
+          int slot = base + (code[ip++] & 0xff);
+          stack[slot] = stack[sp - 1];
+          numbers[slot] = numbers[sp - 1];
+          break;
+        }
+        case STORE_LOCAL: {
+          int slot = base + (code[ip++] & 0xff);
+          sp--;
+          stack[slot] = stack[sp];
+          numbers[slot] = numbers[sp];
+          break;
+        }
+        case GET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          Object value = globals[slot];
+          if (value == UNDEFINED) {
+            throw new RuntimeError(line(frame, ip - 1),
+                "Undefined variable '" + globalNames.get(slot) + "'.");
+          }
+          load(stack, numbers, sp++, value);
+          break;
+        }
+        case DEFINE_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          sp--;
+          globals[slot] = box(stack, numbers, sp);
+          break;
+        }
+        case SET_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (globals[slot] == UNDEFINED) {
+            throw new RuntimeError(line(frame, ip - 1),
+                "Undefined variable '" + globalNames.get(slot) + "'.");
+          }
+          globals[slot] = box(stack, numbers, sp - 1);
+          break;
+        }
+        case STORE_GLOBAL: {
+          int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (globals[slot] == UNDEFINED) {
+            throw new RuntimeError(line(frame, ip - 1),
+                "Undefined variable '" + globalNames.get(slot) + "'.");
+          }
+          globals[slot] = box(stack, numbers, --sp);
+          break;
+        }
+        case GET_UPVALUE: {
+          ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[sp] = stack[upvalue.slot];
+            numbers[sp++] = numbers[upvalue.slot];
+          } else {
+            load(stack, numbers, sp++, upvalue.closed);
+          }
+          break;
+        }
+        case SET_UPVALUE: {
+          ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp - 1];
+            numbers[upvalue.slot] = numbers[sp - 1];
+          } else {
+            upvalue.closed = box(stack, numbers, sp - 1);
+          }
+          break;
+        }
+        case STORE_UPVALUE: {
+          ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+          sp--;
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = stack[sp];
+            numbers[upvalue.slot] = numbers[sp];
+          } else {
+            upvalue.closed = box(stack, numbers, sp);
+          }
+          break;
+        }
+        case GET_PROPERTY: {
+          Expr.Get get = (Expr.Get) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = stack[sp - 1];
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 1), "Only instances have properties.");
+          }
+          load(stack, numbers, sp - 1, get.cache.get((LoxInstance) object, get.name));
+          break;
+        }
+        case GET_LOCAL_PROPERTY: {
+          Object object = stack[base + (code[ip] & 0xff)];
+          Expr.Get get = (Expr.Get) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          ip += 3;
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 1), "Only instances have properties.");
+          }
+          load(stack, numbers, sp++, get.cache.get((LoxInstance) object, get.name));
+          break;
+        }
+        case SET_PROPERTY:
+        case STORE_PROPERTY: {
+          Expr.Set set = (Expr.Set) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = stack[sp - 2];
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 1), "Only instances have fields");
+          }
+          set.cache.set((LoxInstance) object, set.name, box(stack, numbers, sp - 1));
+          sp--;
+          if (code[ip - 3] == STORE_PROPERTY) {
+            sp--;
+          } else {
+            // Replace the instance with the assigned value, the result of
+            // the expression.
+            stack[sp - 1] = stack[sp];
+            numbers[sp - 1] = numbers[sp];
+          }
+          break;
+        }
+        case STORE_LOCAL_PROPERTY: {
+          Object object = stack[base + (code[ip] & 0xff)];
+          Expr.Set set = (Expr.Set) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          ip += 3;
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 1), "Only instances have fields");
+          }
+          set.cache.set((LoxInstance) object, set.name, box(stack, numbers, --sp));
+          break;
+        }
+        case GET_SUPER: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ObjClass superclass = (ObjClass) stack[--sp];
+          ObjClosure method = superclass.methods.get(name);
+          if (method == null) {
+            throw new RuntimeError(line(frame, ip - 1), "Undefined property '" + name + "'.");
+          }
+          stack[sp - 1] = new ObjBoundMethod(stack[sp - 1], method);
+          break;
+        }
+        case GET_METHOD: {
+          // Look up a property that is about to be called. Rather than
+          // allocating a bound method, leave the method and its receiver on the
+          // stack for CALL_METHOD. If the property turns out to be a field, the
+          // method slot is nil and the field's value is called as usual.
+          Expr.Get get = (Expr.Get) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          Object object = stack[sp - 1];
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 1), "Only instances have properties.");
+          }
+
+          LoxInstance instance = (LoxInstance) object;
+          Object method = get.cache.method(instance, get.name);
+          if (method != null) {
+            stack[sp - 1] = method;
+            stack[sp++] = instance;
+          } else {
+            stack[sp - 1] = null;
+            load(stack, numbers, sp++, get.cache.get(instance, get.name));
+          }
+          break;
+        }
+        case GET_SUPER_METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ObjClass superclass = (ObjClass) stack[--sp];
+          ObjClosure method = superclass.methods.get(name);
+          if (method == null) {
+            throw new RuntimeError(line(frame, ip - 1), "Undefined property '" + name + "'.");
+          }
+          Object receiver = stack[sp - 1];
+          stack[sp - 1] = method;
+          stack[sp++] = receiver;
+          break;
+        }
+        case EQUAL: {
+          sp--;
+          stack[sp - 1] = isEqual(stack, numbers, sp - 1, sp);
+          break;
+        }
+        case NOT_EQUAL: {
+          sp--;
+          stack[sp - 1] = !isEqual(stack, numbers, sp - 1, sp);
+          break;
+        }
+        case GREATER: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          stack[sp - 1] = numbers[sp - 1] > numbers[sp];
+          break;
+        }
+        case GREATER_EQUAL: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          stack[sp - 1] = numbers[sp - 1] >= numbers[sp];
+          break;
+        }
+        case LESS: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          stack[sp - 1] = numbers[sp - 1] < numbers[sp];
+          break;
+        }
+        case LESS_EQUAL: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          stack[sp - 1] = numbers[sp - 1] <= numbers[sp];
+          break;
+        }
+        case ADD: {
+          Object b = stack[sp - 1];
+          Object a = stack[sp - 2];
+          if (a == NUMBER && b == NUMBER) {
+            sp--;
+            numbers[sp - 1] += numbers[sp];
+          } else if (a instanceof String && b instanceof String) {
+            stack[--sp - 1] = (String) a + (String) b;
+          } else {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          break;
+        }
+        case SUBTRACT: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          numbers[sp - 1] -= numbers[sp];
+          break;
+        }
+        case MULTIPLY: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          numbers[sp - 1] *= numbers[sp];
+          break;
+        }
+        case DIVIDE: {
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp--;
+          numbers[sp - 1] /= numbers[sp];
+          break;
+        }
+        case ADD_CONSTANT: {
+          double constant = (double) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (stack[sp - 1] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          numbers[sp - 1] += constant;
+          break;
+        }
+        case SUBTRACT_CONSTANT: {
+          double constant = (double) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          if (stack[sp - 1] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be numbers.");
+          }
+          numbers[sp - 1] -= constant;
+          break;
+        }
+        case ADD_LOCAL_CONSTANT: {
+          int slot = base + (code[ip] & 0xff);
+          double constant = (double) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          ip += 3;
+          if (stack[slot] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          stack[sp] = NUMBER;
+          numbers[sp++] = numbers[slot] + constant;
+          break;
+        }
+        case SUBTRACT_LOCAL_CONSTANT: {
+          int slot = base + (code[ip] & 0xff);
+          double constant = (double) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          ip += 3;
+          if (stack[slot] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be numbers.");
+          }
+          stack[sp] = NUMBER;
+          numbers[sp++] = numbers[slot] - constant;
+          break;
+        }
+        case ADD_LOCAL: {
+          int slot = base + (code[ip++] & 0xff);
+          Object a = stack[sp - 1];
+          Object b = stack[slot];
+          if (a == NUMBER && b == NUMBER) {
+            numbers[sp - 1] += numbers[slot];
+          } else if (a instanceof String && b instanceof String) {
+            stack[sp - 1] = (String) a + (String) b;
+          } else {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          break;
+        }
+        case INCREMENT_LOCAL: {
+          int slot = base + (code[ip] & 0xff);
+          double constant = (double) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          ip += 3;
+          if (stack[slot] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          numbers[slot] += constant;
+          break;
+        }
+        case NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case NEGATE: {
+          if (stack[sp - 1] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operand must be a number.");
+          }
+          numbers[sp - 1] = -numbers[sp - 1];
+          break;
+        }
+        case PRINT:
+          sp--;
+          System.out.println(Interpreter.stringify(box(stack, numbers, sp)));
+          break;
+        case JUMP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 + offset;
+          break;
+        }
+        case JUMP_IF_FALSE: {
+          // NUMBER is neither nil nor false, so numbers stay truthy.
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!Interpreter.isTruthy(stack[sp - 1])) {
+            ip += offset;
+          }
+          break;
+        }
+        case POP_JUMP_IF_FALSE: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2;
+          if (!Interpreter.isTruthy(stack[--sp])) {
+            ip += offset;
+          }
+          break;
+        }
+        case JUMP_UNLESS: {
+          byte comparison = code[ip];
+          int offset = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+          ip += 3;
+          checkNumberOperands(stack, sp, line(frame, ip - 1));
+          sp -= 2;
+          if (!compare(comparison, numbers[sp], numbers[sp + 1])) {
+            ip += offset;
+          }
+          break;
+        }
+        case JUMP_UNLESS_LOCAL: {
+          byte comparison = code[ip];
+          int slot = base + (code[ip + 1] & 0xff);
+          double constant = (double) constants[((code[ip + 2] & 0xff) << 8) | (code[ip + 3] & 0xff)];
+          int offset = ((code[ip + 4] & 0xff) << 8) | (code[ip + 5] & 0xff);
+          ip += 6;
+          if (stack[slot] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be numbers.");
+          }
+          if (!compare(comparison, numbers[slot], constant)) {
+            ip += offset;
+          }
+          break;
+        }
+        case FOR_LOOP: {
+          int slot = base + (code[ip] & 0xff);
+          double step = (double) constants[((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff)];
+          byte comparison = code[ip + 3];
+          double limit = (double) constants[((code[ip + 4] & 0xff) << 8) | (code[ip + 5] & 0xff)];
+          int offset = ((code[ip + 6] & 0xff) << 8) | (code[ip + 7] & 0xff);
+          ip += 8;
+          if (stack[slot] != NUMBER) {
+            throw new RuntimeError(line(frame, ip - 1), "Operands must be two numbers or two strings.");
+          }
+          numbers[slot] += step;
+          if (compare(comparison, numbers[slot], limit)) {
+            ip -= offset;
+          }
+          break;
+        }
+        case LOOP: {
+          int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+          ip += 2 - offset;
+          break;
+        }
+        case CALL: {
+          int argCount = code[ip++] & 0xff;
+          Object callee = stack[sp - argCount - 1];
+          frame.ip = ip;
+          // Calls to closures with the right number of arguments, nearly
+          // all of them, push the frame here. Anything else goes through
+          // callValue.
+          if (callee instanceof ObjClosure && ((ObjClosure) callee).function.arity == argCount) {
+            frame = pushFrame((ObjClosure) callee, sp - argCount - 1);
+          } else {
+            stackTop = sp;
+            callValue(callee, argCount, line(frame, ip - 1));
+            sp = stackTop;
+            frame = frames[frameCount - 1];
+          }
+          stack = this.stack;
+          numbers = this.numbers;
+
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case INVOKE: {
+          Expr.Get get = (Expr.Get) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          int argCount = code[ip + 2] & 0xff;
+          ip += 3;
+          int slot = sp - argCount - 1;
+          Object object = stack[slot];
+          if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(line(frame, ip - 2), "Only instances have properties.");
+          }
+
+          // The receiver is already where the method expects "this", so
+          // unlike CALL_METHOD nothing has to move.
+          frame.ip = ip;
+          LoxInstance instance = (LoxInstance) object;
+          Object method = get.cache.method(instance, get.name);
+          if (method != null && ((ObjClosure) method).function.arity == argCount) {
+            frame = pushFrame((ObjClosure) method, slot);
+          } else {
+            if (method == null) {
+              load(stack, numbers, slot, get.cache.get(instance, get.name));
+            }
+
+            stackTop = sp;
+            callValue(method != null ? method : stack[slot], argCount, line(frame, ip - 1));
+            sp = stackTop;
+            frame = frames[frameCount - 1];
+          }
+          stack = this.stack;
+          numbers = this.numbers;
+
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case TAIL_CALL: {
+          // The call's result is what the current function returns, so drop
+          // the current frame first and let the callee take its place.
+          int argCount = code[ip++] & 0xff;
+          int line = line(frame, ip - 1);
+          sp = dropFrame(frame, sp, argCount + 1);
+          stackTop = sp;
+          callValue(stack[sp - argCount - 1], argCount, line);
+          stack = this.stack;
+          numbers = this.numbers;
+          sp = stackTop;
+
+          frame = frames[frameCount - 1];
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case TAIL_CALL_METHOD: {
+          int argCount = code[ip++] & 0xff;
+          int line = line(frame, ip - 1);
+          sp = dropFrame(frame, sp, argCount + 2);
+          int methodSlot = sp - argCount - 2;
+          Object method = stack[methodSlot];
+          System.arraycopy(stack, methodSlot + 1, stack, methodSlot, argCount + 1);
+          System.arraycopy(numbers, methodSlot + 1, numbers, methodSlot, argCount + 1);
+          sp--;
+
+          stackTop = sp;
+          if (method == null) {
+            callValue(stack[methodSlot], argCount, line);
+          } else {
+            call((ObjClosure) method, argCount, line);
+          }
+          stack = this.stack;
+          numbers = this.numbers;
+          sp = stackTop;
+
+          frame = frames[frameCount - 1];
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case CALL_METHOD: {
+          // The stack holds the method (or nil), then the receiver (or the
+          // callable field value), then the arguments. Slide the receiver and
+          // arguments down over the method slot so they line up like any
+          // other call.
+          int argCount = code[ip++] & 0xff;
+          int methodSlot = sp - argCount - 2;
+          Object method = stack[methodSlot];
+          System.arraycopy(stack, methodSlot + 1, stack, methodSlot, argCount + 1);
+          System.arraycopy(numbers, methodSlot + 1, numbers, methodSlot, argCount + 1);
+          sp--;
+
+          frame.ip = ip;
+          if (method != null && ((ObjClosure) method).function.arity == argCount) {
+            frame = pushFrame((ObjClosure) method, methodSlot);
+          } else {
+            stackTop = sp;
+            callValue(method != null ? method : stack[methodSlot], argCount, line(frame, ip - 1));
+            sp = stackTop;
+            frame = frames[frameCount - 1];
+          }
+          stack = this.stack;
+          numbers = this.numbers;
+
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case CLOSURE: {
+          ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ObjClosure closure = new ObjClosure(function);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            boolean isLocal = code[ip++] == 1;
+            int index = code[ip++] & 0xff;
+            if (isLocal) {
+              closure.upvalues[i] = captureUpvalue(base + index);
+            } else {
+              closure.upvalues[i] = frame.closure.upvalues[index];
+            }
+          }
+          stack[sp++] = closure;
+          break;
+        }
+        case CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          sp--;
+          break;
+        case RETURN:
+        case RETURN_LOCAL: {
+          int slot = code[ip - 1] == RETURN ? sp - 1 : base + (code[ip] & 0xff);
+          Object result = stack[slot];
+          double number = numbers[slot];
+          closeUpvalues(base);
+          frameCount--;
+          sp = base;
+          if (frameCount == 0) {
+            stackTop = sp;
+            return;
+          }
+
+          frame = frames[frameCount - 1];
+          code = frame.code;
+          constants = frame.constants;
+          ip = frame.ip;
+          base = frame.base;
+          // A call whose value is discarded is followed by a POP. Skip it
+          // rather than push the value just to pop it.
+          if (code[ip] == POP) {
+            ip++;
+          } else {
+            stack[sp] = result;
+            numbers[sp++] = number;
+          }
+          break;
+        }
+        case CLASS: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          stack[sp++] = new ObjClass(name);
+          break;
+        }
+        case INHERIT: {
+          Object superclass = stack[sp - 2];
+          if (!(superclass instanceof ObjClass)) {
+            throw new RuntimeError(line(frame, ip - 1), "Superclass must be a class.");
+          }
+
+          // Copy the inherited methods down into the subclass now. Methods are
+          // only added while the class is being defined, so this can't go
+          // stale, and method lookups never have to walk the superclass chain.
+          ObjClass subclass = (ObjClass) stack[--sp];
+          subclass.methods.putAll(((ObjClass) superclass).methods);
+          subclass.initializer = ((ObjClass) superclass).initializer;
+          break;
+        }
+        case METHOD: {
+          String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+          ip += 2;
+          ObjClosure method = (ObjClosure) stack[--sp];
+          ObjClass klass = (ObjClass) stack[sp - 1];
+          klass.methods.put(name, method);
+          if (name.equals("init")) {
+            klass.initializer = method;
+          }
+          break;
+        }
+      }
+    }
+  }
+
+  // Put a value loaded from outside the stack into a slot, unboxing it if
+  // it's a number.
+  private static void load(Object[] stack, double[] numbers, int slot, Object value) {
+    if (value instanceof Double) {
+      stack[slot] = NUMBER;
+      numbers[slot] = (double) value;
+    } else {
+      stack[slot] = value;
+    }
+  }
+
+  // The value in a slot as it's stored outside the stack, boxing numbers.
+  private static Object box(Object[] stack, double[] numbers, int slot) {
+    Object value = stack[slot];
+    return value == NUMBER ? (Object) numbers[slot] : value;
+  }
+
+  // Compares like Interpreter.isEqual does on the boxed values, so NaN equals
+  // itself and 0 doesn't equal -0.
+  private static boolean isEqual(Object[] stack, double[] numbers, int a, int b) {
+    if (stack[a] == NUMBER) {
+      return stack[b] == NUMBER
+          && Double.doubleToLongBits(numbers[a]) == Double.doubleToLongBits(numbers[b]);
+    }
+
+    return Interpreter.isEqual(stack[a], stack[b]);
+  }
+
+  // The source line of the byte at index in the frame's code, for errors.
+  private static int line(CallFrame frame, int index) {
+    return frame.closure.function.chunk.lines[index];
+  }
+
+  // Applies one of the comparison instructions, for the fused jumps.
+  private static boolean compare(byte comparison, double a, double b) {
+    switch (comparison) {
+      case GREATER:
+        return a > b;
+      case GREATER_EQUAL:
+        return a >= b;
+      case LESS:
+        return a < b;
+      default:
+        return a <= b;
+    }
+  }
+
+  // Pop the current frame for a tail call, moving the top count values (the
+  // callee and its arguments) down to where the frame began. Returns the new
+  // stack pointer, just past them.
+  private int dropFrame(CallFrame frame, int sp, int count) {
+    closeUpvalues(frame.base);
+    frameCount--;
+    System.arraycopy(stack, sp - count, stack, frame.base, count);
+    System.arraycopy(numbers, sp - count, numbers, frame.base, count);
+    return frame.base + count;
+  }
+
+  private void callValue(Object callee, int argCount, int line) {
+    if (callee instanceof ObjClosure) {
+      call((ObjClosure) callee, argCount, line);
+      return;
+    }
+
+    if (callee instanceof ObjBoundMethod) {
+      ObjBoundMethod bound = (ObjBoundMethod) callee;
+      stack[stackTop - argCount - 1] = bound.receiver;
+      call(bound.method, argCount, line);
+      return;
+    }
+
+    if (callee instanceof ObjClass) {
+      ObjClass klass = (ObjClass) callee;
+      stack[stackTop - argCount - 1] = new LoxInstance(klass);
+      if (klass.initializer != null) {
+        call(klass.initializer, argCount, line);
+      } else if (argCount != 0) {
+        throw new RuntimeError(line, "Expected 0 arguments but got " + argCount + ".");
+      }
+      return;
+    }
+
+    if (callee instanceof ObjNative) {
+      ObjNative function = (ObjNative) callee;
+      if (argCount != function.arity) {
+        throw new RuntimeError(line, "Expected " + function.arity + " arguments but got " + argCount + ".");
+      }
+
+      // Natives see their arguments boxed, like any code outside the VM.
+      int first = stackTop - argCount;
+      for (int i = first; i < stackTop; i++) {
+        stack[i] = box(stack, numbers, i);
+      }
+
+      Object result = function.call(stack, first);
+      stackTop -= argCount + 1;
+      load(stack, numbers, stackTop++, result);
+      return;
+    }
+
+    throw new RuntimeError(line, "Can only call functions and classes.");
+  }
+
+  private void call(ObjClosure closure, int argCount, int line) {
+    if (argCount != closure.function.arity) {
+      throw new RuntimeError(line,
+          "Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+    }
+
+    pushFrame(closure, stackTop - argCount - 1);
+  }
+
+  // Start running closure with its slot 0 at base, once the argument count
+  // has been checked. This may grow the stacks, so run() reloads them after.
+  private CallFrame pushFrame(ObjClosure closure, int base) {
+    if (frameCount == frames.length) {
+      growFrames();
+    }
+
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.code = closure.function.chunk.code;
+    frame.constants = closure.function.chunk.constants;
+    frame.ip = 0;
+    frame.base = base;
+
+    int needed = base + closure.function.maxStack;
+    if (needed > stack.length) {
+      int size = Math.max(stack.length * 2, needed);
+      stack = Arrays.copyOf(stack, size);
+      numbers = Arrays.copyOf(numbers, size);
+    }
+    return frame;
+  }
+
+  private void growFrames() {
+    if (frameCount == FRAMES_MAX) {
+      // Report the line of the call, the instruction before the caller's ip.
+      CallFrame caller = frames[frameCount - 1];
+      throw new RuntimeError(line(caller, caller.ip - 1), "Stack overflow.");
+    }
+
+    frames = Arrays.copyOf(frames, frameCount * 2);
+    for (int i = frameCount; i < frames.length; i++) {
+      frames[i] = new CallFrame();
+    }
+  }
+
+  private ObjUpvalue captureUpvalue(int slot) {
+    // Reuse an existing upvalue for this slot so that every closure capturing
+    // the same variable sees the same variable.
+    ObjUpvalue previous = null;
+    ObjUpvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.slot == slot) {
+      return upvalue;
+    }
+
+    ObjUpvalue created = new ObjUpvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+
+    return created;
+  }
+
+  // Close every open upvalue pointing at or above the given stack slot.
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      ObjUpvalue upvalue = openUpvalues;
+      upvalue.closed = box(stack, numbers, upvalue.slot);
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  // Check the top two values on the stack.
+  private static void checkNumberOperands(Object[] stack, int sp, int line) {
+    if (stack[sp - 2] == NUMBER && stack[sp - 1] == NUMBER) {
+      return;
+    }
+
+    throw new RuntimeError(line, "Operands must be numbers.");
+  }
+}
@@ -13,33 +13,34 @@ public class GenerateAst {
     }
     String outputDir = args[0];
 
-    defineAst(outputDir, "Expr", Arrays.asList(
-        "Assign   : Token name, Expr value",
-        "Binary   : Expr left, Token operator, Expr right",
-        "Call     : Expr callee, Token paren, List<Expr> arguments",
-        "Get      : Expr object, Token name",
+    defineAst(outputDir, "Expr", "int type = TypeInference.ANY", Arrays.asList(
+        "Assign   : Token name, Expr value | int depth = -1, int slot, boolean inCell, Cell global, FusedNode fused",
+        "Binary   : Expr left, Token operator, Expr right | BinaryNode node = new BinaryNode.Uninitialized(this)",
+        "Call     : Expr callee, Token paren, List<Expr> arguments | boolean isTailCall, CallSite site = new CallSite(), InlinedCall inlined",
+        "Get      : Expr object, Token name | PropertyCache cache = new PropertyCache(\"get\"), FusedNode fused, SharedGet shared",
         "Grouping : Expr expression",
         "Literal  : Object value",
         "Logical  : Expr left, Token operator, Expr right",
-        "Set      : Expr object, Token name, Expr value",
-        "Super    : Token keyword, Token method",
-        "This     : Token keyword",
+        "Set      : Expr object, Token name, Expr value | PropertyCache cache = new PropertyCache(\"set\")",
+        "Super    : Token keyword, Token method | int depth = -1, int slot, Expr.This receiver",
+        "This     : Token keyword | int depth = -1, int slot",
         "Unary    : Token operator, Expr right",
-        "Variable : Token name"));
+        "Variable : Token name | int depth = -1, int slot, boolean inCell, Cell global"));
 
-    defineAst(outputDir, "Stmt", Arrays.asList(
-        "Block      : List<Stmt> statements",
-        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+    defineAst(outputDir, "Stmt", null, Arrays.asList(
+        "Block      : List<Stmt> statements | boolean hasEnvironment, int frameSize",
+        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot, boolean inCell",
         "Expression : Expr expression",
-        "Function   : Token name, List<Token> params, List<Stmt> body",
+        "Function   : Token name, List<Token> params, List<Stmt> body | boolean isMethod, int slot, boolean inCell, int frameSize, int[] captureDepths, int[] captureSlots, int[] cellParams, int calls, Jit.Code jitCode",
         "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
         "Print      : Expr expression",
         "Return     : Token keyword, Expr value",
-        "Var        : Token name, Expr initializer",
-        "While      : Expr condition, Stmt body"));
+        "Var        : Token name, Expr initializer | int slot, boolean inCell",
+        "While      : Expr condition, Stmt body | CountedLoop counted, int[] hoisted"));
   }
 
-  private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+  private static void defineAst(String outputDir, String baseName, String baseAnnotations,
+      List<String> types) throws IOException {
     String path = outputDir + "/" + baseName + ".java";
     PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -47,17 +48,45 @@ public class GenerateAst {
     writer.println();
     writer.println("import java.util.List;");
     writer.println();
-    writer.println("abstract class " + baseName + " {");
+    // The subclasses below are the only kinds of node there are. Each one has
+    // a constant for its kind, so code that handles every kind can switch on
+    // the tag instead of going through accept() and a Visitor.
+    writer.println("abstract sealed class " + baseName + " {");
 
+    defineKinds(writer, types);
     defineVisitor(writer, baseName, types);
 
     for (String type : types) {
       String className = type.split(":")[0].trim();
       String fields = type.split(":")[1].trim();
 
-      defineType(writer, baseName, className, fields);
+      // Anything after a "|" is a mutable field that isn't passed to the
+      // constructor. Later passes, like the Resolver, fill these in.
+      String annotations = null;
+      if (fields.contains("|")) {
+        annotations = fields.split("\\|")[1].trim();
+        fields = fields.split("\\|")[0].trim();
+      }
+
+      defineType(writer, baseName, className, fields, annotations);
+    }
+
+    // Mutable fields that every kind of node has.
+    if (baseAnnotations != null) {
+      for (String annotation : baseAnnotations.split(", ")) {
+        writer.println("  " + annotation + ";");
+      }
+      writer.println();
     }
 
+    // The kind tag, set once by each subclass's constructor.
+    writer.println("  final int kind;");
+    writer.println();
+    writer.println("  private " + baseName + "(int kind) {");
+    writer.println("    this.kind = kind;");
+    writer.println("  }");
+    writer.println();
+
     // The base accept() method.
     writer.println("  abstract <R> R accept(Visitor<R> visitor);");
 
@@ -65,6 +94,15 @@ public class GenerateAst {
     writer.close();
   }
 
+  private static void defineKinds(PrintWriter writer, List<String> types) {
+    for (int i = 0; i < types.size(); i++) {
+      String typeName = types.get(i).split(":")[0].trim();
+      writer.println("  static final int " + typeName.toUpperCase() + " = " + i + ";");
+    }
+
+    writer.println();
+  }
+
   private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
     writer.println("  interface Visitor<R> {");
 
@@ -77,11 +115,13 @@ public class GenerateAst {
     writer.println();
   }
 
-  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-    writer.println("  static class " + className + " extends " + baseName + " {");
+  private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+      String annotationList) {
+    writer.println("  static final class " + className + " extends " + baseName + " {");
 
     // Constructor.
     writer.println("    " + className + "(" + fieldList + ") {");
+    writer.println("      super(" + className.toUpperCase() + ");");
 
     // Store parameters in fields.
     String[] fields = fieldList.split(", ");
@@ -106,6 +146,14 @@ public class GenerateAst {
       writer.println("    final " + field + ";");
     }
 
+    // Mutable fields, which may carry a default value.
+    if (annotationList != null) {
+      writer.println();
+      for (String annotation : annotationList.split(", ")) {
+        writer.println("    " + annotation + ";");
+      }
+    }
+
     // Close class.
     writer.println("  }");
     writer.println();